@@ -0,0 +1,116 @@
+package ex.tajti.mining;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A table to be processed in batch mode. Jobs are read from a file containing one job per line
+ * in this format:
+ * <pre>
+ * table;attr1,attr2,attr3;epsilon[;chunkSize]
+ * </pre>
+ * Empty lines and lines starting with <code>#</code> are ignored.
+ *
+ * @author Akos Tajti
+ */
+public class BatchJob {
+	private final String table;
+
+	private final List<String> attributes;
+
+	private final double epsilon;
+
+	/**
+	 * The chunk size or 0 if the rows are not processed in chunks.
+	 */
+	private final int chunkSize;
+
+	/**
+	 * The estimated number of bytes the job needs. Set by the <code>BatchRunner</code>.
+	 */
+	private long footprint;
+
+	public BatchJob(String table, List<String> attributes, double epsilon, int chunkSize) {
+		this.table = table;
+		this.attributes = Collections.unmodifiableList(new ArrayList<String>(attributes));
+		this.epsilon = epsilon;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Parses a line of a job file.
+	 *
+	 * @param line
+	 * @return
+	 */
+	public static BatchJob parse(String line) {
+		String[] parts = line.trim().split(";");
+		if (parts.length < 3) {
+			throw new IllegalArgumentException("invalid job: " + line);
+		}
+		int chunkSize = parts.length > 3 ? Integer.parseInt(parts[3].trim()) : 0;
+
+		return new BatchJob(parts[0].trim(), Arrays.asList(parts[1].trim().split(",")), Double.parseDouble(parts[2].trim()), chunkSize);
+	}
+
+	/**
+	 * Reads the jobs from a file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<BatchJob> read(File file) throws IOException {
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				jobs.add(parse(line));
+			}
+		} finally {
+			reader.close();
+		}
+
+		return jobs;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public long getFootprint() {
+		return footprint;
+	}
+
+	void setFootprint(long footprint) {
+		this.footprint = footprint;
+	}
+
+	@Override
+	public String toString() {
+		return table + attributes + " (epsilon: " + epsilon + ")";
+	}
+}
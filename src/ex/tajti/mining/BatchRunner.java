@@ -0,0 +1,232 @@
+package ex.tajti.mining;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs several jobs concurrently in one JVM. The jobs share a pool of worker threads and a
+ * memory budget: a job is started only when its estimated footprint fits into the budget.
+ * <br/>
+ * The biggest jobs are started first, so the run takes about as long as the slowest few tables
+ * instead of the sum of all of them.
+ *
+ * @author Akos Tajti
+ */
+public class BatchRunner {
+	private static final Logger logger = Logger.getLogger(BatchRunner.class.getSimpleName());
+
+	/**
+	 * The estimated number of bytes a cell needs in the base partitions (a boxed row ID and its reference).
+	 */
+	static final int BYTES_PER_CELL = 24;
+
+	/**
+	 * The partitions of the lattice levels held at the same time, relative to the base partitions.
+	 */
+	static final int LATTICE_FACTOR = 4;
+
+	private final String jdbcUrl;
+
+	/**
+	 * The number of jobs running at the same time.
+	 */
+	private final int threads;
+
+	private final MemoryBudget budget;
+
+	private String reportFormat = "text";
+
+	private boolean compressReport;
+
+	private FdCatalog catalog;
+
+	/**
+	 * The number of jobs failed in the last run.
+	 */
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * @param jdbcUrl
+	 * @param threads The number of jobs running at the same time.
+	 * @param budget
+	 */
+	public BatchRunner(String jdbcUrl, int threads, MemoryBudget budget) {
+		this.jdbcUrl = jdbcUrl;
+		this.threads = threads;
+		this.budget = budget;
+	}
+
+	/**
+	 * Estimates the number of bytes a job needs.
+	 *
+	 * @param rows
+	 * @param attributes
+	 * @return
+	 */
+	public static long estimateFootprint(long rows, int attributes) {
+		return rows * attributes * BYTES_PER_CELL * LATTICE_FACTOR;
+	}
+
+	/**
+	 * Runs the jobs and waits until all of them are finished. Every job writes its own report.
+	 *
+	 * @param jobs
+	 * @return The number of jobs that failed.
+	 * @throws InterruptedException
+	 * @throws SQLException if the sizes of the tables cannot be retrieved.
+	 */
+	public int run(List<BatchJob> jobs) throws InterruptedException, SQLException {
+		failed.set(0);
+		estimateFootprints(jobs);
+
+		List<BatchJob> pending = new ArrayList<BatchJob>(jobs);
+		Collections.sort(pending, new Comparator<BatchJob>() {
+
+			@Override
+			public int compare(BatchJob o1, BatchJob o2) {
+				// descending order based on the footprint
+				return Long.compare(o2.getFootprint(), o1.getFootprint());
+			}
+		});
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Semaphore slots = new Semaphore(threads);
+		try {
+			while (!pending.isEmpty()) {
+				slots.acquire();
+				BatchJob next = null;
+				while (next == null) {
+					for (Iterator<BatchJob> it = pending.iterator(); it.hasNext();) {
+						BatchJob job = it.next();
+						if (budget.tryReserve(job.getFootprint())) {
+							it.remove();
+							next = job;
+							break;
+						}
+					}
+					if (next == null) {
+						budget.awaitRelease(1000);
+					}
+				}
+
+				final BatchJob job = next;
+				final int index = jobs.indexOf(job);
+				logger.info("starting " + job + ", estimated footprint: " + job.getFootprint() + " bytes");
+				pool.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							runJob(job, index);
+						} finally {
+							budget.release(job.getFootprint());
+							slots.release();
+						}
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		return failed.get();
+	}
+
+	/**
+	 * Retrieves the sizes of the tables and computes the footprints of the jobs.
+	 *
+	 * @param jobs
+	 * @throws SQLException
+	 */
+	private void estimateFootprints(List<BatchJob> jobs) throws SQLException {
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				for (BatchJob job : jobs) {
+					ResultSet cnt = st.executeQuery("select count(*) from " + job.getTable());
+					long rows = 0;
+					while (cnt.next()) {
+						rows = cnt.getLong(1);
+					}
+					cnt.close();
+					job.setFootprint(estimateFootprint(rows, job.getAttributes().size()));
+				}
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Runs a job and writes its report.
+	 *
+	 * @param job
+	 * @param index The index of the job in the job list. Used in the name of the report.
+	 */
+	private void runJob(BatchJob job, int index) {
+		Cleaner cleaner = new Cleaner();
+		cleaner.setJdbcUrl(jdbcUrl);
+		cleaner.setTable(job.getTable());
+		for (String attribute : job.getAttributes()) {
+			cleaner.addAttribute(attribute);
+		}
+		cleaner.setEpsilon(job.getEpsilon());
+		if (job.getChunkSize() > 0) {
+			cleaner.setChunks(true);
+			cleaner.setChunkSize(job.getChunkSize());
+		}
+		cleaner.setReportFormat(reportFormat);
+		cleaner.setCompressReport(compressReport);
+		cleaner.setCatalog(catalog);
+
+		long beginning = System.currentTimeMillis();
+		try {
+			cleaner.proceed();
+			long elapsed = System.currentTimeMillis() - beginning;
+			cleaner.saveReport("-" + job.getTable() + "-" + index, elapsed);
+			int found = cleaner.getDependencies() == null ? 0 : cleaner.getDependencies().size();
+			System.out.println(job + ": " + found + " dependencies in " + elapsed + " ms");
+		} catch (Exception ex) {
+			failed.incrementAndGet();
+			System.out.println(job + ": failed (" + ex + ")");
+			logger.log(Level.SEVERE, "job failed: " + job, ex);
+		}
+	}
+
+	public void setReportFormat(String reportFormat) {
+		this.reportFormat = reportFormat;
+	}
+
+	public void setCompressReport(boolean compressReport) {
+		this.compressReport = compressReport;
+	}
+
+	/**
+	 * Sets the catalog shared by the jobs, so the unchanged tables are not processed again.
+	 * <code>null</code> means no catalog.
+	 *
+	 * @param catalog
+	 */
+	public void setCatalog(FdCatalog catalog) {
+		this.catalog = catalog;
+	}
+}
@@ -3,6 +3,9 @@ package ex.tajti.mining;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
@@ -16,12 +19,15 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,7 +45,6 @@ import com.mysql.jdbc.ResultSetMetaData;
 public class Cleaner {
 	private static final Logger logger = Logger.getLogger(Cleaner.class.getSimpleName());
 
-	static SimpleDateFormat format = new SimpleDateFormat("yMd-Hm");
 	/**
 	 * The name of the table the functional dependencies are searched on.
 	 */
@@ -71,7 +76,26 @@ public class Cleaner {
 	/**
 	 * Contains the partitions. Unneeded partitions are deleted.
 	 */
-	private Map<String, Partition> partitions;
+	private PartitionStore partitions;
+
+	/**
+	 * Chooses the partitions multiplied to get a partition that's not stored.
+	 */
+	private ProductPlanner planner;
+
+	/**
+	 * Groups the rows by the packed codes of the base partitions. Created when the first partition
+	 * is computed from the partitions in memory.
+	 */
+	private PackedGrouping grouping;
+
+	/**
+	 * The number of classes (including the stripped ones) of the attribute sets whose errors were
+	 * computed by <code>MultiRhsChecker</code> but whose partitions are not stored.
+	 */
+	private final Map<String, Integer> classCounts = new HashMap<String, Integer>();
+
+	private int packedGroupings;
 
 	/**
 	 * If the number of the rows breaking a dependency divided by the total numkber of rows
@@ -108,20 +132,34 @@ public class Cleaner {
 	private int numberOfRows;
 
 	/**
-	 * Contains the rows breaking dependencies. the keys are the dependencies (represented as <code>String</code>s).
-	 * The values are collections of row ids.
+	 * Contains the rows breaking dependencies. Identical row sets are shared between the dependencies.
+	 */
+	private ViolationStore violations = new ViolationStore();
+
+	/**
+	 * Ranks the rows by the dependencies they break. Created when the number of rows is known.
+	 */
+	private RowScorer scorer;
+
+	/**
+	 * The number of the most suspicious rows listed in the report.
 	 */
-	private Map<String, Collection<Integer>> deletandMap = new HashMap<String, Collection<Integer>>();
+	private int topRows = 20;
 
 	/**
-	 * The number of dependencies checked.
+	 * The number of buckets in the histogram of the row scores.
 	 */
-	public static int dependenciesChecked = 0;
+	private static final int HISTOGRAM_BUCKETS = 10;
 
 	/**
-	 * The number of possible dependencies (<code>possibleDependencies >= checkedDependencies</code>).
+	 * The metrics of the run.
 	 */
-	public static int possibleDependencies = 0;
+	private Metrics metrics = new Metrics();
+
+	/**
+	 * The listeners notified about the progress of the run.
+	 */
+	private List<CleanerListener> listeners = new CopyOnWriteArrayList<CleanerListener>();
 
 	/**
 	 * The samplesize computed based on <code>delta</code> (and other things).
@@ -133,70 +171,485 @@ public class Cleaner {
 	 */
 	private String jdbcDriver;
 
+	/**
+	 * The format of the report: <code>text</code> or <code>json</code>.
+	 */
+	private String reportFormat = "text";
+
+	/**
+	 * If <code>true</code> the report is gzip compressed.
+	 */
+	private boolean compressReport;
+
+	/**
+	 * The job file used in batch mode. <code>null</code> if not in batch mode.
+	 */
+	private String batchFile;
+
+	/**
+	 * The number of jobs running at the same time in batch mode.
+	 */
+	private int batchThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The memory budget (in bytes) shared by the jobs in batch mode.
+	 */
+	private long batchMemory = (long) (Runtime.getRuntime().maxMemory() * 0.75);
+
+	/**
+	 * If <code>true</code> the columns are profiled before the partitions are built (see
+	 * <code>ColumnProfiler</code>).
+	 */
+	private boolean profiling;
+
+	/**
+	 * The constant columns found by profiling. They are left out of the query.
+	 */
+	private List<String> constants = new ArrayList<String>();
+
+	/**
+	 * The key columns found by profiling. They are left out of the query.
+	 */
+	private List<String> keys = new ArrayList<String>();
+
+	/**
+	 * The columns that may determine themselves with the empty set on the left side, found by profiling.
+	 */
+	private List<String> nearConstants = new ArrayList<String>();
+
+	/**
+	 * If the partitions of a level would be bigger than this (in bytes), the dependencies are
+	 * checked in the database from that level. 0 means never.
+	 */
+	private long pushdownThreshold;
+
+	/**
+	 * The first level checked in the database, -1 if every level is checked in memory.
+	 */
+	private int pushdownLevel = -1;
+
+	/**
+	 * The workers holding the shards of the rows. <code>null</code> if the rows are processed in
+	 * this process.
+	 */
+	private List<InetSocketAddress> workers;
+
+	/**
+	 * Checks the dependencies of the current level.
+	 */
+	private DependencyChecker checker;
+
+	/**
+	 * If <code>true</code> the dependencies are found by <code>HybridDiscovery</code>.
+	 */
+	private boolean hybrid;
+
+	/**
+	 * The number of candidates validated and row pairs sampled by the hybrid discovery.
+	 */
+	private int hybridValidations;
+	private int hybridPairs;
+
+	/**
+	 * The number of rows sampled by the pre-check of the candidates, 0 if there is no pre-check.
+	 */
+	private int precheckSampleSize;
+
+	/**
+	 * Rejects the candidates by their error on a sample (see <code>SampleChecker</code>).
+	 * <code>null</code> if there is no pre-check.
+	 */
+	private SampleChecker sampleChecker;
+
+	/**
+	 * The number of candidates rejected by the pre-check.
+	 */
+	private int sampleRejections;
+
+	/**
+	 * The number of candidates decided by the class counts of the partitions without comparing
+	 * their rows (see <code>checkDependency()</code>): rejected by the lower bound of their error or
+	 * found to hold exactly.
+	 */
+	private int boundRejections;
+	private int exactByClassCount;
+
+	/**
+	 * If <code>true</code> the rows are read in chunks sized to fit into the heap budget.
+	 */
+	private boolean adaptiveChunks;
+
+	/**
+	 * The fraction of the heap the partitions may occupy. The partitions above it are spilled to
+	 * disk. 0 means no limit.
+	 */
+	private double heapFraction;
+
+	/**
+	 * The heap fraction used by the adaptive chunks if no fraction is set.
+	 */
+	private static final double DEFAULT_HEAP_FRACTION = 0.5;
+
+	/**
+	 * The size of the first chunk in adaptive mode.
+	 */
+	private static final int INITIAL_CHUNK_SIZE = 10000;
+
+	/**
+	 * The smallest chunk in adaptive mode.
+	 */
+	private static final int MIN_CHUNK_SIZE = 1000;
+
+	/**
+	 * The cache of the base partitions shared between runs. <code>null</code> if the partitions
+	 * are always read from the database.
+	 */
+	private PartitionCache partitionCache;
+
+	/**
+	 * The port of the HTTP endpoint in server mode. -1 if not in server mode.
+	 */
+	private int serverPort = -1;
+
+	/**
+	 * The capacity of the partition cache (in bytes) in server mode.
+	 */
+	private long cacheMemory = (long) (Runtime.getRuntime().maxMemory() * 0.5);
+
+	/**
+	 * The time to live of the cached partitions (in milliseconds) in server mode. 0 means no limit.
+	 */
+	private long cacheTimeToLive;
+
+	/**
+	 * The time (see <code>System.currentTimeMillis()</code>) after which no more dependencies are
+	 * checked. 0 means no deadline.
+	 */
+	private long deadline;
+
+	/**
+	 * The maximal size of the left sides checked. Negative means no limit.
+	 */
+	private int maxLhsSize = -1;
+
+	/**
+	 * The maximal estimated size of the partitions and the violating row sets in bytes. 0 means no limit.
+	 */
+	private long maxMemory;
+
+	/**
+	 * The limits of the current run.
+	 */
+	private RunLimits limits;
+
+	/**
+	 * The limit that stopped the run, <code>null</code> if the result is complete.
+	 */
+	private String stoppedBy;
+
+	/**
+	 * The last level processed (fully or partially).
+	 */
+	private int levelReached;
+
+	/**
+	 * The number of dependencies checked by one call of the checker when the run has limits. The
+	 * limits are checked between the calls.
+	 */
+	static final int CHECKS_PER_LIMIT_CHECK = 256;
+
+	/**
+	 * The catalog of the dependencies found by earlier runs. <code>null</code> means no catalog.
+	 */
+	private FdCatalog catalog;
+
+	/**
+	 * The column identifying the rows of the table. <code>null</code> if there's no such column.
+	 */
+	private String keyColumn;
+
+	/**
+	 * The column receiving the number of dependencies broken by the rows (see <code>writeFlags()</code>).
+	 */
+	private String flagColumn;
+
+	/**
+	 * The column receiving the scores of the rows, <code>null</code> if the scores are not written back.
+	 */
+	private String scoreColumn;
+
+	private int flagBatchSize = FlagWriter.BATCH_SIZE;
+
+	/**
+	 * The file receiving the values of the violating rows (see <code>exportViolations()</code>).
+	 * <code>null</code> if they are not exported.
+	 */
+	private File exportFile;
+
+	private int exportBatchSize = ViolationExporter.BATCH_SIZE;
+
+	private int exportConnections = ViolationExporter.CONNECTIONS;
+
+	private int rowsExported = -1;
+
+	/**
+	 * The keys of the rows, read with the rows if the key column is set. <code>null</code> if there's
+	 * no key column.
+	 */
+	private RowKeys rowKeys;
+
+	private int rowsFlagged = -1;
+
+	/**
+	 * How the catalog was used by the last run: "hit", "validated" or "miss".
+	 */
+	private String catalogStatus;
+
+	public Cleaner() {
+	}
+
+	/**
+	 * Creates a cleaner running <code>config</code>.
+	 *
+	 * @param config
+	 */
+	Cleaner(CleanerConfig config) {
+		jdbcUrl = config.getJdbcUrl();
+		table = config.getTable();
+		attributes = new ArrayList<String>(config.getAttributes());
+		epsilon = config.getEpsilon();
+		delta = config.getDelta();
+		sampled = config.isSampled();
+		chunks = config.getChunkSize() > 0 || config.isAdaptiveChunks();
+		chunkSize = config.getChunkSize();
+		adaptiveChunks = config.isAdaptiveChunks();
+		heapFraction = config.getHeapFraction();
+		pushdownThreshold = config.getPushdownThreshold();
+		workers = config.getWorkers();
+		profiling = config.isProfiling();
+		hybrid = config.isHybrid();
+		precheckSampleSize = config.getPrecheckSampleSize();
+		topRows = config.getTopRows();
+		violations.setSpillThreshold(config.getViolationSpillThreshold());
+		deadline = config.getTimeLimit() > 0 ? System.currentTimeMillis() + config.getTimeLimit() : 0;
+		maxLhsSize = config.getMaxLhsSize();
+		maxMemory = config.getMaxMemory();
+		partitionCache = config.getPartitionCache();
+		catalog = config.getCatalog();
+		keyColumn = config.getKeyColumn();
+		flagColumn = config.getFlagColumn();
+		scoreColumn = config.getScoreColumn();
+		flagBatchSize = config.getFlagBatchSize();
+		exportFile = config.getExportFile();
+		exportBatchSize = config.getExportBatchSize();
+		exportConnections = config.getExportConnections();
+	}
+
 	/**
 	 * Removes the partitions that are not needed at level <code>levelNumber</code>.
 	 *
 	 * @param levelNumber
 	 */
 	private void cleanPartitions(int levelNumber) {
-		for (Iterator<Entry<String, Partition>> it = partitions.entrySet().iterator(); it.hasNext();) {
-			Entry<String, Partition> entry = it.next();
-
-			String key = entry.getKey();
-			// TODO: possible npe
-			int levelOfPartition = entry.getValue().getLevel();
+		int evicted = 0;
+		for (String key : partitions.keySet()) {
+			int levelOfPartition = Partition.getLevelNumber(key);
 			if (levelOfPartition != 0 && levelOfPartition + 1 < levelNumber - 1) {
 				logger.info("cleaning up partition for " + key);
+				partitions.remove(key);
+				++evicted;
+			}
+		}
+		for (Iterator<String> it = classCounts.keySet().iterator(); it.hasNext();) {
+			int levelOfSet = Partition.getLevelNumber(it.next());
+			if (levelOfSet + 1 < levelNumber - 1) {
 				it.remove();
 			}
 		}
+		metrics.recordEvictions(levelNumber, evicted);
 	}
 
 	/**
-	 * Sorts the partitions corresponding to base attributes.
+	 * Records the estimated size of the partitions held in memory at the moment.
+	 *
+	 * @param levelNumber
+	 */
+	private void recordPartitionBytes(int levelNumber) {
+		metrics.recordPartitionBytes(levelNumber, partitions.getMemoryBytes());
+	}
+
+	/**
+	 * Sorts the attributes in descending order of the number of equivalence classes of their
+	 * partitions. The attribute sets are built from left to right, so the prefixes, which are
+	 * multiplied first, consist of the attributes with the most (and smallest) classes and their
+	 * stripped partitions stay small.
 	 */
 	private void sortBasePartitions() {
 		Collections.sort(attributes, new Comparator<String>() {
 
 			@Override
 			public int compare(String o1, String o2) {
-				Partition part1 = partitions.get(o1);
-				Partition part2 = partitions.get(o2);
-
-				// descending order based on the number of equivalence classes
-				return part1.getNumberOfClasses() - part2.getNumberOfClasses();
+				return checker.getNumberOfClasses(o2) - checker.getNumberOfClasses(o1);
 			}
 		});
+		planner = new ProductPlanner(attributes);
 	}
 
 	/**
-	 * Writes the results to a file in the reports directory (relative to the current working
-	 * directory.
+	 * Writes <code>content</code> to a file in the reports directory (relative to the current working
+	 * directory. The name of the file is <code>name-date.extension</code>.
 	 *
-	 * @param builder
+	 * @param name
+	 * @param extension
+	 * @param content
 	 */
-	private static void serializeResults(StringBuilder builder) {
+	private static void serializeResults(String name, String extension, CharSequence content) {
 		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(reportFile(name, extension));
+			out.write(content.toString().getBytes());
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, null, ex);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ex) {
+					logger.log(Level.SEVERE, null, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a new file in the reports directory (relative to the current working directory).
+	 * The name of the file is <code>name-date.extension</code>.
+	 *
+	 * @param name
+	 * @param extension
+	 * @return
+	 */
+	private static File reportFile(String name, String extension) {
 		File f = new File("reports");
 		if (!f.exists()) {
 			f.mkdir();
 		}
-		try {
 
-			String file = "reports/report-" + format.format(new Date()) + ".report";
-			out = new FileOutputStream(file);
-			out.write(builder.toString().getBytes());
+		// SimpleDateFormat is not thread-safe, runs in the same JVM mustn't share it
+		String date = new SimpleDateFormat("yMd-Hm").format(new Date());
+		return new File(f, name + "-" + date + "." + extension);
+	}
+
+	/**
+	 * Returns the statistics of the run in the order they appear in the reports.
+	 *
+	 * @param elapsedMillis
+	 * @return
+	 */
+	public Map<String, Object> getStatistics(long elapsedMillis) {
+		Map<String, Object> statistics = new LinkedHashMap<String, Object>();
+		statistics.put("Time elapsed", elapsedMillis);
+		statistics.put("Number of rows", numberOfRows);
+		statistics.put("Sample size", sampled ? (Object) sampleSize : "not sampled");
+		statistics.put("Chunk size", adaptiveChunks ? "adaptive, last: " + chunkSize : chunks ? (Object) chunkSize : "not chunked");
+		statistics.put("Table", table);
+		statistics.put("Attribute count", attributes.size());
+		if (heapFraction > 0) {
+			statistics.put("Partitions spilled", partitions == null ? 0 : partitions.getSpills());
+			statistics.put("Partitions read back", partitions == null ? 0 : partitions.getLoads());
+		}
+		if (pushdownThreshold > 0) {
+			statistics.put("Pushdown from level", pushdownLevel < 0 ? "not used" : (Object) pushdownLevel);
+		}
+		if (profiling) {
+			statistics.put("Constant attributes", constants);
+			statistics.put("Key attributes", keys);
+		}
+		if (keyColumn != null) {
+			statistics.put("Key column", keyColumn);
+		}
+		if (rowsFlagged >= 0) {
+			statistics.put("Rows flagged", rowsFlagged);
+		}
+		if (rowsExported >= 0) {
+			statistics.put("Rows exported", rowsExported);
+		}
+		if (catalog != null) {
+			statistics.put("FD catalog", catalogStatus == null ? "not used" : catalogStatus);
+		}
+		if (limits != null || stoppedBy != null) {
+			statistics.put("Partial result", stoppedBy == null ? "no" : "yes, stopped by the " + stoppedBy);
+			statistics.put("Level reached", levelReached);
+		}
+		if (hybrid) {
+			statistics.put("Hybrid discovery", hybridValidations + " validations, " + hybridPairs + " sampled pairs");
+		}
+		if (checker instanceof PartitionChecker) {
+			statistics.put("Decided by class counts", boundRejections + " rejected, " + exactByClassCount + " exact");
+		}
+		if (precheckSampleSize > 0) {
+			statistics.put("Rejected by sample", sampleChecker == null ? "not used" : sampleRejections + " candidates, "
+				+ sampleChecker.getSampleSize() + " rows sampled");
+		}
+		statistics.put("Epsilon", epsilon);
+		statistics.put("Delta", delta);
+		statistics.put("Possible dependencies", metrics.getPossibleDependencies());
+		statistics.put("Dependencies checked", metrics.getDependenciesChecked());
+		statistics.put("Dependencies found", dependencies == null ? 0 : dependencies.size());
+		statistics.put("Products computed", metrics.getProductsComputed());
+		statistics.put("Packed groupings", packedGroupings);
+		statistics.put("Product cost", metrics.getProductCost());
+		statistics.put("Peak partition bytes", metrics.getPeakPartitionBytes());
+
+		return statistics;
+	}
+
+	/**
+	 * Streams the statistics, the dependencies and the rows breaking them to <code>writer</code>.
+	 * The writer is not closed.
+	 *
+	 * @param writer
+	 * @param elapsedMillis
+	 * @throws IOException
+	 */
+	public void writeReport(ReportWriter writer, long elapsedMillis) throws IOException {
+		writer.setRowKeys(rowKeys);
+		writer.writeHeader(getStatistics(elapsedMillis));
+		if (dependencies != null) {
+			for (String dep : dependencies) {
+				writer.writeDependency(dep, violations.get(dep));
+			}
+		}
+		if (topRows > 0 && scorer != null) {
+			writer.writeRanking(scorer.top(topRows), scorer.histogram(HISTOGRAM_BUCKETS), scorer.getMaxScore());
+		}
+	}
+
+	/**
+	 * Writes the report and the metrics of the run to the reports directory. The names of the
+	 * files are <code>report[suffix]-date</code> and <code>metrics[suffix]-date</code>.
+	 *
+	 * @param suffix
+	 * @param elapsedMillis
+	 */
+	public void saveReport(String suffix, long elapsedMillis) {
+		ReportWriter writer = null;
+		try {
+			String extension = ReportWriter.extension(reportFormat) + (compressReport ? ".gz" : "");
+			writer = ReportWriter.create(reportFormat, reportFile("report" + suffix, extension), compressReport);
+			writeReport(writer, elapsedMillis);
 		} catch (IOException ex) {
 			logger.log(Level.SEVERE, null, ex);
 		} finally {
-			if (out != null) {
+			if (writer != null) {
 				try {
-					out.close();
+					writer.close();
 				} catch (IOException ex) {
 					logger.log(Level.SEVERE, null, ex);
 				}
 			}
 		}
+		serializeResults("metrics" + suffix, "json", metrics.toJson());
 	}
 
 	//
@@ -206,7 +659,11 @@ public class Cleaner {
 	/**
 	 * Builds a query bassed on the tablename and the names of the attributes. Incremental
 	 * processing (that is, processing the rows in chunks) is only supported for mysql.
-	 *
+	 * <br/>
+	 * If the key column is set, the rows are ordered by it. The row IDs are the positions of the
+	 * rows in the result, so every query reading the rows or their keys (chunks, shards, the scans
+	 * of the database checks) must see them in the same order; without an <code>order by</code>
+	 * the database may return them in the order of any index.
 	 *
 	 * @return The query.
 	 */
@@ -224,6 +681,9 @@ public class Cleaner {
 		}
 		builder.deleteCharAt(builder.length() - 1);
 		builder.append(" from ").append(table);
+		if (keyColumn != null) {
+			builder.append(" order by ").append(keyColumn);
+		}
 
 		// TODO: more sophisticated sample handling
 		if (!chunks && sampled && sampleSize < numberOfRows) {
@@ -232,6 +692,20 @@ public class Cleaner {
 		return builder.toString();
 	}
 
+	/**
+	 * Adds the key column to <code>query</code> as the last column if it's set.
+	 *
+	 * @param query A query built by <code>createQuery()</code>.
+	 * @return
+	 */
+	private String withKey(String query) {
+		if (keyColumn == null) {
+			return query;
+		}
+		int from = query.indexOf(" from ");
+		return query.substring(0, from) + "," + keyColumn + query.substring(from);
+	}
+
 	/**
 	 * @param firstRow
 	 * @param rowNumber
@@ -249,32 +723,67 @@ public class Cleaner {
 	 * @throws java.sql.SQLException
 	 */
 	private void createPartitions() throws SQLException {
+		// a sample contains different rows on every run, so it's never cached
+		boolean cacheable = partitionCache != null && !sampled;
+		if (cacheable) {
+			PartitionCache.Snapshot snapshot = partitionCache.get(jdbcUrl, table, attributes, keyColumn, profiling);
+			if (snapshot != null) {
+				logger.info("using the cached partitions of " + table);
+				numberOfRows = snapshot.getNumberOfRows();
+				rowKeys = snapshot.getRowKeys();
+				Map<String, Partition> base = snapshot.getPartitions(attributes);
+				if (profiling) {
+					profilePartitions(base, snapshot);
+				}
+				partitions = createStore(base);
+				return;
+			}
+		}
+
 		Connection conn = null;
 		Statement st = null;
 		try {
 			conn = DriverManager.getConnection(jdbcUrl);
 			numberOfRows = retreiveTableSize(conn);
+			if (profiling) {
+				profileColumns(conn);
+			}
 			st = conn.createStatement();
 
-			String query = chunks ? createQuery(0, chunkSize) : createQuery();
-
-			ResultSet results = st.executeQuery(query);
-			Partitioner partitioner = new Partitioner(results);
-			partitioner.partition();
-
-			partitions = partitioner.getPartitions();
-			if (chunks) {
-				int size = sampled ? sampleSize : numberOfRows;
-				for (int i = chunkSize; i <= size; i += chunkSize) {
-					results = st.executeQuery(createQuery(i, chunkSize));
-					partitioner = new Partitioner(results);
-					partitioner.partition(i);
-					Map<String, Partition> partitionsofit = partitioner.getPartitions();
-					for (String key : partitionsofit.keySet()) {
-						Partition newPartition = partitions.get(key).union(partitionsofit.get(key));
-						partitions.put(key, newPartition);
+			Map<String, Partition> base = null;
+			if (adaptiveChunks) {
+				partitions = ingestAdaptively(st);
+				if (cacheable && partitions.getSpills() == 0) {
+					base = new HashMap<String, Partition>();
+					for (String attribute : partitions.keySet()) {
+						base.put(attribute, partitions.get(attribute));
+					}
+				}
+			} else {
+				String query = chunks ? createQuery(0, chunkSize) : createQuery();
+
+				ResultSet results = st.executeQuery(withKey(query));
+				Partitioner partitioner = new Partitioner(results, keyColumn != null);
+				partitioner.partition();
+
+				base = partitioner.getPartitions();
+				rowKeys = partitioner.getRowKeys();
+				if (chunks) {
+					int size = sampled ? sampleSize : numberOfRows;
+					for (int i = chunkSize; i <= size; i += chunkSize) {
+						results = st.executeQuery(withKey(createQuery(i, chunkSize)));
+						partitioner = new Partitioner(results, keyColumn != null);
+						partitioner.partition(i);
+						merge(base, partitioner.getPartitions());
+						mergeKeys(partitioner.getRowKeys());
 					}
 				}
+				partitions = createStore(base);
+			}
+			if (cacheable && base == null) {
+				logger.info("partitions of " + table + " were spilled, they are not cached");
+			} else if (cacheable) {
+				partitionCache.put(jdbcUrl, table, numberOfRows, base, keyColumn, rowKeys, constants, keys);
 			}
 		} catch (SQLException ex) {
 			logger.log(Level.SEVERE, null, ex);
@@ -290,27 +799,168 @@ public class Cleaner {
 	}
 
 	/**
-	 * Returns the number of rows in the table.
+	 * Adds the rows of the partitions of a chunk to the base partitions.
 	 *
-	 * @param conn
-	 * @return
+	 * @param base
+	 * @param chunk
 	 */
-	private int retreiveTableSize(Connection conn) {
-		Statement st = null;
-		int rowNumber = -1;
-		try {
-			st = conn.createStatement();
-			ResultSet cnt = st.executeQuery("select count(*) from " + table);
-			while (cnt.next()) {
-				rowNumber = cnt.getInt(1);
-			}
-		} catch (SQLException ex) {
-			logger.log(Level.SEVERE, null, ex);
-		} finally {
-			if (st != null) {
-				try {
-					st.close();
-				} catch (SQLException ex) {
+	private static void merge(Map<String, Partition> base, Map<String, Partition> chunk) {
+		for (String key : chunk.keySet()) {
+			Partition newPartition = base.get(key).union(chunk.get(key));
+			base.put(key, newPartition);
+		}
+	}
+
+	/**
+	 * Adds the keys of the rows of a chunk to the keys read so far.
+	 *
+	 * @param chunk <code>null</code> if the rows are read without keys.
+	 */
+	private void mergeKeys(RowKeys chunk) {
+		if (rowKeys == null) {
+			rowKeys = chunk;
+		} else if (chunk != null) {
+			rowKeys.append(chunk);
+		}
+	}
+
+	/**
+	 * Reads the keys of the rows if the key column is set and they were not read with the rows (the
+	 * rows were read by the shards or checked in the database). The row IDs are the positions in
+	 * the result of the same query ordered by the key, like in <code>PushdownChecker</code>.
+	 *
+	 * @throws SQLException
+	 */
+	private void readRowKeys() throws SQLException {
+		if (keyColumn == null || rowKeys != null) {
+			return;
+		}
+		String query = createQuery();
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				rowKeys = RowKeys.read(st.executeQuery("select " + keyColumn + query.substring(query.indexOf(" from "))));
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Reads the rows in chunks whose size is adapted to the heap budget. Every chunk is merged into
+	 * the base partitions in a store having the budget, so the base partitions that don't fit are
+	 * spilled while the rows are read, and only one of them is read back at a time to merge the
+	 * next chunk into it. The bytes needed by a row are estimated from the partitions built so
+	 * far, and the next chunk is as big as half of the budget allows, less the largest base
+	 * partition and its merged copy. The bytes of a chunk are reserved in the store while it's
+	 * read and merged, so the store spills to make room for it. A chunk is at most four times
+	 * bigger than the previous one and at least <code>MIN_CHUNK_SIZE</code> rows.
+	 *
+	 * @param st
+	 * @return The store of the base partitions.
+	 * @throws SQLException
+	 * @throws IllegalStateException if a base partition alone doesn't fit into the budget.
+	 */
+	private PartitionStore ingestAdaptively(Statement st) throws SQLException {
+		chunks = true;
+		long budget = heapBudget();
+		PartitionStore store = new PartitionStore(budget);
+		int size = sampled ? sampleSize : numberOfRows;
+		int chunk = INITIAL_CHUNK_SIZE;
+		int first = 0;
+		long chunkBytes = 0;
+		while (true) {
+			store.reserve(chunkBytes);
+			Partitioner partitioner = new Partitioner(st.executeQuery(withKey(createQuery(first, chunk))), keyColumn != null);
+			partitioner.partition(first);
+			mergeKeys(partitioner.getRowKeys());
+			if (first == 0) {
+				// the sample size is known only after the first query
+				size = sampled ? sampleSize : numberOfRows;
+			}
+			int read = partitioner.getNumberOfRows() - first;
+			long bytes = 0;
+			long largest = 0;
+			for (Map.Entry<String, Partition> entry : partitioner.getPartitions().entrySet()) {
+				Partition merged = entry.getValue();
+				if (first > 0) {
+					merged = store.get(entry.getKey()).union(merged);
+				}
+				long partitionBytes = merged.estimateBytes();
+				if (partitionBytes > budget) {
+					throw new IllegalStateException("the partition of " + entry.getKey() + " needs " + partitionBytes
+						+ " bytes after " + (first + read) + " rows, more than the heap budget of " + budget + " bytes");
+				}
+				store.put(entry.getKey(), merged);
+				bytes += partitionBytes;
+				largest = Math.max(largest, partitionBytes);
+			}
+			store.reserve(-chunkBytes);
+			chunkSize = chunk;
+			first += read;
+			if (read < chunk || first >= size) {
+				break;
+			}
+
+			double bytesPerRow = (double) bytes / first;
+			long next = (long) ((budget - 2 * largest) / (2 * bytesPerRow));
+			chunk = (int) Math.max(MIN_CHUNK_SIZE, Math.min(next, Math.min(4L * chunk, Integer.MAX_VALUE)));
+			chunkBytes = (long) (chunk * bytesPerRow);
+			logger.info(first + " rows read, " + bytes + " bytes (" + (int) bytesPerRow + " bytes per row), "
+				+ store.getSpills() + " spills, next chunk: " + chunk);
+		}
+
+		return store;
+	}
+
+	/**
+	 * Returns the number of bytes the partitions may occupy.
+	 *
+	 * @return
+	 */
+	private long heapBudget() {
+		return (long) (Runtime.getRuntime().maxMemory() * (heapFraction > 0 ? heapFraction : DEFAULT_HEAP_FRACTION));
+	}
+
+	/**
+	 * Creates the store of the partitions of the run. If a heap fraction is set or the chunks are
+	 * adapted to the heap (which uses the default fraction), the store spills the partitions that
+	 * don't fit into the budget.
+	 *
+	 * @param base
+	 * @return
+	 */
+	private PartitionStore createStore(Map<String, Partition> base) {
+		PartitionStore store = heapFraction > 0 || adaptiveChunks ? new PartitionStore(heapBudget()) : new PartitionStore();
+		store.putAll(base);
+		return store;
+	}
+
+	/**
+	 * Returns the number of rows in the table.
+	 *
+	 * @param conn
+	 * @return
+	 */
+	private int retreiveTableSize(Connection conn) {
+		Statement st = null;
+		int rowNumber = -1;
+		try {
+			st = conn.createStatement();
+			ResultSet cnt = st.executeQuery("select count(*) from " + table);
+			while (cnt.next()) {
+				rowNumber = cnt.getInt(1);
+			}
+		} catch (SQLException ex) {
+			logger.log(Level.SEVERE, null, ex);
+		} finally {
+			if (st != null) {
+				try {
+					st.close();
+				} catch (SQLException ex) {
 					logger.log(Level.SEVERE, null, ex);
 				}
 			}
@@ -318,6 +968,96 @@ public class Cleaner {
 		return rowNumber;
 	}
 
+	/**
+	 * Profiles the columns in one pass and leaves the keys and the constants out of
+	 * <code>attributes</code>. Keys and constants are confirmed exactly: a column is a key if the
+	 * database counts as many distinct values as rows, and constant if every profiled row has the
+	 * same value.
+	 *
+	 * @param conn
+	 * @throws SQLException
+	 */
+	private void profileColumns(Connection conn) throws SQLException {
+		ColumnProfiler profiler = new ColumnProfiler();
+		Statement st = conn.createStatement();
+		try {
+			profiler.profile(st.executeQuery(createQuery()));
+			for (String attribute : attributes) {
+				if (profiler.isConstant(attribute)) {
+					constants.add(attribute);
+				} else if (profiler.isNearKey(attribute) && countDistinct(st, attribute) == numberOfRows) {
+					keys.add(attribute);
+				} else if (profiler.isNearConstant(attribute, epsilon)) {
+					nearConstants.add(attribute);
+				}
+			}
+		} finally {
+			st.close();
+		}
+		logger.info("constants: " + constants + ", keys: " + keys + ", near constants: " + nearConstants);
+		attributes.removeAll(constants);
+		attributes.removeAll(keys);
+	}
+
+	/**
+	 * Profiles the columns from their cached base partitions, so a run using the cache gives the
+	 * same answer as one reading the table. The partitions are exact: a column is constant if it
+	 * has one class, a key if every row has its own non-null value. The columns left out by the
+	 * profiling run that took the snapshot have no partitions; they are taken from its profile.
+	 *
+	 * @param base The cached partitions of the attributes. The partitions of the keys and the
+	 * constants are removed.
+	 * @param snapshot
+	 */
+	private void profilePartitions(Map<String, Partition> base, PartitionCache.Snapshot snapshot) {
+		for (String attribute : attributes) {
+			if (snapshot.getConstants().contains(attribute)) {
+				constants.add(attribute);
+				continue;
+			}
+			if (snapshot.getKeys().contains(attribute)) {
+				keys.add(attribute);
+				continue;
+			}
+			List<EquivalenceClass<Object, Integer>> classes = base.get(attribute).getClasses();
+			int largest = 0;
+			boolean hasNull = false;
+			for (EquivalenceClass<Object, Integer> clazz : classes) {
+				largest = Math.max(largest, clazz.getRows().size());
+				hasNull |= clazz.getClassifier() == null;
+			}
+			if (numberOfRows > 0 && largest == numberOfRows) {
+				constants.add(attribute);
+			} else if (classes.size() == numberOfRows && !hasNull) {
+				keys.add(attribute);
+			} else if (largest >= (1 - epsilon) * numberOfRows) {
+				nearConstants.add(attribute);
+			}
+		}
+		logger.info("constants: " + constants + ", keys: " + keys + ", near constants: " + nearConstants);
+		attributes.removeAll(constants);
+		attributes.removeAll(keys);
+		base.keySet().retainAll(attributes);
+	}
+
+	/**
+	 * Returns the number of distinct values of <code>attribute</code> in the table.
+	 *
+	 * @param st
+	 * @param attribute
+	 * @return
+	 * @throws SQLException
+	 */
+	private int countDistinct(Statement st, String attribute) throws SQLException {
+		ResultSet cnt = st.executeQuery("select count(distinct " + attribute + ") from " + table);
+		int distinct = -1;
+		while (cnt.next()) {
+			distinct = cnt.getInt(1);
+		}
+		cnt.close();
+		return distinct;
+	}
+
 	/**
 	 * Generates the left-sides to check on the next level based on the attributes and attibute sets
 	 * in <code>level</code>. Attribute sets are represented as strings in this format: attr1:attr2:attr3.
@@ -349,6 +1089,7 @@ public class Cleaner {
 
 		// other cases
 		Map<String, List<String>> blocks = prefixBlocks(level, levelNumber);
+		Set<String> levelSets = new HashSet<String>(level);
 
 		for (Map.Entry<String, List<String>> entry : blocks.entrySet()) {
 			List<String> suffixes = entry.getValue();
@@ -361,13 +1102,8 @@ public class Cleaner {
 					String[] parts = candidate.split(":");
 					boolean containsAll = true;
 					for (String part : parts) {
-						String newCandidate = null;
-						if (candidate.endsWith(part)) {
-							newCandidate = candidate.replace(":" + part, "");
-						} else {
-							newCandidate = candidate.replace(part + ":", "");
-						}
-						if (!level.contains(newCandidate)) {
+						String newCandidate = attributeListMinusAttribute(candidate, part);
+						if (!levelSets.contains(newCandidate)) {
 							containsAll = false;
 							break;
 						}
@@ -427,34 +1163,500 @@ public class Cleaner {
 	}
 
 	/**
-	 * The main algorithm.
+	 * Estimates the size of <code>attributeSets</code> partitions in bytes.
+	 *
+	 * @param attributeSets
+	 * @return
+	 */
+	private long estimatePartitionBytes(int attributeSets) {
+		return (long) attributeSets * numberOfRows * BatchRunner.BYTES_PER_CELL;
+	}
+
+	/**
+	 * Retrieves the size of the table and decides whether the base partitions fit into the
+	 * pushdown threshold. If they don't, the dependencies are checked in the database from the
+	 * first level and no partition is built.
+	 *
+	 * @return <code>true</code> if the dependencies are checked in the database from the first level.
+	 * @throws SQLException
+	 */
+	private boolean prepareForPushdown() throws SQLException {
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			numberOfRows = retreiveTableSize(conn);
+		} finally {
+			conn.close();
+		}
+		if (estimatePartitionBytes(attributes.size()) <= pushdownThreshold) {
+			return false;
+		}
+
+		logger.info("the base partitions would not fit into " + pushdownThreshold + " bytes, checking in the database");
+		partitions = createStore(Collections.<String, Partition>emptyMap());
+		createQuery(); // computes the sample size
+		usePushdown(1);
+		((PushdownChecker) checker).countDistinct(attributes);
+		return true;
+	}
+
+	/**
+	 * Makes the workers read one shard of the rows each. The rows are checked by the workers, no
+	 * partition is built in this process.
+	 * <br/>
+	 * The shards are consecutive ranges of the rows in the order of the scan, so the row IDs of
+	 * the workers are the positions in the scan. If the key column is set, the keys are read first
+	 * and a shard is a key range; otherwise the rows are ordered by all the attributes, so the
+	 * rows a shard can get instead of each other have the same values.
+	 *
+	 * @throws SQLException
+	 */
+	private void loadShards() throws SQLException {
+		if (sampled) {
+			logger.warning("sampling is not supported with workers, every row is processed");
+			sampled = false;
+		}
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			numberOfRows = retreiveTableSize(conn);
+		} finally {
+			conn.close();
+		}
+		partitions = createStore(Collections.<String, Partition>emptyMap());
+
+		ShardCoordinator coordinator;
+		try {
+			coordinator = new ShardCoordinator(workers, epsilon, metrics);
+		} catch (IOException ex) {
+			throw new SQLException("cannot connect to the workers", ex);
+		}
+		int shards = coordinator.getNumberOfWorkers();
+		String[] queries = new String[shards];
+		int[] firstRows = new int[shards];
+		try {
+			if (keyColumn != null) {
+				readRowKeys();
+				numberOfRows = rowKeys.size();
+			}
+			int shardSize = (numberOfRows + shards - 1) / shards;
+			for (int i = 0; i < shards; i++) {
+				firstRows[i] = Math.min(i * shardSize, numberOfRows);
+				if (keyColumn != null) {
+					int next = Math.min(firstRows[i] + shardSize, numberOfRows);
+					queries[i] = keyRangeQuery(firstRows[i] < numberOfRows ? firstRows[i] : -1, next < numberOfRows ? next : -1);
+				} else {
+					StringBuilder order = new StringBuilder(createQuery()).append(" order by ");
+					for (String attribute : attributes) {
+						order.append(attribute).append(",");
+					}
+					order.deleteCharAt(order.length() - 1);
+					queries[i] = order.append(" limit ").append(firstRows[i]).append(", ").append(shardSize).toString();
+				}
+			}
+
+			numberOfRows = coordinator.load(jdbcUrl, queries, firstRows);
+			coordinator.countDistinct(attributes);
+		} catch (IOException ex) {
+			coordinator.close();
+			throw new SQLException("cannot load the shards", ex);
+		} catch (SQLException ex) {
+			coordinator.close();
+			throw ex;
+		}
+		checker = coordinator;
+	}
+
+	/**
+	 * Returns the query of the rows whose keys are at least the key of row <code>first</code> and
+	 * less than the key of row <code>next</code>, ordered by the key.
+	 *
+	 * @param first -1 if the range is empty.
+	 * @param next -1 if the range has no upper end.
+	 * @return
+	 */
+	private String keyRangeQuery(int first, int next) {
+		String query = createQuery();
+		int order = query.indexOf(" order by ");
+		StringBuilder builder = new StringBuilder(query.substring(0, order)).append(" where ");
+		if (first < 0) {
+			builder.append("1 = 0");
+		} else {
+			builder.append(keyColumn).append(" >= ").append(keyLiteral(first));
+			if (next >= 0) {
+				builder.append(" and ").append(keyColumn).append(" < ").append(keyLiteral(next));
+			}
+		}
+		return builder.append(query.substring(order)).toString();
+	}
+
+	/**
+	 * Returns the key of <code>row</code> as an SQL literal.
+	 *
+	 * @param row
+	 * @return
+	 */
+	private String keyLiteral(int row) {
+		if (rowKeys.isNumeric()) {
+			return Long.toString(rowKeys.getLong(row));
+		}
+		return "'" + rowKeys.getString(row).replace("\\", "\\\\").replace("'", "''") + "'";
+	}
+
+	/**
+	 * Checks the dependencies in the database from level <code>levelNumber</code>. The partitions
+	 * are not needed any more. The violating rows are identified by their keys if the key column
+	 * is set, so the keys are read first.
+	 *
+	 * @param levelNumber
+	 * @throws SQLException
+	 */
+	private void usePushdown(int levelNumber) throws SQLException {
+		String source = !chunks && sampled && sampleSize < numberOfRows ? "(" + withKey(createQuery()) + ")" : table;
+		readRowKeys();
+		checker = new PushdownChecker(jdbcUrl, source, createQuery(), keyColumn, rowKeys, metrics);
+		pushdownLevel = levelNumber;
+		partitions.clear();
+		grouping = null;
+		classCounts.clear();
+	}
+
+	/**
+	 * The main algorithm. The levels are processed in increasing order. If a limit is set (see
+	 * <code>setDeadline()</code>, <code>setMaxLhsSize()</code> and <code>setMaxMemory()</code>) and
+	 * it's reached, the run stops and the dependencies found so far are kept; <code>isPartial()</code>
+	 * tells whether this happened.
+	 * <br/>
+	 * If a catalog is set (see <code>setCatalog()</code>) and the fingerprint of the table is the
+	 * same as the stored one, the stored dependencies are the result. If the table has changed, the
+	 * stored dependencies are checked first; if all of them still hold and are still minimal, they
+	 * are the result, otherwise the dependencies are discovered again. The changed rows may make
+	 * new dependencies hold, so a validated result is partial and it's not cataloged.
 	 */
 	public void proceed() throws SQLException {
 		int l = 1; // the level
 
-		createPartitions();
+		stoppedBy = null;
+		levelReached = 0;
+		rowKeys = null;
+		limits = deadline > 0 || maxLhsSize >= 0 || maxMemory > 0 ? new RunLimits(deadline, maxLhsSize, maxMemory) : null;
+
+		// a sample contains different rows on every run, so it's never cataloged
+		String catalogKey = null;
+		String fingerprint = null;
+		FdCatalog.Entry cataloged = null;
+		catalogStatus = null;
+		if (catalog != null && !sampled) {
+			catalogKey = FdCatalog.key(jdbcUrl, table, attributes, epsilon, profiling, hybrid);
+			Connection conn = DriverManager.getConnection(jdbcUrl);
+			try {
+				fingerprint = FdCatalog.fingerprint(conn, table, attributes);
+			} finally {
+				conn.close();
+			}
+			cataloged = catalog.get(catalogKey);
+			// the row IDs of an entry stored without the keys cannot be mapped to the rows
+			boolean keysKnown = keyColumn == null || (cataloged != null && keyColumn.equals(cataloged.getKeyColumn()));
+			if (cataloged != null && cataloged.getFingerprint().equals(fingerprint) && keysKnown) {
+				logger.info(table + " hasn't changed, using the cataloged dependencies");
+				catalogStatus = "hit";
+				numberOfRows = cataloged.getNumberOfRows();
+				rowKeys = cataloged.getRowKeys();
+				scorer = new RowScorer(numberOfRows);
+				for (Entry<String, RowBitmap> entry : cataloged.getDependencies().entrySet()) {
+					acceptDependency(entry.getKey(), entry.getValue(), Partition.getLevelNumber(entry.getKey()) + 2);
+				}
+				metrics.commitRunEvent(table);
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		checker = new PartitionChecker();
+		if (workers != null) {
+			loadShards();
+		} else if (pushdownThreshold <= 0 || !prepareForPushdown()) {
+			createPartitions();
+		}
+		metrics.recordIngest(System.nanoTime() - start);
+		recordPartitionBytes(0);
+		scorer = new RowScorer(numberOfRows);
 		sortBasePartitions();
+		sampleChecker = null;
+		sampleRejections = 0;
+		boundRejections = 0;
+		exactByClassCount = 0;
+		if (precheckSampleSize > 0 && checker instanceof PartitionChecker) {
+			sampleChecker = new SampleChecker(attributes, partitions, precheckSampleSize);
+		}
 
+		// the keys are pruned after the first level, with their dependencies
 		List<String> level = new ArrayList<String>(attributes);
-		for (Iterator<String> it = level.iterator(); it.hasNext();) {
-			String att = it.next();
-			if (partitions.get(att).getNumberOfClasses() == numberOfRows) {
-				it.remove();
-			}
-		}
 
 		List<String> candidates = new ArrayList<String>();
 		candidates.addAll(level);
 		candidateLists = new HashMap<String, List<String>>();
 		candidateLists.put("", candidates);
+		computeConstantDependencies(candidates);
+
+		if (cataloged != null) {
+			if (validateCataloged(cataloged)) {
+				// new minimal dependencies are not looked for, so the result is not cataloged
+				catalogStatus = "validated";
+				stoppedBy = "validation of the cataloged dependencies";
+				level = null;
+			} else {
+				logger.info("the cataloged dependencies of " + table + " don't hold or are not minimal any more, discovering them again");
+				catalogStatus = "miss";
+			}
+		} else if (catalogKey != null) {
+			catalogStatus = "miss";
+		}
+
+		if (hybrid && level != null) {
+			if (checker instanceof PartitionChecker && level.size() <= HybridDiscovery.MAX_ATTRIBUTES) {
+				discoverHybrid(level, candidates);
+				level = null;
+			} else {
+				logger.warning("the hybrid discovery needs the partitions in memory and at most " + HybridDiscovery.MAX_ATTRIBUTES
+					+ " attributes, using the level-wise traversal");
+			}
+		}
 
 		while (level != null && level.size() != 0) {
+			if (limits != null) {
+				if (!limits.allowsLhsSize(l - 1)) {
+					stoppedBy = "left side size limit";
+				} else {
+					stoppedBy = limits.reached(memoryBytes());
+				}
+				if (stoppedBy != null) {
+					logger.info("stopping before level " + l + ", the " + stoppedBy + " is reached");
+					break;
+				}
+			}
+			levelReached = l;
+			long levelStart = System.currentTimeMillis();
+			if (workers == null && pushdownLevel < 0 && pushdownThreshold > 0 && estimatePartitionBytes(level.size()) > pushdownThreshold) {
+				logger.info("the partitions of level " + l + " would not fit into " + pushdownThreshold + " bytes, checking in the database");
+				usePushdown(l);
+			}
 			computeDependencies(level, l);
+			if (stoppedBy != null) {
+				logger.info("stopping at level " + l + ", the " + stoppedBy + " is reached");
+				metrics.commitLevelEvent(l);
+				fireLevelFinished(l, 0, System.currentTimeMillis() - levelStart);
+				break;
+			}
+			recordPartitionBytes(l);
 			cleanPartitions(l);
-			level = prune(level);
+			start = System.nanoTime();
+			level = prune(level, l);
 			level = generateNextLevel(level, l);
+			metrics.recordLevelGeneration(l, System.nanoTime() - start);
+			metrics.commitLevelEvent(l);
+			fireLevelFinished(l, level == null ? 0 : level.size(), System.currentTimeMillis() - levelStart);
 			l++;
 		}
+		if (checker instanceof ShardCoordinator) {
+			((ShardCoordinator) checker).close();
+		}
+		readRowKeys();
+		if (catalogKey != null && stoppedBy == null) {
+			Map<String, RowBitmap> found = new LinkedHashMap<String, RowBitmap>();
+			if (dependencies != null) {
+				for (String dep : dependencies) {
+					found.put(dep, violations.get(dep));
+				}
+			}
+			try {
+				catalog.put(catalogKey, new FdCatalog.Entry(fingerprint, numberOfRows, found, keyColumn, rowKeys));
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "cannot store the dependencies of " + table + " in the catalog", ex);
+			}
+		}
+		metrics.commitRunEvent(table);
+	}
+
+	/**
+	 * Writes the number of dependencies broken by every row to the flag column of the table, and
+	 * the scores to the score column if it's set (see <code>FlagWriter</code>). Must be called after
+	 * <code>proceed()</code>.
+	 *
+	 * @return The number of rows flagged.
+	 * @throws SQLException
+	 */
+	public int writeFlags() throws SQLException {
+		if (keyColumn == null || flagColumn == null) {
+			throw new IllegalStateException("the key column and the flag column must be set");
+		}
+		if (rowKeys == null) {
+			throw new IllegalStateException("proceed() must be called first");
+		}
+		FlagWriter writer = new FlagWriter(jdbcUrl, table, keyColumn, flagColumn, scoreColumn);
+		writer.setBatchSize(flagBatchSize);
+		rowsFlagged = writer.write(rowKeys, scorer);
+
+		return rowsFlagged;
+	}
+
+	/**
+	 * Writes the values of the rows breaking the dependencies found to the export file (see
+	 * <code>exportViolations(OutputStream)</code>). Must be called after <code>proceed()</code>.
+	 *
+	 * @return The number of rows exported.
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public int exportViolations() throws SQLException, IOException {
+		if (exportFile == null) {
+			throw new IllegalStateException("the export file must be set");
+		}
+		OutputStream out = new FileOutputStream(exportFile);
+		try {
+			return exportViolations(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the values of the rows breaking the dependencies found to <code>out</code>, with the
+	 * rows of their left side classes (see <code>ViolationExporter</code>). Must be called after
+	 * <code>proceed()</code>; needs the key column.
+	 *
+	 * @param out The stream is not closed.
+	 * @return The number of rows exported.
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public int exportViolations(OutputStream out) throws SQLException, IOException {
+		if (keyColumn == null) {
+			throw new IllegalStateException("the key column must be set");
+		}
+		if (rowKeys == null) {
+			throw new IllegalStateException("proceed() must be called first");
+		}
+		ViolationExporter exporter = new ViolationExporter(jdbcUrl, table, keyColumn, attributes);
+		exporter.setBatchSize(exportBatchSize);
+		exporter.setConnections(exportConnections);
+		exporter.open(out, rowKeys);
+		try {
+			if (dependencies != null) {
+				for (String dep : dependencies) {
+					RowBitmap rows = violations.get(dep);
+					if (rows != null && !rows.isEmpty()) {
+						exporter.writeDependency(dep, rows.toIntArray());
+					}
+				}
+			}
+		} finally {
+			exporter.close();
+		}
+		rowsExported = exporter.getRowsExported();
+
+		return rowsExported;
+	}
+
+	/**
+	 * Checks the cataloged dependencies of a changed table. If all of them hold and are still
+	 * minimal (no <code>X\B->A</code> holds), they are accepted with their new violating rows. The
+	 * dependencies with an empty left side are not checked, they are found by profiling again; a
+	 * dependency <code>B->A</code> is not minimal if profiling found <code>->A</code>.
+	 *
+	 * @param cataloged
+	 * @return <code>true</code> if all the dependencies hold and are minimal.
+	 * @throws SQLException if the dependencies are checked in the database and the check fails
+	 */
+	private boolean validateCataloged(FdCatalog.Entry cataloged) throws SQLException {
+		Map<Integer, List<String>> byLevel = new TreeMap<Integer, List<String>>();
+		Map<Integer, List<String>> generalizations = new TreeMap<Integer, List<String>>();
+		for (String dep : cataloged.getDependencies().keySet()) {
+			if (!dep.startsWith("->")) {
+				int levelNumber = Partition.getLevelNumber(dep) + 2;
+				if (!byLevel.containsKey(levelNumber)) {
+					byLevel.put(levelNumber, new ArrayList<String>());
+				}
+				byLevel.get(levelNumber).add(dep);
+
+				String[] lhs = dep.substring(0, dep.indexOf("->")).split(":");
+				String rhs = dep.substring(dep.indexOf("->") + 2);
+				if (lhs.length == 1) {
+					if (dependencies != null && dependencies.contains("->" + rhs)) {
+						return false;
+					}
+					continue;
+				}
+				if (!generalizations.containsKey(levelNumber - 1)) {
+					generalizations.put(levelNumber - 1, new ArrayList<String>());
+				}
+				List<String> sameLevel = generalizations.get(levelNumber - 1);
+				String attributeList = dep.substring(0, dep.indexOf("->"));
+				for (String attribute : lhs) {
+					String generalization = attributeListMinusAttribute(attributeList, attribute) + "->" + rhs;
+					if (!sameLevel.contains(generalization)) {
+						sameLevel.add(generalization);
+					}
+				}
+			}
+		}
+
+		// a smaller left side may determine the right side on the changed rows
+		for (Entry<Integer, List<String>> entry : generalizations.entrySet()) {
+			Map<String, Integer> errors = checker.countViolations(entry.getValue(), entry.getKey());
+			for (String dep : entry.getValue()) {
+				Integer error = errors.get(dep);
+				if (error != null && (double) error / numberOfRows <= epsilon) {
+					logger.info(dep + " holds on the changed rows");
+					return false;
+				}
+			}
+		}
+
+		// the checkers keep the violating rows of the last check only
+		Map<String, Collection<Integer>> rows = new HashMap<String, Collection<Integer>>();
+		for (Entry<Integer, List<String>> entry : byLevel.entrySet()) {
+			Map<String, Integer> errors = checker.countViolations(entry.getValue(), entry.getKey());
+			for (String dep : entry.getValue()) {
+				Integer error = errors.get(dep);
+				if (error == null || (double) error / numberOfRows > epsilon) {
+					return false;
+				}
+			}
+			rows.putAll(checker.getViolatingRows(entry.getValue()));
+		}
+
+		for (Entry<Integer, List<String>> entry : byLevel.entrySet()) {
+			for (String dep : entry.getValue()) {
+				acceptDependency(dep, rows.get(dep), entry.getKey());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the dependencies with <code>HybridDiscovery</code> instead of the level-wise traversal.
+	 *
+	 * @param attributeList The attributes of the left sides (the first level).
+	 * @param candidates The attributes of the right sides.
+	 */
+	private void discoverHybrid(List<String> attributeList, List<String> candidates) {
+		HybridDiscovery discovery = new HybridDiscovery(attributeList, candidates, partitions, numberOfRows, epsilon, metrics);
+		discovery.setLimits(limits);
+		for (Entry<String, Collection<Integer>> entry : discovery.discover().entrySet()) {
+			acceptDependency(entry.getKey(), entry.getValue(), Partition.getLevelNumber(entry.getKey()) + 2);
+		}
+		hybridValidations = discovery.getValidations();
+		hybridPairs = discovery.getSampledPairs();
+		stoppedBy = discovery.getStoppedBy();
+		levelReached = discovery.getLevelReached() + 1;
+	}
+
+	/**
+	 * Returns the estimated size of the partitions and the violating row sets in memory.
+	 *
+	 * @return
+	 */
+	private long memoryBytes() {
+		return partitions.getMemoryBytes() + violations.getMemoryBytes() + (rowKeys == null ? 0 : rowKeys.estimateBytes());
 	}
 
 	/**
@@ -462,8 +1664,9 @@ public class Cleaner {
 	 *
 	 * @param level
 	 * @param levelNumber
+	 * @throws SQLException if the dependencies are checked in the database and the check fails
 	 */
-	private void computeDependencies(List<String> level, int levelNumber) {
+	private void computeDependencies(List<String> level, int levelNumber) throws SQLException {
 		Map<String, List<String>> newCandidates = new HashMap<String, List<String>>();
 
 		// generating candidate sets
@@ -488,81 +1691,452 @@ public class Cleaner {
 		}
 
 		candidateLists = newCandidates;
+		fireLevelStarted(level, levelNumber);
 
 		// dependencies are computed here
+		Map<String, String> checks = new LinkedHashMap<String, String>(); // dependency -> X
 		for (String attributeList : level) { // for X in L
 			List<String> subs = Arrays.asList(attributeList.split(":"));
 			List<String> candidateList = candidateLists.get(attributeList);
 			if (candidateList != null && candidateList.size() > 0) {
 				for (String att : subs) {
-					possibleDependencies++;
+					metrics.recordPossibleDependency(levelNumber);
 
 					if (candidateList.contains(att)) {
-						String dep = attributeListMinusAttribute(attributeList, att) + "->" + att;
-						Collection<Integer> toDelete = checkDependency(dep); // TODO: change string handling
-
-						if (toDelete != null) {
-							int deletand = toDelete.size();
-							if ((double) (deletand) / numberOfRows <= getEpsilon()) { // valid dependency
-								if (dependencies == null) {
-									dependencies = new ArrayList<String>();
-								}
-								dependencies.add(dep);
-								candidateList.remove(att);
-								deletandMap.put(dep, toDelete);
-
-								if (deletand == 0) {
-									for (String attributeInR : attributes) {
-										if (!attributeList.contains(attributeInR)) {
-											candidateList.remove(attributeInR);
-											logger.info("removing attribute from candidate list: " + attributeInR);
-										}
-									}
-								}
-							}
-						}
+						checks.put(attributeListMinusAttribute(attributeList, att) + "->" + att, attributeList);
 					}
 				}
 			}
 		}
 
+		List<String> deps = new ArrayList<String>(checks.keySet());
+		if (sampleChecker != null) {
+			// the rejected candidates are treated as the failed ones: they stay in the candidate lists
+			for (Iterator<String> it = deps.iterator(); it.hasNext();) {
+				if (sampleChecker.rejects(it.next(), epsilon)) {
+					it.remove();
+					++sampleRejections;
+				}
+			}
+		}
+		int sliceSize = limits == null ? Math.max(deps.size(), 1) : CHECKS_PER_LIMIT_CHECK;
+		for (int from = 0; from < deps.size(); from += sliceSize) {
+			if (from > 0 && (stoppedBy = limits.reached(memoryBytes())) != null) {
+				return;
+			}
+			checkDependencies(deps.subList(from, Math.min(from + sliceSize, deps.size())), checks, levelNumber);
+		}
 	}
 
 	/**
-	 * Return the rows that break the dependency <code>dep</code>.
+	 * Checks <code>deps</code> and accepts the valid ones.
+	 *
+	 * @param deps
+	 * @param checks The attribute set of every dependency.
+	 * @param levelNumber
+	 * @throws SQLException if the dependencies are checked in the database and the check fails
+	 */
+	private void checkDependencies(List<String> deps, Map<String, String> checks, int levelNumber) throws SQLException {
+		Map<String, Integer> errors = checker.countViolations(deps, levelNumber);
+		List<String> valid = new ArrayList<String>();
+		for (Entry<String, Integer> entry : errors.entrySet()) {
+			if ((double) (entry.getValue()) / numberOfRows <= getEpsilon()) { // valid dependency
+				valid.add(entry.getKey());
+			}
+		}
+		Map<String, Collection<Integer>> rows = checker.getViolatingRows(valid);
+
+		for (String dep : valid) {
+			String attributeList = checks.get(dep);
+			String att = dep.substring(dep.indexOf("->") + 2);
+			List<String> candidateList = candidateLists.get(attributeList);
+			acceptDependency(dep, rows.get(dep), levelNumber);
+			candidateList.remove(att);
+
+			if (errors.get(dep) == 0) {
+				// holds exactly: R \ X is removed from C+(X)
+				List<String> members = Arrays.asList(attributeList.split(":"));
+				for (Iterator<String> it = candidateList.iterator(); it.hasNext();) {
+					String attributeInR = it.next();
+					if (!members.contains(attributeInR)) {
+						it.remove();
+						logger.info("removing attribute from candidate list: " + attributeInR);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a valid dependency to the result and stores the rows breaking it.
 	 *
 	 * @param dep
+	 * @param toDelete
+	 * @param levelNumber
+	 */
+	private void acceptDependency(String dep, Collection<Integer> toDelete, int levelNumber) {
+		if (dependencies == null) {
+			dependencies = new ArrayList<String>();
+		}
+		dependencies.add(dep);
+		metrics.recordDependencyFound(levelNumber);
+		RowBitmap stored = violations.put(dep, toDelete);
+		scorer.record(stored, RowScorer.weight((double) toDelete.size() / numberOfRows, epsilon));
+		fireDependencyFound(dep, toDelete.size(), stored);
+	}
+
+	/**
+	 * Emits the dependencies with an empty left side found by profiling. The constant columns
+	 * determine themselves without violations. A near constant column is checked on its base
+	 * partition: the rows outside its largest class break the dependency. If it holds, the column
+	 * is removed from <code>candidates</code> (the candidates of the empty set), so it's not
+	 * checked as a right side any more.
+	 *
+	 * @param candidates
+	 */
+	private void computeConstantDependencies(List<String> candidates) {
+		for (String attribute : constants) {
+			acceptDependency("->" + attribute, Collections.<Integer>emptyList(), 0);
+		}
+		for (String attribute : nearConstants) {
+			metrics.recordPossibleDependency(0);
+			Partition partition = partitions.get(attribute);
+			EquivalenceClass<Object, Integer> largest = null;
+			for (EquivalenceClass<Object, Integer> clazz : partition.getClasses()) {
+				if (largest == null || clazz.getRows().size() > largest.getRows().size()) {
+					largest = clazz;
+				}
+			}
+			if (largest == null || (double) (numberOfRows - largest.getRows().size()) / numberOfRows > epsilon) {
+				continue;
+			}
+			List<Integer> toDelete = new ArrayList<Integer>();
+			for (EquivalenceClass<Object, Integer> clazz : partition.getClasses()) {
+				if (clazz != largest) {
+					toDelete.addAll(clazz.getRows());
+				}
+			}
+			acceptDependency("->" + attribute, toDelete, 0);
+			candidates.remove(attribute);
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the processing of <code>level</code> has started.
+	 *
+	 * @param level
+	 * @param levelNumber
+	 */
+	private void fireLevelStarted(List<String> level, int levelNumber) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		int pendingChecks = 0;
+		for (String attributeList : level) {
+			List<String> candidateList = candidateLists.get(attributeList);
+			if (candidateList != null) {
+				for (String att : attributeList.split(":")) {
+					if (candidateList.contains(att)) {
+						++pendingChecks;
+					}
+				}
+			}
+		}
+		for (CleanerListener listener : listeners) {
+			try {
+				listener.levelStarted(levelNumber, level.size(), pendingChecks);
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "listener failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Notifies the listeners about a valid dependency.
+	 *
+	 * @param dep
+	 * @param deletand
+	 * @param rows
+	 */
+	private void fireDependencyFound(String dep, int deletand, RowBitmap rows) {
+		for (CleanerListener listener : listeners) {
+			try {
+				listener.dependencyFound(dep, (double) deletand / numberOfRows, deletand, rows);
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "listener failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the processing of level <code>levelNumber</code> is finished.
+	 *
+	 * @param levelNumber
+	 * @param nextAttributeSets
+	 * @param elapsedMillis
+	 */
+	private void fireLevelFinished(int levelNumber, int nextAttributeSets, long elapsedMillis) {
+		Metrics.LevelMetrics levelMetrics = metrics.level(levelNumber);
+		for (CleanerListener listener : listeners) {
+			try {
+				listener.levelFinished(levelNumber, (int) levelMetrics.getDependenciesChecked(), (int) levelMetrics.getDependenciesFound(),
+					nextAttributeSets, elapsedMillis);
+			} catch (RuntimeException ex) {
+				logger.log(Level.WARNING, "listener failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Checks the dependencies having the left side <code>lhs</code> together: their errors are
+	 * computed by one pass over the partition of <code>lhs</code> (see <code>MultiRhsChecker</code>),
+	 * so the partitions of <code>XA</code> are not computed. They are computed later if a next level
+	 * needs them. The candidates decided by the class counts are not checked (see
+	 * <code>checkDependency()</code>).
+	 *
+	 * @param lhs
+	 * @param deps The dependencies of <code>lhs</code>.
+	 * @param levelNumber
+	 * @param errors Receives the number of rows breaking the dependencies, except the rejected ones.
+	 * @param rows Receives the rows breaking the valid dependencies.
+	 */
+	private void checkLeftSide(String lhs, List<String> deps, int levelNumber, Map<String, Integer> errors,
+			Map<String, Collection<Integer>> rows) {
+		Partition leftPartition = partition(lhs, levelNumber);
+		PackedGrouping codes = packedGrouping();
+		List<String> batch = new ArrayList<String>();
+		for (String dep : deps) {
+			String rhs = dep.substring(dep.indexOf("->") + 2);
+			String extended = planner.canonical(lhs + ":" + rhs);
+			if (codes == null || codes.getCodes(rhs) == null) {
+				Collection<Integer> toDelete = checkDependency(dep, levelNumber);
+				if (toDelete != null) {
+					errors.put(dep, toDelete.size());
+					rows.put(dep, toDelete);
+				}
+			} else if ((double) violationLowerBound(lhs, rhs, extended) / numberOfRows > epsilon) {
+				++boundRejections;
+			} else if (partitions.getNumberOfClasses(lhs) == numberOfClasses(extended)) {
+				++exactByClassCount;
+				errors.put(dep, 0);
+				rows.put(dep, Collections.<Integer>emptyList());
+			} else {
+				batch.add(dep);
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		int[][] rhsCodes = new int[batch.size()][];
+		int[] numberOfCodes = new int[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			String rhs = batch.get(i).substring(batch.get(i).indexOf("->") + 2);
+			rhsCodes[i] = codes.getCodes(rhs);
+			numberOfCodes[i] = codes.getNumberOfCodes(rhs);
+		}
+		MultiRhsChecker multiChecker = new MultiRhsChecker(leftPartition, rhsCodes, numberOfCodes);
+		for (int i = 0; i < batch.size(); i++) {
+			String dep = batch.get(i);
+			String extended = planner.canonical(lhs + ":" + dep.substring(dep.indexOf("->") + 2));
+			if (!partitions.containsKey(extended)) {
+				classCounts.put(extended, multiChecker.getNumberOfClasses(i));
+			}
+			errors.put(dep, multiChecker.getViolations(i));
+			if ((double) multiChecker.getViolations(i) / numberOfRows <= getEpsilon()) {
+				rows.put(dep, multiChecker.getRowsToDelete(i));
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		for (int i = 0; i < batch.size(); i++) {
+			metrics.recordErrorCheck(levelNumber, elapsed / batch.size());
+		}
+	}
+
+	/**
+	 * Return the rows that break the dependency <code>dep</code>. <code>null</code> if the
+	 * dependency cannot hold: the lower bound of its error computed from the class counts
+	 * exceeds epsilon (see <code>violationLowerBound()</code>). Then the partition of
+	 * <code>XA</code> is not computed. If <code>X</code> and <code>XA</code> have the same number
+	 * of classes, the dependency holds exactly and the rows are not compared.
+	 *
+	 * @param dep
+	 * @param levelNumber
 	 * @return
 	 */
-	private Collection<Integer> checkDependency(String dep) {
+	private Collection<Integer> checkDependency(String dep, int levelNumber) {
 		logger.info("checking dependency " + dep);
 		String[] parts = dep.split("->");
 		if (parts[0].isEmpty()) {
 			return null;
 		}
 
-		++dependenciesChecked;
-
-		Partition leftPartition = partitions.get(parts[0]);
-
-		if (leftPartition == null) {
-			int index = parts[0].lastIndexOf(":");
-			String first = parts[0].substring(0, index);
-			String second = parts[0].substring(index + 1);
-			leftPartition = partitions.get(first).multiply(partitions.get(second));
-			partitions.put(parts[0], leftPartition);
+		Partition leftPartition = partition(parts[0], levelNumber);
+		String extended = planner.canonical(parts[0] + ":" + parts[1]);
+		if ((double) violationLowerBound(parts[0], parts[1], extended) / numberOfRows > epsilon) {
+			++boundRejections;
+			return null;
 		}
-		Partition rightPartition = partitions.get(parts[0] + ":" + parts[1]);
-		if (rightPartition == null) {
-			rightPartition = leftPartition.multiply(partitions.get(parts[1]));
-			partitions.put(parts[0] + ":" + parts[1], rightPartition);
+		Partition rightPartition = partition(extended, levelNumber);
+		if (partitions.getNumberOfClasses(parts[0]) == numberOfClasses(extended)) {
+			++exactByClassCount;
+			return Collections.emptyList();
 		}
 
+		long start = System.nanoTime();
 		Collection<Integer> toDel = leftPartition.getRowsToDelete(rightPartition);
+		metrics.recordErrorCheck(levelNumber, System.nanoTime() - start);
 
 		return toDel;
 	}
 
+	/**
+	 * Returns a lower bound of the number of rows breaking <code>lhs->rhs</code>, computed from the
+	 * class counts, row counts and largest classes of the partitions only:
+	 * <ul>
+	 * <li>every class of <code>X</code> split into <code>k</code> classes of <code>XA</code> loses
+	 * at least <code>k - 1</code> rows, so at least <code>|XA| - |X|</code> rows are deleted, and
+	 * <code>|XA| >= |A|</code>;</li>
+	 * <li>a class of <code>X</code> keeps at most as many rows as the largest class of
+	 * <code>A</code> (or <code>XA</code>), so of the rows in the <code>k</code> not stripped
+	 * classes of <code>X</code> at most <code>k * largest</code> are kept.</li>
+	 * </ul>
+	 * The partitions of <code>X</code> and <code>A</code> must be stored, <code>XA</code> is used
+	 * only if it's stored or its class count is known.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @param extended The canonical attribute set of <code>XA</code>.
+	 * @return
+	 */
+	private long violationLowerBound(String lhs, String rhs, String extended) {
+		int lhsClasses = partitions.getNumberOfClasses(lhs);
+		int rhsClasses = partitions.getNumberOfClasses(rhs);
+		int lhsRows = partitions.getRowCount(lhs);
+		// the base partitions are not stripped: they hold every row
+		int rows = partitions.getRowCount(rhs);
+		int largest = partitions.getLargestClass(rhs);
+		if (lhsClasses < 0 || rhsClasses < 0 || lhsRows < 0 || rows < 0) {
+			return 0;
+		}
+		int extendedClasses = numberOfClasses(extended);
+		if (extendedClasses >= 0) {
+			rhsClasses = extendedClasses;
+		}
+		if (partitions.getLargestClass(extended) >= 0) {
+			largest = Math.min(largest, partitions.getLargestClass(extended));
+		}
+		int lhsStripped = rows - lhsRows;
+		long kept = (long) (lhsClasses - lhsStripped) * largest;
+		return Math.max(rhsClasses - lhsClasses, lhsRows - kept);
+	}
+
+	/**
+	 * Returns the partition of <code>attributeList</code>. If it's not stored, it's computed as the
+	 * product of the cheapest pair of stored partitions chosen by the <code>planner</code>, or from
+	 * the partition of the attribute set without its last attribute if no such pair is stored. If
+	 * grouping the rows by the packed codes of the attributes is cheaper than the product (or no
+	 * pair is stored), the rows are grouped instead.
+	 *
+	 * @param attributeList
+	 * @param levelNumber
+	 * @return
+	 */
+	private Partition partition(String attributeList, int levelNumber) {
+		Partition result = partitions.get(attributeList);
+		if (result == null) {
+			String[] pair = planner.plan(partitions, attributeList);
+			PackedGrouping codes = packedGrouping();
+			long cost = codes == null ? -1 : codes.cost(attributeList);
+			if (cost >= 0 && (pair == null || cost < PackedGrouping.COST_RATIO * ((long) partitions.getRowCount(pair[0]) + partitions.getRowCount(pair[1])))) {
+				long start = System.nanoTime();
+				result = codes.group(attributeList);
+				metrics.recordProduct(levelNumber, cost, System.nanoTime() - start);
+				++packedGroupings;
+				partitions.put(attributeList, result);
+				return result;
+			}
+			if (pair == null) {
+				int index = attributeList.lastIndexOf(":");
+				pair = new String[] { attributeList.substring(0, index), attributeList.substring(index + 1) };
+			}
+			Partition first = partition(pair[0], levelNumber);
+			Partition second = partition(pair[1], levelNumber);
+			result = multiply(first, second, attributeList, levelNumber);
+			partitions.put(attributeList, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the grouping by the packed codes of the base partitions, created on the first call.
+	 * Its arrays are reserved in the partition store, so they count against the heap budget and
+	 * the memory limit. If the store has a budget, the grouping is not created while a base
+	 * partition is spilled (it would be read back) or the arrays don't fit into the rest of the
+	 * budget; the partitions are multiplied then.
+	 *
+	 * @return The grouping or <code>null</code>.
+	 */
+	private PackedGrouping packedGrouping() {
+		if (grouping == null) {
+			if (partitions.isBounded()) {
+				for (String attribute : attributes) {
+					if (partitions.isSpilled(attribute)) {
+						return null;
+					}
+				}
+				if (PackedGrouping.estimateBytes(numberOfRows, attributes.size()) > partitions.getFreeBytes()) {
+					return null;
+				}
+			}
+			Map<String, Partition> base = new HashMap<String, Partition>();
+			for (String attribute : attributes) {
+				Partition partition = partitions.get(attribute);
+				if (partition != null) {
+					base.put(attribute, partition);
+				}
+			}
+			grouping = new PackedGrouping(base);
+			partitions.reserve(grouping.estimateBytes());
+		}
+		return grouping;
+	}
+
+	/**
+	 * Returns the number of classes of an attribute set, including the stripped ones: from its
+	 * stored partition, or counted by <code>MultiRhsChecker</code>. -1 if it's not known.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	private int numberOfClasses(String attributeList) {
+		int result = partitions.getNumberOfClasses(attributeList);
+		if (result < 0) {
+			Integer counted = classCounts.get(attributeList);
+			result = counted == null ? -1 : counted;
+		}
+		return result;
+	}
+
+	/**
+	 * Multiplies <code>first</code> by <code>second</code> and records the product in the metrics.
+	 *
+	 * @param first
+	 * @param second
+	 * @param attributeList The attribute set of the product.
+	 * @param levelNumber
+	 * @return
+	 */
+	private Partition multiply(Partition first, Partition second, String attributeList, int levelNumber) {
+		long start = System.nanoTime();
+		Partition result = first.multiply(second, attributeList);
+		metrics.recordProduct(levelNumber, first.productCost(second), System.nanoTime() - start);
+
+		return result;
+	}
+
 	/**
 	 * Generates the list of attribute sets that contain one less attribute than
 	 * <code>attributeList</code>. The attributes in a set are separated by :.
@@ -577,11 +2151,7 @@ public class Cleaner {
 		List<String> result = new ArrayList<String>();
 		String[] parts = attrbuteList.split(":");
 		for (String part : parts) {
-			if (attrbuteList.endsWith(part)) {
-				result.add(attrbuteList.replace(":" + part, ""));
-			} else {
-				result.add(attrbuteList.replace(part + ":", ""));
-			}
+			result.add(attributeListMinusAttribute(attrbuteList, part));
 		}
 
 		return result;
@@ -595,40 +2165,88 @@ public class Cleaner {
 	 * @return <code>attributeList\attribute</code>.
 	 */
 	private String attributeListMinusAttribute(String attributeList, String attribute) {
-		if (attributeList.equals(attribute)) {
-			return "";
-		}
-		if (attributeList.endsWith(attribute)) {
-			return attributeList.replace(":" + attribute, "");
+		// the attributes are compared as a whole: a name can be a part of another one
+		StringBuilder builder = new StringBuilder();
+		for (String part : attributeList.split(":")) {
+			if (!part.equals(attribute)) {
+				if (builder.length() > 0) {
+					builder.append(':');
+				}
+				builder.append(part);
+			}
 		}
-
-		return attributeList.replace(attribute + ":", "");
+		return builder.toString();
 	}
 
 	/**
-	 * Prunes the level and returns the new level.
+	 * Prunes the level and returns the new level. The attribute sets with an empty candidate list
+	 * are removed. For a (super)key <code>X</code> the minimal dependencies are emitted first:
+	 * <code>X->A</code> holds for every <code>A</code>, and it's minimal if <code>A</code> is in
+	 * <code>C+(X)</code> and in <code>C+(X + A - B)</code> for every <code>B</code> in
+	 * <code>X</code>. The dependencies of the supersets of <code>X</code> with a right side outside
+	 * <code>X</code> are not minimal, so only the attributes of <code>X</code> remain in
+	 * <code>C+(X)</code>.
+	 * <br/>
+	 * If the dependencies are exact, the key is removed (a dependency <code>Y->A</code> of a superset
+	 * with <code>A</code> in <code>X</code> means <code>Y</code> is a key, found on its own). An
+	 * approximate <code>Y->A</code> only needs <code>Y</code> to be a near key, so the key is removed
+	 * only if its candidate list becomes empty. A key is recognized only if the number of classes of
+	 * its partition is known.
 	 *
 	 * @param level
+	 * @param levelNumber
 	 * @return
 	 */
-	private List<String> prune(List<String> level) {
-		List<String> result = new LinkedList<String>(level);
-		for (int i = 0; i < result.size(); i++) {
-			String attributeList = level.get(i);
+	private List<String> prune(List<String> level, int levelNumber) {
+		List<String> result = new ArrayList<String>(level.size());
+		for (String attributeList : level) {
 			List<String> candidateList = candidateLists.get(attributeList);
-			if (candidateList == null || candidateList.size() == 0) {
-				result.remove(attributeList);
+			if (candidateList == null || candidateList.isEmpty()) {
+				continue;
 			}
 
-			Partition partition = partitions.get(attributeList);
-			if (partition != null && (partition.getClasses().size() + partition.getStrippedRows()) == numberOfRows) {
-				result.remove(attributeList);
+			if (checker.getNumberOfClasses(attributeList) == numberOfRows) {
+				emitKeyDependencies(attributeList, candidateList, levelNumber);
+				candidateList.retainAll(Arrays.asList(attributeList.split(":")));
+				if (epsilon == 0 || candidateList.isEmpty()) {
+					continue;
+				}
 			}
+			result.add(attributeList);
 		}
 
 		return result;
 	}
 
+	/**
+	 * Emits the minimal dependencies with the key <code>attributeList</code> on the left side.
+	 * They hold without violations.
+	 *
+	 * @param attributeList
+	 * @param candidateList <code>C+(attributeList)</code>
+	 * @param levelNumber
+	 */
+	private void emitKeyDependencies(String attributeList, List<String> candidateList, int levelNumber) {
+		List<String> members = Arrays.asList(attributeList.split(":"));
+		for (String att : candidateList) {
+			if (members.contains(att)) {
+				continue;
+			}
+			boolean minimal = true;
+			for (String member : members) {
+				String rest = attributeListMinusAttribute(attributeList, member);
+				List<String> other = candidateLists.get(rest.isEmpty() ? att : planner.canonical(rest + ":" + att));
+				if (other == null || !other.contains(att)) {
+					minimal = false;
+					break;
+				}
+			}
+			if (minimal) {
+				acceptDependency(attributeList + "->" + att, Collections.<Integer>emptyList(), levelNumber);
+			}
+		}
+	}
+
 	/**
 	 * Verifies the found functional dependencies. Validation is neccessary when using sample.
 	 */
@@ -657,8 +2275,8 @@ public class Cleaner {
 
 
 			for (String dependency : dependencies) {
-				Collection<Integer> toDelete = deletandMap.get(dependency);
-				String newDep = dependency.replace("->", ":");
+				RowBitmap toDelete = violations.get(dependency);
+				String newDep = planner.canonical(dependency.replace("->", ":"));
 				Partition p = partitions.get(newDep);
 				List<Integer> rows = new ArrayList<Integer>();
 				for (EquivalenceClass<Object, Integer> clazz : p.getClasses()) {
@@ -667,39 +2285,138 @@ public class Cleaner {
 				String[] parts = newDep.split(":");
 				int[] attributeIndexes = new int[parts.length];
 
-				for (int i = 0; i < parts.length; i++) {
-					attributeIndexes[i] = attributes.indexOf(parts[i]);
-				}
-				for (int i = 0; i < data.length; i++) {
-					if (toDelete.contains(i)) // TODO: optimization?
-					{
-						continue;
-					}
+				for (int i = 0; i < parts.length; i++) {
+					attributeIndexes[i] = attributes.indexOf(parts[i]);
+				}
+				for (int i = 0; i < data.length; i++) {
+					if (toDelete.contains(i)) // TODO: optimization?
+					{
+						continue;
+					}
+
+				}
+			}
+		} catch (SQLException ex) {
+			logger.log(Level.SEVERE, null, ex);
+		}
+
+		chunks = oldChunks;
+	}
+//</editor-fold>
+
+	public void addAttribute(String attribute) {
+		if (attributes == null) {
+			attributes = new ArrayList<String>();
+		}
+
+		attributes.add(attribute);
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public void setTable(String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Returns the number of rows in the table. Known after the partitions are created.
+	 *
+	 * @return
+	 */
+	public int getNumberOfRows() {
+		return numberOfRows;
+	}
+
+	/**
+	 * @param reportFormat <code>text</code> or <code>json</code>
+	 */
+	public void setReportFormat(String reportFormat) {
+		this.reportFormat = reportFormat;
+	}
+
+	/**
+	 * @param compressReport if <code>true</code> the report is gzip compressed
+	 */
+	public void setCompressReport(boolean compressReport) {
+		this.compressReport = compressReport;
+	}
+
+	public void setJdbcUrl(String jdbcUrl) {
+		this.jdbcUrl = jdbcUrl;
+	}
+
+	/**
+	 * Registers a listener that is notified about the dependencies as they are found.
+	 *
+	 * @param listener
+	 */
+	public void addListener(CleanerListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener registered by <code>addListener</code>.
+	 *
+	 * @param listener
+	 */
+	public void removeListener(CleanerListener listener) {
+		listeners.remove(listener);
+	}
 
-				}
-			}
-		} catch (SQLException ex) {
-			logger.log(Level.SEVERE, null, ex);
-		}
+	/**
+	 * Returns the rows breaking the dependencies found.
+	 *
+	 * @return
+	 */
+	public ViolationStore getViolations() {
+		return violations;
+	}
 
-		chunks = oldChunks;
+	/**
+	 * Returns the ranking of the rows. <code>null</code> before <code>proceed()</code> is called.
+	 *
+	 * @return
+	 */
+	public RowScorer getScorer() {
+		return scorer;
 	}
-//</editor-fold>
 
-	public void addAttribute(String attribute) {
-		if (attributes == null) {
-			attributes = new ArrayList<String>();
-		}
+	/**
+	 * Returns the keys of the rows. <code>null</code> if the key column is not set or before
+	 * <code>proceed()</code> is called.
+	 *
+	 * @return
+	 */
+	public RowKeys getRowKeys() {
+		return rowKeys;
+	}
 
-		attributes.add(attribute);
+	/**
+	 * Sets the number of the most suspicious rows written to the report.
+	 *
+	 * @param topRows
+	 */
+	public void setTopRows(int topRows) {
+		this.topRows = topRows;
 	}
 
-	public void setTable(String table) {
-		this.table = table;
+	/**
+	 * Sets the size of the violation sets (in bytes) kept in memory. Above this size the sets are spilled
+	 * to disk.
+	 *
+	 * @param bytes
+	 */
+	public void setViolationSpillThreshold(long bytes) {
+		violations.setSpillThreshold(bytes);
 	}
 
-	public void setJdbcUrl(String jdbcUrl) {
-		this.jdbcUrl = jdbcUrl;
+	/**
+	 * @return the metrics of the run
+	 */
+	public Metrics getMetrics() {
+		return metrics;
 	}
 
 	/**
@@ -779,6 +2496,269 @@ public class Cleaner {
 		this.chunkSize = chunkSize;
 	}
 
+	/**
+	 * Sets the size of the partitions of a level (in bytes) above which the dependencies are
+	 * checked in the database. 0 means never.
+	 *
+	 * @param pushdownThreshold
+	 */
+	public void setPushdownThreshold(long pushdownThreshold) {
+		this.pushdownThreshold = pushdownThreshold;
+	}
+
+	/**
+	 * Sets the time (see <code>System.currentTimeMillis()</code>) after which no more dependencies
+	 * are checked. 0 means no deadline.
+	 *
+	 * @param deadline
+	 */
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Sets the maximal size of the left sides checked. Negative means no limit.
+	 *
+	 * @param maxLhsSize
+	 */
+	public void setMaxLhsSize(int maxLhsSize) {
+		this.maxLhsSize = maxLhsSize;
+	}
+
+	/**
+	 * Sets the maximal estimated size of the partitions and the violating row sets in bytes. The
+	 * run stops when it's exceeded. 0 means no limit.
+	 *
+	 * @param maxMemory
+	 */
+	public void setMaxMemory(long maxMemory) {
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Returns <code>true</code> if the last run was stopped by a limit, so some dependencies may be
+	 * missing from the result.
+	 *
+	 * @return
+	 */
+	public boolean isPartial() {
+		return stoppedBy != null;
+	}
+
+	/**
+	 * Returns the limit that stopped the last run, or <code>null</code> if it wasn't stopped.
+	 *
+	 * @return
+	 */
+	public String getStoppedBy() {
+		return stoppedBy;
+	}
+
+	/**
+	 * Returns the last level processed (fully or partially) by the last run.
+	 *
+	 * @return
+	 */
+	public int getLevelReached() {
+		return levelReached;
+	}
+
+	/**
+	 * Sets the column identifying the rows of the table. Its values are read with the rows and
+	 * written to the reports instead of the row IDs.
+	 *
+	 * @param keyColumn
+	 */
+	public void setKeyColumn(String keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * Sets the columns <code>writeFlags()</code> writes to.
+	 *
+	 * @param flagColumn The column receiving the number of dependencies broken by the rows.
+	 * @param scoreColumn The column receiving the scores, <code>null</code> if the scores are not written.
+	 */
+	public void setFlagColumns(String flagColumn, String scoreColumn) {
+		this.flagColumn = flagColumn;
+		this.scoreColumn = scoreColumn;
+	}
+
+	/**
+	 * Sets the number of rows inserted into the staging table by one batch in <code>writeFlags()</code>.
+	 *
+	 * @param flagBatchSize
+	 */
+	public void setFlagBatchSize(int flagBatchSize) {
+		this.flagBatchSize = flagBatchSize;
+	}
+
+	/**
+	 * Sets the file <code>exportViolations()</code> writes to.
+	 *
+	 * @param exportFile
+	 */
+	public void setExportFile(File exportFile) {
+		this.exportFile = exportFile;
+	}
+
+	/**
+	 * Sets how the violating rows are read by <code>exportViolations()</code>.
+	 *
+	 * @param batchSize The number of rows read by one query.
+	 * @param connections The number of connections reading the rows at the same time.
+	 */
+	public void setExportBatches(int batchSize, int connections) {
+		this.exportBatchSize = batchSize;
+		this.exportConnections = connections;
+	}
+
+	/**
+	 * Sets the catalog of the dependencies found by earlier runs. <code>null</code> means no catalog.
+	 *
+	 * @param catalog
+	 */
+	public void setCatalog(FdCatalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * Turns on the hybrid discovery (see <code>HybridDiscovery</code>).
+	 *
+	 * @param hybrid
+	 */
+	public void setHybrid(boolean hybrid) {
+		this.hybrid = hybrid;
+	}
+
+	/**
+	 * Turns on the pre-check of the candidates on a sample of <code>sampleSize</code> rows (see
+	 * <code>SampleChecker</code>). 0 turns it off.
+	 *
+	 * @param sampleSize
+	 */
+	public void setPrecheckSampleSize(int sampleSize) {
+		this.precheckSampleSize = sampleSize;
+	}
+
+	/**
+	 * Turns on the chunk sizes adapted to the heap budget.
+	 *
+	 * @param adaptiveChunks
+	 */
+	public void setAdaptiveChunks(boolean adaptiveChunks) {
+		this.adaptiveChunks = adaptiveChunks;
+	}
+
+	/**
+	 * Sets the fraction of the heap the partitions may occupy. The partitions above it are spilled
+	 * to disk. 0 means no limit.
+	 *
+	 * @param heapFraction
+	 */
+	public void setHeapFraction(double heapFraction) {
+		this.heapFraction = heapFraction;
+	}
+
+	/**
+	 * Sets the workers holding the shards of the rows. <code>null</code> means the rows are
+	 * processed in this process.
+	 *
+	 * @param workers
+	 */
+	public void setWorkers(List<InetSocketAddress> workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Turns on the profiling of the columns before the partitions are built.
+	 *
+	 * @param profiling
+	 */
+	public void setProfiling(boolean profiling) {
+		this.profiling = profiling;
+	}
+
+	/**
+	 * Sets the cache of the base partitions. The partitions are taken from the cache if it contains
+	 * all the attributes of the table, and are put into it after they are read otherwise.
+	 *
+	 * @param partitionCache
+	 */
+	public void setPartitionCache(PartitionCache partitionCache) {
+		this.partitionCache = partitionCache;
+	}
+
+	/**
+	 * Checks the dependencies using the partitions in memory.
+	 */
+	private class PartitionChecker implements DependencyChecker {
+		/**
+		 * The rows breaking the valid dependencies of the last check.
+		 */
+		private Map<String, Collection<Integer>> rows = new HashMap<String, Collection<Integer>>();
+
+		@Override
+		public Map<String, Integer> countViolations(List<String> deps, int levelNumber) {
+			rows.clear();
+			// the dependencies having the same left side are checked together
+			Map<String, List<String>> byLhs = new LinkedHashMap<String, List<String>>();
+			for (String dep : deps) {
+				String lhs = dep.substring(0, dep.indexOf("->"));
+				if (lhs.isEmpty()) {
+					continue;
+				}
+				List<String> sameLhs = byLhs.get(lhs);
+				if (sameLhs == null) {
+					sameLhs = new ArrayList<String>();
+					byLhs.put(lhs, sameLhs);
+				}
+				sameLhs.add(dep);
+			}
+			Map<String, Integer> errors = new HashMap<String, Integer>();
+			Map<String, Collection<Integer>> found = new HashMap<String, Collection<Integer>>();
+			for (Entry<String, List<String>> entry : byLhs.entrySet()) {
+				checkLeftSide(entry.getKey(), entry.getValue(), levelNumber, errors, found);
+			}
+
+			Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+			for (String dep : deps) {
+				Integer error = errors.get(dep);
+				if (error != null) {
+					result.put(dep, error);
+					if ((double) error / numberOfRows <= getEpsilon()) {
+						rows.put(dep, found.get(dep));
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public Map<String, Collection<Integer>> getViolatingRows(List<String> deps) {
+			Map<String, Collection<Integer>> result = new HashMap<String, Collection<Integer>>();
+			for (String dep : deps) {
+				result.put(dep, rows.get(dep));
+			}
+			rows.clear();
+			return result;
+		}
+
+		/**
+		 * Computes the partition of <code>attributeList</code> if neither the partition nor the
+		 * class count is known.
+		 */
+		@Override
+		public int getNumberOfClasses(String attributeList) {
+			int result = numberOfClasses(attributeList);
+			if (result < 0 && !attributeList.isEmpty()) {
+				partition(attributeList, Partition.getLevelNumber(attributeList) + 1);
+				result = partitions.getNumberOfClasses(attributeList);
+			}
+			return result;
+		}
+	}
+
 	/**
 	 * Returns a help describing the usage and command line arguments.
 	 *
@@ -786,6 +2766,8 @@ public class Cleaner {
 	 */
 	private String getUsage() {
 		StringBuilder builder = new StringBuilder("Usage: java ex.tajti.mining.Cleaner -t <table> -a <attributes> [options]\n");
+		builder.append("   or: java ex.tajti.mining.Cleaner -b <jobfile> -j <url> -jd <driver> [options]\n");
+		builder.append("   or: java ex.tajti.mining.Cleaner -server <port> -j <url> -jd <driver> [options]\n");
 		builder.append("<table>: the name of the table to be cleaned\n");
 		builder.append("<attributes>: the name of the attributes the query must contain.\n");
 		builder.append("Options:\n");
@@ -795,8 +2777,40 @@ public class Cleaner {
 			+ " only a portion of the rows. The number of rows computes based on epsilon and delta.\n");
 		builder.append("-jd driver: the fully qualified name of the JDBC driver. Must be in the classpath  MANDATORY. (Currently works only with mysql)\n");
 		builder.append("-d delta: the value used for computing the sample (see documentation). The default value is 0.05.\n");
-		builder.append("-c n: process the table n chunks of n rows\n");
+		builder.append("-c n: process the table n chunks of n rows. -c auto: chunk sizes adapted to the heap budget (see -hf)\n");
 		builder.append("-e epsilon: the epsilon value (see documentation). MANDATORY 0.05.\n");
+		builder.append("-f format: the format of the report: text (default) or json (JSON lines, run-length encoded row ids)\n");
+		builder.append("-z: compress the report with gzip\n");
+		builder.append("-k n: list the n most suspicious rows in the report (default: 20, 0 turns it off)\n");
+		builder.append("-b file: batch mode, runs the jobs in file concurrently. One job per line: table;attr1,attr2;epsilon[;chunksize]\n");
+		builder.append("-w n: the number of jobs running at the same time in batch and server mode (default: the number of processors)\n");
+		builder.append("-mb mb: the memory budget of the jobs in batch mode in megabytes (default: 75% of the heap)\n");
+		builder.append("-server port: server mode, accepts jobs over HTTP on the loopback interface (see CleanerServer)\n");
+		builder.append("-cache mb: the capacity of the partition cache in server mode in megabytes (default: 50% of the heap)\n");
+		builder.append("-ttl s: the cached partitions older than s seconds are read again in server mode (default: no limit)\n");
+		builder.append("-p: profile the columns first and leave out the keys and the constants (reported as ->A)\n");
+		builder.append("-pd mb: check the dependencies in the database (GROUP BY queries) from the level whose partitions would exceed mb megabytes\n");
+		builder.append("-workers host:port,...: spread the rows across ShardWorker processes, one shard per worker\n");
+		builder.append("-hybrid: finds the dependencies by sampling row pairs and validating the candidates instead of the level-wise traversal."
+			+ " Faster on wide tables\n");
+		builder.append("-pre n: reject the candidates whose error on a sample of n rows is too high before computing their partitions."
+			+ " A valid dependency is lost with probability " + SampleChecker.DELTA + "\n");
+		builder.append("-hf fraction: the fraction of the heap the partitions may occupy, the rest is spilled to disk (default: no limit, 0.5 for -c auto)\n");
+		builder.append("-deadline s: stop after s seconds and report the dependencies found so far\n");
+		builder.append("-maxlhs n: check the left sides of at most n attributes\n");
+		builder.append("-maxmem mb: stop when the partitions and the violating row sets exceed mb megabytes\n");
+		builder.append("-catalog dir: keep the dependencies found in dir and reuse them while the table doesn't change\n");
+		builder.append("-id column: the column identifying the rows. The reports contain its values instead of the positions of the rows\n");
+		builder.append("-flags column[,scorecolumn]: write the number of dependencies broken by every row (and its score) back to the table."
+			+ " Needs -id\n");
+		builder.append("-fb n: the number of rows inserted into the staging table by one batch when writing the flags (default: "
+			+ FlagWriter.BATCH_SIZE + ")\n");
+		builder.append("-export file: write the values of the rows breaking the dependencies to file, with the other rows of their"
+			+ " left side classes. Needs -id\n");
+		builder.append("-xb n: the number of rows read by one query when exporting the rows (default: " + ViolationExporter.BATCH_SIZE + ")\n");
+		builder.append("-xc n: the number of connections reading the rows when exporting them (default: " + ViolationExporter.CONNECTIONS
+			+ ")\n");
+		builder.append("-vm mb: keep at most mb megabytes of violating row sets in memory, spill the rest to disk\n");
 
 		return builder.toString();
 	}
@@ -838,10 +2852,118 @@ public class Cleaner {
 				sampled = true;
 			} else if (args[i].equals("-c")) {
 				String chunksize = args[i + 1];
-				chunkSize = Integer.valueOf(chunksize);
+				if (chunksize.equals("auto")) {
+					adaptiveChunks = true;
+				} else {
+					chunkSize = Integer.valueOf(chunksize);
+				}
 				chunks = true;
 
 				i++;
+			} else if (args[i].equals("-f")) {
+				reportFormat = args[i + 1];
+				if (!reportFormat.equals("text") && !reportFormat.equals("json")) {
+					System.out.println("unknown report format: " + reportFormat);
+					System.exit(1);
+				}
+
+				++i;
+			} else if (args[i].equals("-z")) {
+				compressReport = true;
+			} else if (args[i].equals("-k")) {
+				topRows = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-b")) {
+				batchFile = args[i + 1];
+
+				++i;
+			} else if (args[i].equals("-w")) {
+				batchThreads = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-mb")) {
+				batchMemory = Long.parseLong(args[i + 1]) * 1024 * 1024;
+
+				++i;
+			} else if (args[i].equals("-server")) {
+				serverPort = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-cache")) {
+				cacheMemory = Long.parseLong(args[i + 1]) * 1024 * 1024;
+
+				++i;
+			} else if (args[i].equals("-ttl")) {
+				cacheTimeToLive = Long.parseLong(args[i + 1]) * 1000;
+
+				++i;
+			} else if (args[i].equals("-p")) {
+				profiling = true;
+			} else if (args[i].equals("-pd")) {
+				pushdownThreshold = Long.parseLong(args[i + 1]) * 1024 * 1024;
+
+				++i;
+			} else if (args[i].equals("-workers")) {
+				workers = ShardCoordinator.parseAddresses(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-hybrid")) {
+				hybrid = true;
+			} else if (args[i].equals("-pre")) {
+				precheckSampleSize = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-hf")) {
+				heapFraction = Double.parseDouble(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-deadline")) {
+				deadline = System.currentTimeMillis() + Long.parseLong(args[i + 1]) * 1000;
+
+				++i;
+			} else if (args[i].equals("-maxlhs")) {
+				maxLhsSize = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-maxmem")) {
+				maxMemory = Long.parseLong(args[i + 1]) * 1024 * 1024;
+
+				++i;
+			} else if (args[i].equals("-catalog")) {
+				catalog = new FdCatalog(new File(args[i + 1]));
+
+				++i;
+			} else if (args[i].equals("-id")) {
+				keyColumn = args[i + 1];
+
+				++i;
+			} else if (args[i].equals("-flags")) {
+				String[] columns = args[i + 1].split(",");
+				flagColumn = columns[0];
+				scoreColumn = columns.length > 1 ? columns[1] : null;
+
+				++i;
+			} else if (args[i].equals("-fb")) {
+				flagBatchSize = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-export")) {
+				exportFile = new File(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-xb")) {
+				exportBatchSize = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-xc")) {
+				exportConnections = Integer.parseInt(args[i + 1]);
+
+				++i;
+			} else if (args[i].equals("-vm")) {
+				setViolationSpillThreshold(Long.parseLong(args[i + 1]) * 1024 * 1024);
+
+				++i;
 			} else if (args[i].equals("-j")) {
 				jdbcUrl = args[i + 1];
 
@@ -859,42 +2981,100 @@ public class Cleaner {
 			}
 		}
 
+		if ((batchFile != null || serverPort >= 0) && jdbcDriver != null && jdbcUrl != null) {
+			return;
+		}
 		if (jdbcDriver == null || jdbcUrl == null || attributes == null || table == null) {
 			System.out.println("The -jd, -j, -a and the -t options are mandatory.");
 			System.exit(1);
 		}
+		if (flagColumn != null && keyColumn == null) {
+			System.out.println("The -flags option needs -id.");
+			System.exit(1);
+		}
+		if (exportFile != null && keyColumn == null) {
+			System.out.println("The -export option needs -id.");
+			System.exit(1);
+		}
 	}
 
 	public static void main(String[] args) throws SQLException {
 		Cleaner tane = new Cleaner();
 		tane.processCommandLine(args);
+		if (tane.batchFile != null) {
+			BatchRunner runner = new BatchRunner(tane.jdbcUrl, tane.batchThreads, new MemoryBudget(tane.batchMemory));
+			runner.setReportFormat(tane.reportFormat);
+			runner.setCompressReport(tane.compressReport);
+			runner.setCatalog(tane.catalog);
+			try {
+				int failed = runner.run(BatchJob.read(new File(tane.batchFile)));
+				System.exit(failed == 0 ? 0 : 1);
+			} catch (IOException ex) {
+				System.out.println("cannot read the job file: " + ex.getMessage());
+				System.exit(1);
+			} catch (InterruptedException ex) {
+				logger.log(Level.SEVERE, null, ex);
+				System.exit(1);
+			}
+		}
+
+		if (tane.serverPort >= 0) {
+			CleanerServer server = new CleanerServer(tane.jdbcUrl, tane.serverPort, tane.batchThreads, new PartitionCache(
+				tane.cacheMemory, tane.cacheTimeToLive));
+			try {
+				server.start();
+				System.out.println("listening on port " + server.getPort());
+			} catch (IOException ex) {
+				System.out.println("cannot start the server: " + ex.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
 
 		System.out.println(tane.attributes);
+		tane.addListener(new CleanerAdapter() {
+
+			@Override
+			public void levelStarted(int level, int attributeSets, int pendingChecks) {
+				System.out.println("Level " + level + ": " + attributeSets + " attribute sets, " + pendingChecks + " checks");
+			}
+
+			@Override
+			public void dependencyFound(String dependency, double error, int violations, Collection<Integer> rows) {
+				System.out.println("Found " + dependency + " (error: " + error + ", violations: " + violations + ")");
+			}
+
+			@Override
+			public void levelFinished(int level, int checked, int found, int nextAttributeSets, long elapsedMillis) {
+				System.out.println("Level " + level + " finished in " + elapsedMillis + " ms: " + checked + " checked, " + found
+					+ " found, " + nextAttributeSets + " attribute sets on the next level");
+			}
+		});
 
 		// tane.verifyDependencies();
 		long beginning = System.currentTimeMillis();
 		tane.proceed();
 
-		System.out.println("Iterations: " + Partition.iterations);
-		System.out.println("Stripped: " + Partition.stripped);
-		System.out.println(Partition.continued);
-		StringBuilder builder = new StringBuilder();
-		builder.append("================ General ============\n").append("Date: " + new Date() + "\n");
-		builder.append("============= Statistics ============\n").append("Time elapsed: " + (System.currentTimeMillis() - beginning) + "\n")
-			.append("Number of rows: " + tane.numberOfRows + "\n").append("Sample size: " + (tane.sampled ? tane.sampleSize : "not sampled") + "\n")
-			.append("Chunk size: " + (tane.chunks ? tane.chunkSize : "not chunked") + "\n").append("Table: " + tane.table + "\n")
-			.append("Attribute count: " + tane.attributes.size() + "\n").append("Epsilon: " + tane.epsilon + "\n").append("Delta: " + tane.delta + "\n")
-			.append("Possible dependencies: " + possibleDependencies + "\n").append("Dependencies checked: " + dependenciesChecked + "\n")
-			.append("Dependencies found: " + (tane.getDependencies() == null ? 0 : tane.getDependencies().size()) + "\n");
-		if (tane.getDependencies() != null) {
-			builder.append("========== Dependencies =============\n");
-			for (String dep : tane.getDependencies()) {
-				builder.append("Dependency: " + dep + "\n");
-				builder.append("To delete (" + tane.deletandMap.get(dep).size() + "): " + tane.deletandMap.get(dep) + "\n");
-			}
-
-		}
-		System.out.println(builder);
-		serializeResults(builder);
+		if (tane.flagColumn != null) {
+			tane.writeFlags();
+		}
+		if (tane.exportFile != null) {
+			try {
+				tane.exportViolations();
+			} catch (IOException ex) {
+				logger.log(Level.SEVERE, null, ex);
+			}
+		}
+
+		System.out.println(tane.metrics);
+		long elapsed = System.currentTimeMillis() - beginning;
+		ReportWriter console = new TextReportWriter(Channels.newChannel(System.out));
+		try {
+			console.writeHeader(tane.getStatistics(elapsed));
+			console.flush();
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, null, ex);
+		}
+		tane.saveReport("", elapsed);
 	}
 }
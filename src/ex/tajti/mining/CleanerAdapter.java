@@ -0,0 +1,23 @@
+package ex.tajti.mining;
+
+import java.util.Collection;
+
+/**
+ * An empty implementation of <code>CleanerListener</code>. Subclasses override only the
+ * methods they need.
+ *
+ * @author Akos Tajti
+ */
+public abstract class CleanerAdapter implements CleanerListener {
+	@Override
+	public void levelStarted(int level, int attributeSets, int pendingChecks) {
+	}
+
+	@Override
+	public void dependencyFound(String dependency, double error, int violations, Collection<Integer> rows) {
+	}
+
+	@Override
+	public void levelFinished(int level, int checked, int found, int nextAttributeSets, long elapsedMillis) {
+	}
+}
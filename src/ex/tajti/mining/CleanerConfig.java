@@ -0,0 +1,607 @@
+package ex.tajti.mining;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The immutable configuration of a run of <code>CleanerEngine</code>. Created by a
+ * <code>Builder</code>:
+ * <pre>
+ * CleanerConfig config = CleanerConfig.builder(jdbcUrl, "flare").attributes("a", "b", "c").epsilon(0.01).build();
+ * </pre>
+ * A configuration can be shared by any number of runs and threads.
+ *
+ * @author Akos Tajti
+ */
+public final class CleanerConfig {
+	private final String jdbcUrl;
+	private final String table;
+	private final List<String> attributes;
+	private final double epsilon;
+	private final double delta;
+	private final boolean sampled;
+	private final int chunkSize;
+	private final boolean adaptiveChunks;
+	private final double heapFraction;
+	private final long pushdownThreshold;
+	private final List<InetSocketAddress> workers;
+	private final boolean profiling;
+	private final boolean hybrid;
+	private final int precheckSampleSize;
+	private final int topRows;
+	private final long violationSpillThreshold;
+	private final long timeLimit;
+	private final int maxLhsSize;
+	private final long maxMemory;
+	private final PartitionCache partitionCache;
+	private final FdCatalog catalog;
+	private final String keyColumn;
+	private final String flagColumn;
+	private final String scoreColumn;
+	private final int flagBatchSize;
+	private final File exportFile;
+	private final int exportBatchSize;
+	private final int exportConnections;
+
+	private CleanerConfig(Builder builder) {
+		jdbcUrl = builder.jdbcUrl;
+		table = builder.table;
+		attributes = Collections.unmodifiableList(new ArrayList<String>(builder.attributes));
+		epsilon = builder.epsilon;
+		delta = builder.delta;
+		sampled = builder.sampled;
+		chunkSize = builder.chunkSize;
+		adaptiveChunks = builder.adaptiveChunks;
+		heapFraction = builder.heapFraction;
+		pushdownThreshold = builder.pushdownThreshold;
+		workers = builder.workers == null ? null : Collections.unmodifiableList(new ArrayList<InetSocketAddress>(builder.workers));
+		profiling = builder.profiling;
+		hybrid = builder.hybrid;
+		precheckSampleSize = builder.precheckSampleSize;
+		topRows = builder.topRows;
+		violationSpillThreshold = builder.violationSpillThreshold;
+		timeLimit = builder.timeLimit;
+		maxLhsSize = builder.maxLhsSize;
+		maxMemory = builder.maxMemory;
+		partitionCache = builder.partitionCache;
+		catalog = builder.catalog;
+		keyColumn = builder.keyColumn;
+		flagColumn = builder.flagColumn;
+		scoreColumn = builder.scoreColumn;
+		flagBatchSize = builder.flagBatchSize;
+		exportFile = builder.exportFile;
+		exportBatchSize = builder.exportBatchSize;
+		exportConnections = builder.exportConnections;
+	}
+
+	/**
+	 * Returns a builder of the configuration checking <code>table</code> in the database at
+	 * <code>jdbcUrl</code>.
+	 *
+	 * @param jdbcUrl
+	 * @param table
+	 * @return
+	 */
+	public static Builder builder(String jdbcUrl, String table) {
+		return new Builder(jdbcUrl, table);
+	}
+
+	/**
+	 * Returns a builder initialized with the values of this configuration.
+	 *
+	 * @return
+	 */
+	public Builder toBuilder() {
+		Builder builder = new Builder(jdbcUrl, table);
+		builder.attributes.addAll(attributes);
+		builder.epsilon = epsilon;
+		builder.delta = delta;
+		builder.sampled = sampled;
+		builder.chunkSize = chunkSize;
+		builder.adaptiveChunks = adaptiveChunks;
+		builder.heapFraction = heapFraction;
+		builder.pushdownThreshold = pushdownThreshold;
+		builder.workers = workers;
+		builder.profiling = profiling;
+		builder.hybrid = hybrid;
+		builder.precheckSampleSize = precheckSampleSize;
+		builder.topRows = topRows;
+		builder.violationSpillThreshold = violationSpillThreshold;
+		builder.timeLimit = timeLimit;
+		builder.maxLhsSize = maxLhsSize;
+		builder.maxMemory = maxMemory;
+		builder.partitionCache = partitionCache;
+		builder.catalog = catalog;
+		builder.keyColumn = keyColumn;
+		builder.flagColumn = flagColumn;
+		builder.scoreColumn = scoreColumn;
+		builder.flagBatchSize = flagBatchSize;
+		builder.exportFile = exportFile;
+		builder.exportBatchSize = exportBatchSize;
+		builder.exportConnections = exportConnections;
+		return builder;
+	}
+
+	public String getJdbcUrl() {
+		return jdbcUrl;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public double getDelta() {
+		return delta;
+	}
+
+	public boolean isSampled() {
+		return sampled;
+	}
+
+	/**
+	 * @return the chunk size or 0 if the rows are not processed in chunks
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isAdaptiveChunks() {
+		return adaptiveChunks;
+	}
+
+	public double getHeapFraction() {
+		return heapFraction;
+	}
+
+	public long getPushdownThreshold() {
+		return pushdownThreshold;
+	}
+
+	/**
+	 * @return the workers holding the shards of the rows, <code>null</code> if the rows are processed locally
+	 */
+	public List<InetSocketAddress> getWorkers() {
+		return workers;
+	}
+
+	public boolean isProfiling() {
+		return profiling;
+	}
+
+	public boolean isHybrid() {
+		return hybrid;
+	}
+
+	/**
+	 * @return The number of rows sampled by the pre-check of the candidates, 0 if there is no pre-check.
+	 */
+	public int getPrecheckSampleSize() {
+		return precheckSampleSize;
+	}
+
+	public int getTopRows() {
+		return topRows;
+	}
+
+	public long getViolationSpillThreshold() {
+		return violationSpillThreshold;
+	}
+
+	/**
+	 * @return the maximal length of a run in milliseconds, 0 means no limit
+	 */
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+	public int getMaxLhsSize() {
+		return maxLhsSize;
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	public PartitionCache getPartitionCache() {
+		return partitionCache;
+	}
+
+	public FdCatalog getCatalog() {
+		return catalog;
+	}
+
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+
+	/**
+	 * @return the column receiving the number of dependencies broken by the rows, <code>null</code> if the flags are not written back
+	 */
+	public String getFlagColumn() {
+		return flagColumn;
+	}
+
+	public String getScoreColumn() {
+		return scoreColumn;
+	}
+
+	public int getFlagBatchSize() {
+		return flagBatchSize;
+	}
+
+	/**
+	 * @return the file receiving the values of the violating rows, <code>null</code> if they are not exported
+	 */
+	public File getExportFile() {
+		return exportFile;
+	}
+
+	public int getExportBatchSize() {
+		return exportBatchSize;
+	}
+
+	public int getExportConnections() {
+		return exportConnections;
+	}
+
+	/**
+	 * Builds a <code>CleanerConfig</code>. The defaults are the same as the defaults of the
+	 * command line. A builder is not thread-safe, the configurations it builds are.
+	 */
+	public static final class Builder {
+		private final String jdbcUrl;
+		private final String table;
+		private final List<String> attributes = new ArrayList<String>();
+		private double epsilon = 0.05;
+		private double delta = 0.05;
+		private boolean sampled;
+		private int chunkSize;
+		private boolean adaptiveChunks;
+		private double heapFraction;
+		private long pushdownThreshold;
+		private List<InetSocketAddress> workers;
+		private boolean profiling;
+		private boolean hybrid;
+		private int precheckSampleSize;
+		private int topRows = 20;
+		private long violationSpillThreshold = Long.MAX_VALUE;
+		private long timeLimit;
+		private int maxLhsSize = -1;
+		private long maxMemory;
+		private PartitionCache partitionCache;
+		private FdCatalog catalog;
+		private String keyColumn;
+		private String flagColumn;
+		private String scoreColumn;
+		private int flagBatchSize = FlagWriter.BATCH_SIZE;
+		private File exportFile;
+		private int exportBatchSize = ViolationExporter.BATCH_SIZE;
+		private int exportConnections = ViolationExporter.CONNECTIONS;
+
+		private Builder(String jdbcUrl, String table) {
+			this.jdbcUrl = jdbcUrl;
+			this.table = table;
+		}
+
+		/**
+		 * Adds attributes to the attributes checked.
+		 *
+		 * @param attributes
+		 * @return
+		 */
+		public Builder attributes(String... attributes) {
+			for (String attribute : attributes) {
+				this.attributes.add(attribute);
+			}
+			return this;
+		}
+
+		/**
+		 * Adds attributes to the attributes checked.
+		 *
+		 * @param attributes
+		 * @return
+		 */
+		public Builder attributes(List<String> attributes) {
+			this.attributes.addAll(attributes);
+			return this;
+		}
+
+		public Builder epsilon(double epsilon) {
+			this.epsilon = epsilon;
+			return this;
+		}
+
+		/**
+		 * Sets the delta used for computing the sample size.
+		 *
+		 * @param delta
+		 * @return
+		 */
+		public Builder delta(double delta) {
+			this.delta = delta;
+			return this;
+		}
+
+		/**
+		 * Processes only a sample of the rows. Its size is computed from epsilon and delta.
+		 *
+		 * @param sampled
+		 * @return
+		 */
+		public Builder sampled(boolean sampled) {
+			this.sampled = sampled;
+			return this;
+		}
+
+		/**
+		 * Reads the rows in chunks of <code>chunkSize</code> rows. 0 means no chunks.
+		 *
+		 * @param chunkSize
+		 * @return
+		 */
+		public Builder chunkSize(int chunkSize) {
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		/**
+		 * Reads the rows in chunks adapted to the heap budget (see <code>heapFraction()</code>).
+		 *
+		 * @param adaptiveChunks
+		 * @return
+		 */
+		public Builder adaptiveChunks(boolean adaptiveChunks) {
+			this.adaptiveChunks = adaptiveChunks;
+			return this;
+		}
+
+		/**
+		 * Sets the fraction of the heap the partitions may occupy, the rest is spilled to disk. 0
+		 * means no limit, or half of the heap if the chunks are adapted to the heap.
+		 *
+		 * @param heapFraction
+		 * @return
+		 */
+		public Builder heapFraction(double heapFraction) {
+			this.heapFraction = heapFraction;
+			return this;
+		}
+
+		/**
+		 * Checks the dependencies in the database from the level whose partitions would exceed
+		 * <code>bytes</code>. 0 turns it off.
+		 *
+		 * @param bytes
+		 * @return
+		 */
+		public Builder pushdownThreshold(long bytes) {
+			this.pushdownThreshold = bytes;
+			return this;
+		}
+
+		/**
+		 * Spreads the rows across <code>ShardWorker</code> processes. <code>null</code> means the
+		 * rows are processed locally.
+		 *
+		 * @param workers
+		 * @return
+		 */
+		public Builder workers(List<InetSocketAddress> workers) {
+			this.workers = workers;
+			return this;
+		}
+
+		/**
+		 * Profiles the columns first and leaves out the keys and the constants.
+		 *
+		 * @param profiling
+		 * @return
+		 */
+		public Builder profiling(boolean profiling) {
+			this.profiling = profiling;
+			return this;
+		}
+
+		/**
+		 * Uses <code>HybridDiscovery</code> instead of the level-wise traversal.
+		 *
+		 * @param hybrid
+		 * @return
+		 */
+		public Builder hybrid(boolean hybrid) {
+			this.hybrid = hybrid;
+			return this;
+		}
+
+		/**
+		 * Rejects the candidates whose error on a sample of <code>sampleSize</code> rows is too
+		 * high before their partitions are computed (see <code>SampleChecker</code>). 0 turns the
+		 * pre-check off.
+		 *
+		 * @param sampleSize
+		 * @return
+		 */
+		public Builder precheckSampleSize(int sampleSize) {
+			this.precheckSampleSize = sampleSize;
+			return this;
+		}
+
+		/**
+		 * Sets the number of the most suspicious rows in the report.
+		 *
+		 * @param topRows
+		 * @return
+		 */
+		public Builder topRows(int topRows) {
+			this.topRows = topRows;
+			return this;
+		}
+
+		/**
+		 * Sets the size of the violation sets (in bytes) kept in memory, the rest is spilled to disk.
+		 *
+		 * @param bytes
+		 * @return
+		 */
+		public Builder violationSpillThreshold(long bytes) {
+			this.violationSpillThreshold = bytes;
+			return this;
+		}
+
+		/**
+		 * Stops a run after <code>millis</code> milliseconds. The dependencies found so far are
+		 * returned as a partial result. 0 means no limit.
+		 *
+		 * @param millis
+		 * @return
+		 */
+		public Builder timeLimit(long millis) {
+			this.timeLimit = millis;
+			return this;
+		}
+
+		/**
+		 * Checks the left sides of at most <code>maxLhsSize</code> attributes. Negative means no limit.
+		 *
+		 * @param maxLhsSize
+		 * @return
+		 */
+		public Builder maxLhsSize(int maxLhsSize) {
+			this.maxLhsSize = maxLhsSize;
+			return this;
+		}
+
+		/**
+		 * Stops a run when the partitions and the violating row sets exceed <code>bytes</code>. 0
+		 * means no limit.
+		 *
+		 * @param bytes
+		 * @return
+		 */
+		public Builder maxMemory(long bytes) {
+			this.maxMemory = bytes;
+			return this;
+		}
+
+		/**
+		 * Sets the cache of the base partitions shared by the runs. <code>null</code> means no cache.
+		 *
+		 * @param partitionCache
+		 * @return
+		 */
+		public Builder partitionCache(PartitionCache partitionCache) {
+			this.partitionCache = partitionCache;
+			return this;
+		}
+
+		/**
+		 * Sets the catalog of the dependencies found by earlier runs. A run on an unchanged table
+		 * returns the cataloged dependencies. <code>null</code> means no catalog.
+		 *
+		 * @param catalog
+		 * @return
+		 */
+		public Builder catalog(FdCatalog catalog) {
+			this.catalog = catalog;
+			return this;
+		}
+
+		/**
+		 * Sets the column identifying the rows of the table.
+		 *
+		 * @param keyColumn
+		 * @return
+		 */
+		public Builder keyColumn(String keyColumn) {
+			this.keyColumn = keyColumn;
+			return this;
+		}
+
+		/**
+		 * Writes the number of dependencies broken by every row to <code>flagColumn</code> and its
+		 * score to <code>scoreColumn</code> after the run (see <code>FlagWriter</code>). Needs the key
+		 * column.
+		 *
+		 * @param flagColumn
+		 * @param scoreColumn <code>null</code> if the scores are not written.
+		 * @return
+		 */
+		public Builder flagColumns(String flagColumn, String scoreColumn) {
+			this.flagColumn = flagColumn;
+			this.scoreColumn = scoreColumn;
+			return this;
+		}
+
+		/**
+		 * Sets the number of rows inserted into the staging table by one batch when the flags are written.
+		 *
+		 * @param flagBatchSize
+		 * @return
+		 */
+		public Builder flagBatchSize(int flagBatchSize) {
+			this.flagBatchSize = flagBatchSize;
+			return this;
+		}
+
+		/**
+		 * Writes the values of the rows breaking the dependencies to <code>exportFile</code> after
+		 * the run (see <code>ViolationExporter</code>). Needs the key column.
+		 *
+		 * @param exportFile
+		 * @return
+		 */
+		public Builder exportFile(File exportFile) {
+			this.exportFile = exportFile;
+			return this;
+		}
+
+		/**
+		 * Sets how the violating rows are read when they are exported.
+		 *
+		 * @param batchSize The number of rows read by one query.
+		 * @param connections The number of connections reading the rows at the same time.
+		 * @return
+		 */
+		public Builder exportBatches(int batchSize, int connections) {
+			this.exportBatchSize = batchSize;
+			this.exportConnections = connections;
+			return this;
+		}
+
+		/**
+		 * Creates the configuration.
+		 *
+		 * @return
+		 * @throws IllegalArgumentException if the JDBC url, the table or the attributes are missing,
+		 * the flags are written or the rows are exported without a key column or epsilon is not
+		 * between 0 and 1
+		 */
+		public CleanerConfig build() {
+			if (jdbcUrl == null || table == null || attributes.isEmpty()) {
+				throw new IllegalArgumentException("the JDBC url, the table and the attributes are mandatory");
+			}
+			if (flagColumn != null && keyColumn == null) {
+				throw new IllegalArgumentException("writing the flags needs the key column");
+			}
+			if (exportFile != null && keyColumn == null) {
+				throw new IllegalArgumentException("exporting the rows needs the key column");
+			}
+			if (epsilon < 0 || epsilon > 1) {
+				throw new IllegalArgumentException("epsilon must be between 0 and 1: " + epsilon);
+			}
+			return new CleanerConfig(this);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package ex.tajti.mining;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Runs the dependency discovery from an application. Every run has its own state, so one engine
+ * can be called by any number of threads at the same time:
+ * <pre>
+ * CleanerEngine engine = new CleanerEngine();
+ * CleanerResult result = engine.run(CleanerConfig.builder(jdbcUrl, "flare").attributes("a", "b", "c").build());
+ * </pre>
+ * The JDBC driver must be loaded by the application. The runs sharing a
+ * <code>PartitionCache</code> (see <code>CleanerConfig.Builder.partitionCache()</code>) share
+ * the base partitions of their tables. If the flag columns are set, the flags of the rows are
+ * written back to the table before the result is returned; if the export file is set, the values
+ * of the violating rows are exported to it.
+ *
+ * @author Akos Tajti
+ */
+public class CleanerEngine {
+
+	/**
+	 * Runs the discovery configured by <code>config</code>.
+	 *
+	 * @param config
+	 * @return
+	 * @throws SQLException if the rows cannot be read or the dependencies cannot be checked in the database
+	 * @throws IOException if the violating rows cannot be exported
+	 */
+	public CleanerResult run(CleanerConfig config) throws SQLException, IOException {
+		return run(config, null);
+	}
+
+	/**
+	 * Runs the discovery configured by <code>config</code> and notifies <code>listener</code>
+	 * about its progress. The listener is called by the calling thread.
+	 *
+	 * @param config
+	 * @param listener <code>null</code> means no listener.
+	 * @return
+	 * @throws SQLException if the rows cannot be read or the dependencies cannot be checked in the database
+	 * @throws IOException if the violating rows cannot be exported
+	 */
+	public CleanerResult run(CleanerConfig config, CleanerListener listener) throws SQLException, IOException {
+		Cleaner cleaner = new Cleaner(config);
+		if (listener != null) {
+			cleaner.addListener(listener);
+		}
+		long beginning = System.currentTimeMillis();
+		cleaner.proceed();
+		if (config.getFlagColumn() != null) {
+			cleaner.writeFlags();
+		}
+		if (config.getExportFile() != null) {
+			cleaner.exportViolations();
+		}
+		return new CleanerResult(config, cleaner, System.currentTimeMillis() - beginning);
+	}
+}
@@ -0,0 +1,45 @@
+package ex.tajti.mining;
+
+import java.util.Collection;
+
+/**
+ * Receives the results of a <code>Cleaner</code> while it runs. Dependencies are published
+ * as soon as they are accepted so consumers don't have to wait for the end of the run.
+ * <br/>
+ * The methods are called on the thread running <code>Cleaner.proceed()</code>, so they
+ * should return quickly. Exceptions thrown by a listener are logged and ignored.
+ *
+ * @author Akos Tajti
+ * @see CleanerAdapter
+ */
+public interface CleanerListener {
+	/**
+	 * Called when the processing of a level starts.
+	 *
+	 * @param level The number of the level.
+	 * @param attributeSets The number of attribute sets on the level.
+	 * @param pendingChecks The number of dependencies that may have to be checked on the level.
+	 */
+	void levelStarted(int level, int attributeSets, int pendingChecks);
+
+	/**
+	 * Called when a valid dependency is found.
+	 *
+	 * @param dependency The dependency in <code>attr1:attr2->attr3</code> format.
+	 * @param error The number of rows breaking the dependency divided by the number of rows.
+	 * @param violations The number of rows breaking the dependency.
+	 * @param rows The IDs of the rows breaking the dependency. Mustn't be modified.
+	 */
+	void dependencyFound(String dependency, double error, int violations, Collection<Integer> rows);
+
+	/**
+	 * Called when the processing of a level is finished.
+	 *
+	 * @param level The number of the level.
+	 * @param checked The number of dependencies checked on the level.
+	 * @param found The number of valid dependencies found on the level.
+	 * @param nextAttributeSets The number of attribute sets on the next level.
+	 * @param elapsedMillis The time spent with the level.
+	 */
+	void levelFinished(int level, int checked, int found, int nextAttributeSets, long elapsedMillis);
+}
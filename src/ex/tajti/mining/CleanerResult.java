@@ -0,0 +1,193 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The immutable result of a run of <code>CleanerEngine</code>: the dependencies found, their
+ * errors, the rows breaking them and the metrics of the run. It doesn't refer to the state of the
+ * run, so it can be kept and shared by threads after the run is finished.
+ *
+ * @author Akos Tajti
+ */
+public final class CleanerResult {
+	private final CleanerConfig config;
+
+	private final List<String> dependencies;
+
+	private final Map<String, Double> errors;
+
+	private final Map<String, RowBitmap> violations;
+
+	private final List<RowScorer.RowScore> suspiciousRows;
+
+	private final Map<String, Object> statistics;
+
+	private final List<Metrics.LevelMetrics> levels;
+
+	private final int numberOfRows;
+
+	private final RowKeys rowKeys;
+
+	private final String stoppedBy;
+
+	private final int levelReached;
+
+	private final long elapsedMillis;
+
+	/**
+	 * Copies the result of a finished run.
+	 *
+	 * @param config
+	 * @param cleaner
+	 * @param elapsedMillis
+	 */
+	CleanerResult(CleanerConfig config, Cleaner cleaner, long elapsedMillis) {
+		this.config = config;
+		this.numberOfRows = cleaner.getNumberOfRows();
+		this.rowKeys = cleaner.getRowKeys();
+		this.elapsedMillis = elapsedMillis;
+		this.stoppedBy = cleaner.getStoppedBy();
+		this.levelReached = cleaner.getLevelReached();
+
+		List<String> found = cleaner.getDependencies() == null ? Collections.<String>emptyList() : cleaner.getDependencies();
+		Map<String, Double> errorMap = new LinkedHashMap<String, Double>();
+		Map<String, RowBitmap> violationMap = new LinkedHashMap<String, RowBitmap>();
+		for (String dep : found) {
+			RowBitmap rows = cleaner.getViolations().get(dep);
+			violationMap.put(dep, rows);
+			errorMap.put(dep, numberOfRows == 0 ? 0 : (double) rows.size() / numberOfRows);
+		}
+		this.dependencies = Collections.unmodifiableList(new ArrayList<String>(found));
+		this.errors = Collections.unmodifiableMap(errorMap);
+		this.violations = Collections.unmodifiableMap(violationMap);
+		this.suspiciousRows = Collections.unmodifiableList(cleaner.getScorer() == null || config.getTopRows() <= 0
+			? Collections.<RowScorer.RowScore>emptyList() : cleaner.getScorer().top(config.getTopRows()));
+		this.statistics = Collections.unmodifiableMap(cleaner.getStatistics(elapsedMillis));
+		this.levels = Collections.unmodifiableList(new ArrayList<Metrics.LevelMetrics>(cleaner.getMetrics().getLevels()));
+	}
+
+	/**
+	 * @return the configuration of the run
+	 */
+	public CleanerConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Returns the dependencies found in the order they were found.
+	 *
+	 * @return
+	 */
+	public List<String> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * Returns the error of a dependency (the fraction of the rows to delete to make it hold), or
+	 * <code>null</code> if it wasn't found.
+	 *
+	 * @param dependency
+	 * @return
+	 */
+	public Double getError(String dependency) {
+		return errors.get(dependency);
+	}
+
+	/**
+	 * @return the errors of the dependencies
+	 */
+	public Map<String, Double> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Returns the rows breaking a dependency, or <code>null</code> if it wasn't found.
+	 *
+	 * @param dependency
+	 * @return
+	 */
+	public RowBitmap getViolations(String dependency) {
+		return violations.get(dependency);
+	}
+
+	/**
+	 * @return the rows breaking the dependencies
+	 */
+	public Map<String, RowBitmap> getViolations() {
+		return violations;
+	}
+
+	/**
+	 * @return the most suspicious rows, at most <code>getConfig().getTopRows()</code>
+	 */
+	public List<RowScorer.RowScore> getSuspiciousRows() {
+		return suspiciousRows;
+	}
+
+	/**
+	 * @return the statistics of the run in the order they appear in the reports
+	 */
+	public Map<String, Object> getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the metrics of the levels
+	 */
+	public List<Metrics.LevelMetrics> getLevels() {
+		return levels;
+	}
+
+	public int getNumberOfRows() {
+		return numberOfRows;
+	}
+
+	/**
+	 * @return the keys of the rows, <code>null</code> if the key column is not set
+	 */
+	public RowKeys getRowKeys() {
+		return rowKeys;
+	}
+
+	/**
+	 * Returns the key of a row (see <code>RowKeys.getKey()</code>), or the row ID if the key column
+	 * is not set.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public Object getKey(int row) {
+		return rowKeys == null ? (Object) row : rowKeys.getKey(row);
+	}
+
+	/**
+	 * Returns <code>true</code> if the run was stopped by a limit, so some dependencies may be missing.
+	 *
+	 * @return
+	 */
+	public boolean isPartial() {
+		return stoppedBy != null;
+	}
+
+	/**
+	 * @return the limit that stopped the run, or <code>null</code> if it wasn't stopped
+	 */
+	public String getStoppedBy() {
+		return stoppedBy;
+	}
+
+	/**
+	 * @return the last level processed (fully or partially)
+	 */
+	public int getLevelReached() {
+		return levelReached;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+}
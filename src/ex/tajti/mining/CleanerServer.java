@@ -0,0 +1,239 @@
+package ex.tajti.mining;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the application resident and accepts jobs over HTTP on the loopback interface. The base
+ * partitions of the tables are kept in a <code>PartitionCache</code>, so a repeated request on the
+ * same table (with a different epsilon or a subset of the attributes) doesn't read the table again.
+ * <br/>
+ * Endpoints:
+ * <ul>
+ * <li><code>/run?table=t&attributes=a,b,c[&epsilon=0.05][&format=json|text][&k=20][&chunk=n]</code>: runs a
+ * job and responds with its report.</li>
+ * <li><code>/cache</code>: the statistics of the cache.</li>
+ * <li><code>/invalidate?table=t</code>: removes the partitions of a table from the cache.</li>
+ * <li><code>/shutdown</code>: stops the server.</li>
+ * </ul>
+ *
+ * @author Akos Tajti
+ */
+public class CleanerServer {
+	private static final Logger logger = Logger.getLogger(CleanerServer.class.getSimpleName());
+
+	private final String jdbcUrl;
+
+	private final PartitionCache cache;
+
+	private final int port;
+
+	private final int threads;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	/**
+	 * @param jdbcUrl
+	 * @param port
+	 * @param threads The number of requests processed at the same time.
+	 * @param cache
+	 */
+	public CleanerServer(String jdbcUrl, int port, int threads, PartitionCache cache) {
+		this.jdbcUrl = jdbcUrl;
+		this.port = port;
+		this.threads = threads;
+		this.cache = cache;
+	}
+
+	/**
+	 * Starts the server. Returns immediately.
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/run", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleRun(exchange);
+			}
+		});
+		server.createContext("/cache", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, cache.toJson());
+			}
+		});
+		server.createContext("/invalidate", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String table = parameters(exchange).get("table");
+				if (table == null) {
+					cache.clear();
+				} else {
+					cache.invalidate(jdbcUrl, table);
+				}
+				respond(exchange, 200, cache.toJson());
+			}
+		});
+		server.createContext("/shutdown", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, "{\"status\":\"stopping\"}");
+				new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						stop();
+					}
+				}).start();
+			}
+		});
+		server.start();
+		logger.info("listening on " + server.getAddress());
+	}
+
+	/**
+	 * Stops the server and waits for the running requests.
+	 */
+	public void stop() {
+		if (server != null) {
+			server.stop(1);
+			executor.shutdown();
+			server = null;
+		}
+	}
+
+	/**
+	 * Returns the port the server listens on.
+	 *
+	 * @return
+	 */
+	public int getPort() {
+		return server == null ? port : server.getAddress().getPort();
+	}
+
+	private void handleRun(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = parameters(exchange);
+		String table = parameters.get("table");
+		String attributes = parameters.get("attributes");
+		if (table == null || attributes == null) {
+			respond(exchange, 400, error("the table and attributes parameters are mandatory"));
+			return;
+		}
+		String format = parameters.containsKey("format") ? parameters.get("format") : "json";
+		if (!format.equals("json") && !format.equals("text")) {
+			respond(exchange, 400, error("unknown format"));
+			return;
+		}
+
+		Cleaner cleaner = new Cleaner();
+		cleaner.setJdbcUrl(jdbcUrl);
+		cleaner.setTable(table);
+		for (String attribute : attributes.split(",")) {
+			cleaner.addAttribute(attribute);
+		}
+		cleaner.setPartitionCache(cache);
+		try {
+			if (parameters.containsKey("epsilon")) {
+				cleaner.setEpsilon(Double.parseDouble(parameters.get("epsilon")));
+			}
+			if (parameters.containsKey("k")) {
+				cleaner.setTopRows(Integer.parseInt(parameters.get("k")));
+			}
+			if (parameters.containsKey("chunk")) {
+				cleaner.setChunks(true);
+				cleaner.setChunkSize(Integer.parseInt(parameters.get("chunk")));
+			}
+		} catch (NumberFormatException ex) {
+			respond(exchange, 400, error("invalid number: " + ex.getMessage()));
+			return;
+		}
+
+		long beginning = System.currentTimeMillis();
+		try {
+			cleaner.proceed();
+		} catch (Exception ex) {
+			logger.log(Level.SEVERE, "job failed", ex);
+			respond(exchange, 500, error(String.valueOf(ex.getMessage())));
+			return;
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", format.equals("json") ? "application/x-ndjson" : "text/plain");
+		exchange.sendResponseHeaders(200, 0);
+		ReportWriter writer = ReportWriter.create(format, Channels.newChannel(exchange.getResponseBody()));
+		try {
+			cleaner.writeReport(writer, System.currentTimeMillis() - beginning);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Returns the JSON body of an error response. The message is escaped like the strings of the
+	 * JSON report.
+	 *
+	 * @param message
+	 * @return
+	 */
+	private static String error(String message) {
+		return "{\"error\":" + JsonReportWriter.quote(message) + "}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Returns the parameters of the query string.
+	 *
+	 * @param exchange
+	 * @return
+	 * @throws UnsupportedEncodingException
+	 */
+	private static Map<String, String> parameters(HttpExchange exchange) throws UnsupportedEncodingException {
+		Map<String, String> result = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return result;
+		}
+		for (String pair : query.split("&")) {
+			int index = pair.indexOf('=');
+			if (index > 0) {
+				result.put(URLDecoder.decode(pair.substring(0, index), "UTF-8"), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+			}
+		}
+		return result;
+	}
+}
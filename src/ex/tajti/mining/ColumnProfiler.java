@@ -0,0 +1,245 @@
+package ex.tajti.mining;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Profiles the columns of a query in one streaming pass, before any partition is built. Every
+ * column gets a HyperLogLog sketch estimating the number of distinct values and a Misra-Gries
+ * sketch estimating the frequency of the most frequent values. Both use a fixed amount of memory
+ * regardless of the number of rows.
+ * <br/>
+ * The sketches find the columns that are (nearly) keys or (nearly) constant. The estimates are
+ * only used to select candidates: the classification of a column is confirmed exactly before it
+ * is used.
+ *
+ * @author Akos Tajti
+ */
+public class ColumnProfiler {
+	private static final Logger logger = Logger.getLogger(ColumnProfiler.class.getSimpleName());
+
+	/**
+	 * The number of bits of the hash used to select the register of the HyperLogLog sketch. The
+	 * relative standard error of the estimate is 1.04 / sqrt(2^PRECISION), about 1.6%.
+	 */
+	static final int PRECISION = 12;
+
+	/**
+	 * The number of counters in the Misra-Gries sketch.
+	 */
+	static final int COUNTERS = 16;
+
+	/**
+	 * The sketches of the columns.
+	 */
+	private final Map<String, ColumnSketch> sketches = new HashMap<String, ColumnSketch>();
+
+	/**
+	 * The number of rows profiled.
+	 */
+	private int numberOfRows;
+
+	/**
+	 * Reads <code>results</code> and updates the sketches of its columns. The result set is
+	 * closed.
+	 *
+	 * @param results
+	 * @throws SQLException
+	 */
+	public void profile(ResultSet results) throws SQLException {
+		ResultSetMetaData meta = results.getMetaData();
+		int columnCount = meta.getColumnCount();
+		ColumnSketch[] columns = new ColumnSketch[columnCount + 1];
+		for (int i = 1; i <= columnCount; i++) {
+			columns[i] = new ColumnSketch();
+			sketches.put(meta.getColumnName(i), columns[i]);
+		}
+
+		try {
+			while (results.next()) {
+				for (int i = 1; i <= columnCount; i++) {
+					columns[i].add(results.getObject(i));
+				}
+				++numberOfRows;
+			}
+		} finally {
+			results.close();
+		}
+		logger.info("profiled " + numberOfRows + " rows");
+	}
+
+	/**
+	 * Returns the number of rows profiled.
+	 *
+	 * @return
+	 */
+	public int getNumberOfRows() {
+		return numberOfRows;
+	}
+
+	/**
+	 * Returns the estimated number of distinct values in <code>column</code>.
+	 *
+	 * @param column
+	 * @return
+	 */
+	public double estimateDistinct(String column) {
+		return sketches.get(column).distinct.estimate();
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>column</code> may be a key: its estimated number of
+	 * distinct values is within three standard errors of the number of rows.
+	 *
+	 * @param column
+	 * @return
+	 */
+	public boolean isNearKey(String column) {
+		double tolerance = 3 * 1.04 / Math.sqrt(1 << PRECISION);
+		return estimateDistinct(column) >= (1 - tolerance) * numberOfRows;
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>column</code> has the same value in every row. The
+	 * answer is exact.
+	 *
+	 * @param column
+	 * @return
+	 */
+	public boolean isConstant(String column) {
+		// a Misra-Gries counter never exceeds the real frequency, so it's exact if it equals the number of rows
+		return numberOfRows > 0 && sketches.get(column).frequent.maxCount() == numberOfRows;
+	}
+
+	/**
+	 * Returns <code>true</code> if the most frequent value of <code>column</code> may occur in at
+	 * least <code>1 - epsilon</code> times the number of rows, that is the dependency -> column (with an empty left side)
+	 * may hold. There are no false negatives.
+	 *
+	 * @param column
+	 * @param epsilon
+	 * @return
+	 */
+	public boolean isNearConstant(String column, double epsilon) {
+		FrequencySketch frequent = sketches.get(column).frequent;
+		// a counter underestimates the frequency by at most n / (COUNTERS + 1)
+		long upperBound = frequent.maxCount() + numberOfRows / (COUNTERS + 1);
+		return upperBound >= (1 - epsilon) * numberOfRows;
+	}
+
+	/**
+	 * The sketches of a column.
+	 */
+	private static class ColumnSketch {
+		private final HyperLogLog distinct = new HyperLogLog(PRECISION);
+		private final FrequencySketch frequent = new FrequencySketch(COUNTERS);
+
+		void add(Object value) {
+			long hash = HyperLogLog.hash(value);
+			distinct.add(hash);
+			frequent.add(value);
+		}
+	}
+
+	/**
+	 * Estimates the number of distinct values.
+	 */
+	static class HyperLogLog {
+		private final byte[] registers;
+
+		private final int precision;
+
+		HyperLogLog(int precision) {
+			this.precision = precision;
+			this.registers = new byte[1 << precision];
+		}
+
+		/**
+		 * Spreads the bits of the hash code of <code>value</code> over 64 bits (the finalizer of
+		 * MurmurHash3).
+		 *
+		 * @param value
+		 * @return
+		 */
+		static long hash(Object value) {
+			long h = value == null ? 0 : value.hashCode();
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+
+		void add(long hash) {
+			int index = (int) (hash >>> (64 - precision));
+			// the sentinel bit limits the rank when the remaining bits are all 0
+			int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+			if (rank > registers[index]) {
+				registers[index] = (byte) rank;
+			}
+		}
+
+		double estimate() {
+			int m = registers.length;
+			double sum = 0;
+			int zeros = 0;
+			for (byte register : registers) {
+				sum += 1.0 / (1L << register);
+				if (register == 0) {
+					++zeros;
+				}
+			}
+			double alpha = 0.7213 / (1 + 1.079 / m);
+			double estimate = alpha * m * m / sum;
+			if (estimate <= 2.5 * m && zeros > 0) { // small range correction: linear counting
+				estimate = m * Math.log((double) m / zeros);
+			}
+			return estimate;
+		}
+	}
+
+	/**
+	 * The Misra-Gries sketch of the most frequent values. A counter is a lower bound of the
+	 * frequency of its value and underestimates it by at most n / (k + 1).
+	 */
+	static class FrequencySketch {
+		private final Map<Object, long[]> counters;
+
+		private final int capacity;
+
+		FrequencySketch(int capacity) {
+			this.capacity = capacity;
+			this.counters = new HashMap<Object, long[]>(capacity * 2);
+		}
+
+		void add(Object value) {
+			long[] counter = counters.get(value);
+			if (counter != null) {
+				++counter[0];
+			} else if (counters.size() < capacity) {
+				counters.put(value, new long[] { 1 });
+			} else {
+				for (Iterator<long[]> it = counters.values().iterator(); it.hasNext();) {
+					long[] other = it.next();
+					if (--other[0] == 0) {
+						it.remove();
+					}
+				}
+			}
+		}
+
+		long maxCount() {
+			long max = 0;
+			for (long[] counter : counters.values()) {
+				max = Math.max(max, counter[0]);
+			}
+			return max;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package ex.tajti.mining;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the errors of candidate dependencies. The dependencies are strings in this format:
+ * <code>a:b->c</code>. The candidates of a lattice level are checked together, so an
+ * implementation can batch them.
+ *
+ * @author Akos Tajti
+ */
+public interface DependencyChecker {
+
+	/**
+	 * Returns the minimal number of rows that must be deleted to make each dependency hold. A
+	 * dependency that cannot be checked (e.g. with an empty left side) is not in the result.
+	 *
+	 * @param deps
+	 * @param levelNumber
+	 * @return
+	 * @throws SQLException
+	 */
+	Map<String, Integer> countViolations(List<String> deps, int levelNumber) throws SQLException;
+
+	/**
+	 * Returns the rows that must be deleted to make each dependency hold. Called only with
+	 * dependencies checked by <code>countViolations</code>.
+	 *
+	 * @param deps
+	 * @return
+	 * @throws SQLException
+	 */
+	Map<String, Collection<Integer>> getViolatingRows(List<String> deps) throws SQLException;
+
+	/**
+	 * Returns the number of different value combinations of an attribute set, or -1 if it's not
+	 * known.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	int getNumberOfClasses(String attributeList);
+}
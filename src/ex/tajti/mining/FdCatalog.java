@@ -0,0 +1,335 @@
+package ex.tajti.mining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Stores the dependencies found on tables between runs, in a directory with one file per entry.
+ * An entry is keyed by the JDBC url, the table, the attributes, epsilon and the options changing
+ * the dependencies found (profiling and the hybrid discovery), and contains the
+ * fingerprint of the table, the number of rows and every dependency with the rows breaking it. If
+ * the rows were read ordered by a key column, the entry also holds their keys, so the row IDs can
+ * be mapped to the rows of the table without reading them again.
+ * <br/>
+ * The fingerprint is the number of rows and the result of <code>CHECKSUM TABLE</code>. If the
+ * database doesn't support <code>CHECKSUM TABLE</code>, the values of the attributes are hashed
+ * while they are read. If the fingerprint of a table is the same as the stored one, the stored
+ * dependencies are the result of the run. The class is thread-safe: entries are written to a
+ * temporary file and renamed.
+ *
+ * @author Akos Tajti
+ */
+public class FdCatalog {
+	private static final Logger logger = Logger.getLogger(FdCatalog.class.getSimpleName());
+
+	/**
+	 * The version of the file format.
+	 */
+	private static final int VERSION = 2;
+
+	private final File directory;
+
+	/**
+	 * @param directory The directory of the entries. Created if it doesn't exist.
+	 */
+	public FdCatalog(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Returns the key of the entry of a run. The order of the attributes doesn't matter.
+	 *
+	 * @param jdbcUrl
+	 * @param table
+	 * @param attributes
+	 * @param epsilon
+	 * @param profiling <code>true</code> if the columns are profiled (keys and constants are left out).
+	 * @param hybrid <code>true</code> if the dependencies are found by the hybrid discovery.
+	 * @return
+	 */
+	public static String key(String jdbcUrl, String table, List<String> attributes, double epsilon, boolean profiling, boolean hybrid) {
+		List<String> sorted = new ArrayList<String>(attributes);
+		Collections.sort(sorted);
+		StringBuilder builder = new StringBuilder(jdbcUrl).append('|').append(table).append('|');
+		for (String attribute : sorted) {
+			builder.append(attribute).append(',');
+		}
+		builder.append('|').append(epsilon);
+		if (profiling) {
+			builder.append("|profiling");
+		}
+		if (hybrid) {
+			builder.append("|hybrid");
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Computes the fingerprint of the attributes of <code>table</code>.
+	 *
+	 * @param conn
+	 * @param table
+	 * @param attributes
+	 * @return
+	 * @throws SQLException
+	 */
+	public static String fingerprint(Connection conn, String table, List<String> attributes) throws SQLException {
+		Statement st = conn.createStatement();
+		try {
+			long rows = 0;
+			ResultSet results = st.executeQuery("select count(*) from " + table);
+			while (results.next()) {
+				rows = results.getLong(1);
+			}
+			results.close();
+
+			String checksum = null;
+			try {
+				results = st.executeQuery("checksum table " + table);
+				while (results.next()) {
+					checksum = results.getString(2);
+				}
+				results.close();
+			} catch (SQLException ex) {
+				logger.info("checksum table is not supported, hashing the rows: " + ex.getMessage());
+			}
+			if (checksum == null) {
+				checksum = hash(st, table, attributes);
+			}
+
+			return rows + ":" + checksum;
+		} finally {
+			st.close();
+		}
+	}
+
+	/**
+	 * Hashes the values of the attributes of every row.
+	 *
+	 * @param st
+	 * @param table
+	 * @param attributes
+	 * @return
+	 * @throws SQLException
+	 */
+	private static String hash(Statement st, String table, List<String> attributes) throws SQLException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		StringBuilder query = new StringBuilder("select ");
+		for (String attribute : attributes) {
+			query.append(attribute).append(',');
+		}
+		query.deleteCharAt(query.length() - 1).append(" from ").append(table);
+
+		ResultSet results = st.executeQuery(query.toString());
+		try {
+			int columns = attributes.size();
+			while (results.next()) {
+				for (int i = 1; i <= columns; i++) {
+					String value = results.getString(i);
+					// null and the empty string must differ, so must ("ab", "c") and ("a", "bc")
+					if (value == null) {
+						digest.update((byte) 0);
+					} else {
+						digest.update((byte) 1);
+						update(digest, value);
+					}
+				}
+			}
+		} finally {
+			results.close();
+		}
+
+		StringBuilder hex = new StringBuilder("sha1-");
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			byte[] bytes = value.getBytes("UTF-8");
+			digest.update((byte) (bytes.length >>> 24));
+			digest.update((byte) (bytes.length >>> 16));
+			digest.update((byte) (bytes.length >>> 8));
+			digest.update((byte) bytes.length);
+			digest.update(bytes);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Returns the entry stored with <code>key</code>, or <code>null</code> if there's no such entry
+	 * or it cannot be read.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public Entry get(String key) {
+		File file = file(key);
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		} catch (FileNotFoundException ex) {
+			return null;
+		}
+		try {
+			if (in.readInt() != VERSION || !in.readUTF().equals(key)) {
+				return null;
+			}
+			String fingerprint = in.readUTF();
+			int numberOfRows = in.readInt();
+			Map<String, RowBitmap> dependencies = new LinkedHashMap<String, RowBitmap>();
+			for (int n = in.readInt(); n > 0; n--) {
+				String dep = in.readUTF();
+				dependencies.put(dep, RowBitmap.read(in));
+			}
+			String keyColumn = null;
+			RowKeys rowKeys = null;
+			if (in.readBoolean()) {
+				keyColumn = in.readUTF();
+				rowKeys = RowKeys.read(in);
+			}
+			return new Entry(fingerprint, numberOfRows, dependencies, keyColumn, rowKeys);
+		} catch (IOException ex) {
+			logger.warning("cannot read the catalog entry " + file + ": " + ex.getMessage());
+			return null;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ex) {
+				logger.warning("cannot close " + file + ": " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stores an entry, replacing the one stored with <code>key</code>.
+	 *
+	 * @param key
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void put(String key, Entry entry) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create the catalog directory " + directory);
+		}
+		File file = file(key);
+		File temp = File.createTempFile("entry", ".tmp", directory);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+			out.writeUTF(entry.getFingerprint());
+			out.writeInt(entry.getNumberOfRows());
+			out.writeInt(entry.getDependencies().size());
+			for (Map.Entry<String, RowBitmap> dep : entry.getDependencies().entrySet()) {
+				out.writeUTF(dep.getKey());
+				dep.getValue().write(out);
+			}
+			out.writeBoolean(entry.getRowKeys() != null);
+			if (entry.getRowKeys() != null) {
+				out.writeUTF(entry.getKeyColumn());
+				entry.getRowKeys().write(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// the target exists on some platforms
+			file.delete();
+			if (!temp.renameTo(file)) {
+				temp.delete();
+				throw new IOException("cannot write the catalog entry " + file);
+			}
+		}
+	}
+
+	/**
+	 * Returns the file of an entry. The name is derived from the hash of the key; the key is stored
+	 * in the file, so a collision is a miss.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private File file(String key) {
+		return new File(directory, "fd-" + Integer.toHexString(key.hashCode()) + ".bin");
+	}
+
+	/**
+	 * The stored result of a run.
+	 */
+	public static class Entry {
+		private final String fingerprint;
+		private final int numberOfRows;
+		private final Map<String, RowBitmap> dependencies;
+		private final String keyColumn;
+		private final RowKeys rowKeys;
+
+		/**
+		 * @param fingerprint
+		 * @param numberOfRows
+		 * @param dependencies The dependencies and the rows breaking them, in the order they were found.
+		 * @param keyColumn The column the rows were ordered by, or <code>null</code>.
+		 * @param rowKeys The keys of the rows if <code>keyColumn</code> is set.
+		 */
+		public Entry(String fingerprint, int numberOfRows, Map<String, RowBitmap> dependencies, String keyColumn, RowKeys rowKeys) {
+			this.fingerprint = fingerprint;
+			this.numberOfRows = numberOfRows;
+			this.dependencies = Collections.unmodifiableMap(new LinkedHashMap<String, RowBitmap>(dependencies));
+			this.keyColumn = rowKeys == null ? null : keyColumn;
+			this.rowKeys = this.keyColumn == null ? null : rowKeys;
+		}
+
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		public int getNumberOfRows() {
+			return numberOfRows;
+		}
+
+		public Map<String, RowBitmap> getDependencies() {
+			return dependencies;
+		}
+
+		/**
+		 * @return The column the rows were ordered by, or <code>null</code>.
+		 */
+		public String getKeyColumn() {
+			return keyColumn;
+		}
+
+		/**
+		 * @return The keys of the rows, or <code>null</code> if the rows were not read with a key column.
+		 */
+		public RowKeys getRowKeys() {
+			return rowKeys;
+		}
+	}
+}
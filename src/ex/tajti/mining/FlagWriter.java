@@ -0,0 +1,153 @@
+package ex.tajti.mining;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Writes the number of dependencies broken by every row (and optionally its score) back to the
+ * source table. The flags of the suspicious rows are inserted into a temporary staging table with
+ * JDBC batches, then the source table is updated by one join:
+ * <pre>
+ * update table t left join staging s on t.key = s.row_key set t.flag = coalesce(s.violations, 0), ...
+ * </pre>
+ * so the rows that are not suspicious any more are reset in the same statement. The staging
+ * table has a primary key on <code>row_key</code>, so every row of the table finds its flags by
+ * one index lookup. The flag and score columns must exist in the table. The update uses the
+ * MySQL multi-table syntax; the MySQL driver sends a batch as one statement only if the url
+ * contains <code>rewriteBatchedStatements=true</code>.
+ *
+ * @author Akos Tajti
+ */
+public class FlagWriter {
+	private static final Logger logger = Logger.getLogger(FlagWriter.class.getSimpleName());
+
+	/**
+	 * The default number of rows inserted by one batch.
+	 */
+	static final int BATCH_SIZE = 1000;
+
+	private static final String STAGING_TABLE = "cleaner_flags";
+
+	private final String jdbcUrl;
+
+	private final String table;
+
+	/**
+	 * The column identifying the rows of <code>table</code>.
+	 */
+	private final String keyColumn;
+
+	/**
+	 * The column receiving the number of dependencies broken by the rows.
+	 */
+	private final String flagColumn;
+
+	/**
+	 * The column receiving the scores of the rows, <code>null</code> if the scores are not written.
+	 */
+	private final String scoreColumn;
+
+	private int batchSize = BATCH_SIZE;
+
+	/**
+	 * @param jdbcUrl
+	 * @param table
+	 * @param keyColumn The column identifying the rows.
+	 * @param flagColumn The column receiving the number of dependencies broken by the rows.
+	 * @param scoreColumn The column receiving the scores, <code>null</code> if the scores are not written.
+	 */
+	public FlagWriter(String jdbcUrl, String table, String keyColumn, String flagColumn, String scoreColumn) {
+		this.jdbcUrl = jdbcUrl;
+		this.table = table;
+		this.keyColumn = keyColumn;
+		this.flagColumn = flagColumn;
+		this.scoreColumn = scoreColumn;
+	}
+
+	/**
+	 * Writes the flags of the rows.
+	 *
+	 * @param keys The keys of the rows.
+	 * @param scorer The scores of the rows.
+	 * @return The number of rows flagged.
+	 * @throws SQLException
+	 */
+	public int write(RowKeys keys, RowScorer scorer) throws SQLException {
+		long start = System.currentTimeMillis();
+		int flagged = 0;
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				st.execute("drop temporary table if exists " + STAGING_TABLE);
+				st.execute("create temporary table " + STAGING_TABLE + " as select " + keyColumn + " as row_key from " + table + " where 1 = 0");
+				// without an index on row_key the join would scan the staging table for every row
+				st.execute("alter table " + STAGING_TABLE + " add primary key (row_key), add violations int, add score double");
+
+				boolean autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				PreparedStatement insert = conn.prepareStatement("insert into " + STAGING_TABLE + " (row_key, violations, score) values (?, ?, ?)");
+				try {
+					int pending = 0;
+					for (int row = 0; row < keys.size(); row++) {
+						int violations = scorer.getCount(row);
+						if (violations == 0) {
+							continue;
+						}
+						if (keys.isNumeric()) {
+							insert.setLong(1, keys.getLong(row));
+						} else {
+							insert.setString(1, keys.getString(row));
+						}
+						insert.setInt(2, violations);
+						insert.setDouble(3, scorer.getScore(row));
+						insert.addBatch();
+						++flagged;
+						if (++pending == batchSize) {
+							insert.executeBatch();
+							pending = 0;
+						}
+					}
+					if (pending > 0) {
+						insert.executeBatch();
+					}
+					conn.commit();
+				} catch (SQLException ex) {
+					conn.rollback();
+					throw ex;
+				} finally {
+					insert.close();
+					conn.setAutoCommit(autoCommit);
+				}
+
+				StringBuilder update = new StringBuilder("update ").append(table).append(" t left join ").append(STAGING_TABLE);
+				update.append(" s on t.").append(keyColumn).append(" = s.row_key set t.").append(flagColumn).append(" = coalesce(s.violations, 0)");
+				if (scoreColumn != null) {
+					update.append(", t.").append(scoreColumn).append(" = coalesce(s.score, 0)");
+				}
+				st.executeUpdate(update.toString());
+				st.execute("drop temporary table " + STAGING_TABLE);
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+		logger.info(flagged + " rows of " + table + " flagged in " + (System.currentTimeMillis() - start) + " ms");
+
+		return flagged;
+	}
+
+	/**
+	 * Sets the number of rows inserted into the staging table by one batch.
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+}
@@ -0,0 +1,910 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Finds the minimal approximate dependencies without traversing the lattice level by level
+ * (in the style of HyFD). Two phases alternate:
+ * <ul>
+ * <li><b>sampling</b>: pairs of rows that are close to each other in a class of a base partition
+ * are compared. A pair agreeing on <code>X</code> but not on <code>A</code> must lose one of its
+ * rows to make <code>X->A</code> hold, so the pairs give a lower bound of the error of every
+ * dependency they break. The sets whose lower bound exceeds epsilon are non-dependencies.</li>
+ * <li><b>validation</b>: the candidates of every right side are the minimal sets not contained
+ * by a known non-dependency. They're checked on the partitions, smallest first. A valid candidate
+ * is a minimal dependency, an invalid one is a new non-dependency and is specialized.</li>
+ * </ul>
+ * If too many candidates of a level turn out to be invalid, the sample is extended with rows
+ * farther from each other before the next level is validated, as long as the new pairs
+ * specialize enough candidates.
+ * <br/>
+ * The lower bound of a set of pairs is the size of a matching in the graph of the rows: a graph
+ * with <code>E</code> edges and maximal degree <code>D</code> has a matching of at least
+ * <code>E / (D + 1)</code> edges, and every edge of the matching needs a deleted row. So the
+ * sampled non-dependencies are sound and the result is the same as the result of the level-wise
+ * traversal. A candidate that is a key is a dependency without violations, like the ones emitted
+ * by the key pruning of TANE.
+ * <br/>
+ * At most <code>MAX_ATTRIBUTES</code> attributes are supported, the attribute sets are bit masks.
+ *
+ * @author Akos Tajti
+ */
+public class HybridDiscovery {
+	private static final Logger logger = Logger.getLogger(HybridDiscovery.class.getSimpleName());
+
+	/**
+	 * The maximal number of attributes.
+	 */
+	public static final int MAX_ATTRIBUTES = 63;
+
+	/**
+	 * If a larger fraction of the validated candidates of a level is invalid, the sample is extended.
+	 */
+	static final double SWITCH_RATIO = 0.2;
+
+	/**
+	 * The sample is extended while at least one candidate is specialized per this many new pairs.
+	 */
+	static final int MIN_EFFICIENCY = 100;
+
+	/**
+	 * The number of the most frequent agree sets the lower bounds are computed from.
+	 */
+	static final int MAX_AGREE_SETS = 1024;
+
+	/**
+	 * The maximal number of violating pairs added to the sample by an invalid candidate.
+	 */
+	static final int PAIRS_PER_VALIDATION = 16;
+
+	/**
+	 * The attributes of the left sides. Bit <code>i</code> of a mask is <code>attributes.get(i)</code>.
+	 */
+	private final List<String> attributes;
+
+	/**
+	 * The right sides.
+	 */
+	private final long rightSides;
+
+	/**
+	 * The number of rows the errors are relative to.
+	 */
+	private final int numberOfRows;
+
+	private final double epsilon;
+
+	private final Metrics metrics;
+
+	/**
+	 * The number of rows in the partitions.
+	 */
+	private final int rows;
+
+	/**
+	 * The class of every row in the base partitions: <code>codes[attribute][row]</code>.
+	 */
+	private final int[][] codes;
+
+	/**
+	 * The classes of the base partitions with more than one row, the rows in ascending order.
+	 */
+	private final List<int[]>[] clusters;
+
+	/**
+	 * The number of rows in <code>clusters</code> for every attribute.
+	 */
+	private final int[] strippedSizes;
+
+	/**
+	 * Scratch arrays indexed by class codes.
+	 */
+	private final int[] bucketOf;
+	private final int[] bucketSizes;
+	private final int[] counts;
+
+	/**
+	 * The classes of the base partitions with more than one row, the rows ordered by their class
+	 * in the next attribute. Created by the first sampling.
+	 */
+	private List<int[]> sampleOrder;
+
+	/**
+	 * The pairs compared so far (<code>smaller * rows + larger</code>).
+	 */
+	private final Set<Long> sampledPairs = new HashSet<Long>();
+
+	/**
+	 * The sampled pairs of every agree set.
+	 */
+	private final Map<Long, PairList> agreeSets = new HashMap<Long, PairList>();
+
+	/**
+	 * The matching of the rows of the pair when computing a lower bound.
+	 */
+	private final int[] matched;
+
+	private int matching;
+
+	/**
+	 * The number of sampled pairs of every row.
+	 */
+	private final int[] degrees;
+
+	private int maxDegree;
+
+	private int window;
+
+	/**
+	 * The size of the left sides validated at the moment. The pending candidates are not smaller.
+	 */
+	private int level = 1;
+
+	/**
+	 * The number of rows in the largest class of the base partitions.
+	 */
+	private int maxClusterSize;
+
+	/**
+	 * The candidates of every right side waiting for validation.
+	 */
+	private final Map<Integer, Set<Long>> pending = new HashMap<Integer, Set<Long>>();
+
+	/**
+	 * The valid candidates and the keys of every right side. Their supersets are not candidates.
+	 */
+	private final Map<Integer, List<Long>> settled = new HashMap<Integer, List<Long>>();
+
+	private final Map<String, Collection<Integer>> dependencies = new LinkedHashMap<String, Collection<Integer>>();
+
+	private int validations;
+
+	/**
+	 * The limits of the run, <code>null</code> if there are none.
+	 */
+	private RunLimits limits;
+
+	/**
+	 * The limit that stopped the discovery, <code>null</code> if the result is complete.
+	 */
+	private String stoppedBy;
+
+	/**
+	 * The size of the last left sides processed.
+	 */
+	private int levelReached;
+
+	/**
+	 * The estimated size of a sampled pair in bytes (a boxed long in a hash set and two ints).
+	 */
+	private static final int BYTES_PER_PAIR = 56;
+
+	/**
+	 * @param attributes The attributes of the left sides.
+	 * @param rightSides The attributes of the right sides, a subset of <code>attributes</code>.
+	 * @param partitions The base partitions (not stripped).
+	 * @param numberOfRows The number of rows the errors are relative to.
+	 * @param epsilon
+	 * @param metrics
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public HybridDiscovery(List<String> attributes, List<String> rightSides, PartitionStore partitions, int numberOfRows, double epsilon,
+		Metrics metrics) {
+		if (attributes.size() > MAX_ATTRIBUTES) {
+			throw new IllegalArgumentException("at most " + MAX_ATTRIBUTES + " attributes are supported");
+		}
+		this.attributes = new ArrayList<String>(attributes);
+		long mask = 0;
+		for (String attribute : rightSides) {
+			mask |= 1L << this.attributes.indexOf(attribute);
+		}
+		this.rightSides = mask;
+		this.numberOfRows = numberOfRows;
+		this.epsilon = epsilon;
+		this.metrics = metrics;
+
+		int size = attributes.size();
+		List<List<EquivalenceClass<Object, Integer>>> classes = new ArrayList<List<EquivalenceClass<Object, Integer>>>();
+		int maxRow = -1;
+		for (String attribute : attributes) {
+			List<EquivalenceClass<Object, Integer>> attributeClasses = partitions.get(attribute).getClasses();
+			classes.add(attributeClasses);
+			for (EquivalenceClass<Object, Integer> clazz : attributeClasses) {
+				for (Integer row : clazz.getRows()) {
+					maxRow = Math.max(maxRow, row);
+				}
+			}
+		}
+		rows = maxRow + 1;
+
+		codes = new int[size][];
+		clusters = new List[size];
+		strippedSizes = new int[size];
+		int maxCodes = 0;
+		for (int a = 0; a < size; a++) {
+			codes[a] = new int[rows];
+			Arrays.fill(codes[a], -1);
+			clusters[a] = new ArrayList<int[]>();
+			int code = 0;
+			for (EquivalenceClass<Object, Integer> clazz : classes.get(a)) {
+				List<Integer> classRows = clazz.getRows();
+				int[] cluster = new int[classRows.size()];
+				for (int i = 0; i < cluster.length; i++) {
+					cluster[i] = classRows.get(i);
+					codes[a][cluster[i]] = code;
+				}
+				++code;
+				if (cluster.length > 1) {
+					Arrays.sort(cluster);
+					clusters[a].add(cluster);
+					strippedSizes[a] += cluster.length;
+					maxClusterSize = Math.max(maxClusterSize, cluster.length);
+				}
+			}
+			// the rows missing from a stripped partition are unique
+			for (int row = 0; row < rows; row++) {
+				if (codes[a][row] < 0) {
+					codes[a][row] = code++;
+				}
+			}
+			maxCodes = Math.max(maxCodes, code);
+		}
+		bucketOf = new int[maxCodes];
+		Arrays.fill(bucketOf, -1);
+		bucketSizes = new int[maxCodes];
+		counts = new int[maxCodes];
+		degrees = new int[rows];
+		matched = new int[rows];
+	}
+
+	/**
+	 * Runs the discovery.
+	 *
+	 * @return The minimal dependencies and the rows breaking them, in the order of the size of the
+	 * left sides.
+	 */
+	public Map<String, Collection<Integer>> discover() {
+		int size = attributes.size();
+		window = 1;
+		sample(window);
+		for (int a = 0; a < size; a++) {
+			if ((rightSides & (1L << a)) == 0) {
+				continue;
+			}
+			Set<Long> candidates = new LinkedHashSet<Long>();
+			for (int b = 0; b < size; b++) {
+				if (b != a) {
+					candidates.add(1L << b);
+				}
+			}
+			pending.put(a, candidates);
+			settled.put(a, new ArrayList<Long>());
+		}
+		applySampledNonDependencies();
+
+		for (level = 1; level < size; level++) {
+			if (limits != null && !limits.allowsLhsSize(level)) {
+				stoppedBy = "left side size limit";
+				break;
+			}
+			levelReached = level;
+			// the candidates of the level, grouped by left side
+			Map<Long, List<Integer>> checks = new LinkedHashMap<Long, List<Integer>>();
+			for (Map.Entry<Integer, Set<Long>> entry : pending.entrySet()) {
+				for (Long lhs : entry.getValue()) {
+					if (Long.bitCount(lhs) == level) {
+						List<Integer> rhs = checks.get(lhs);
+						if (rhs == null) {
+							rhs = new ArrayList<Integer>();
+							checks.put(lhs, rhs);
+						}
+						rhs.add(entry.getKey());
+					}
+				}
+			}
+			if (checks.isEmpty()) {
+				if (isDone()) {
+					break;
+				}
+				continue;
+			}
+
+			int checked = 0;
+			int invalid = 0;
+			for (Map.Entry<Long, List<Integer>> entry : checks.entrySet()) {
+				if (limits != null && (stoppedBy = limits.reached(memoryBytes())) != null) {
+					break;
+				}
+				long lhs = entry.getKey();
+				long start = System.nanoTime();
+				List<int[]> groups = groups(lhs);
+				boolean key = isKey(groups);
+				for (Integer a : entry.getValue()) {
+					if (key) {
+						pending.get(a).remove(lhs);
+						settled.get(a).add(lhs);
+						dependencies.put(toString(lhs, a), Collections.<Integer>emptyList());
+						continue;
+					}
+					++checked;
+					++validations;
+					List<Integer> toDelete = validate(groups, a);
+					metrics.recordErrorCheck(level + 1, (System.nanoTime() - start) / entry.getValue().size());
+					if (toDelete != null) {
+						pending.get(a).remove(lhs);
+						settled.get(a).add(lhs);
+						dependencies.put(toString(lhs, a), toDelete);
+					} else {
+						++invalid;
+						addNonDependency(a, lhs);
+					}
+				}
+			}
+			logger.info("level " + level + ": " + checks.size() + " left sides, " + checked + " candidates validated, " + invalid + " invalid");
+			if (stoppedBy != null) {
+				logger.info("stopping at level " + level + ", the " + stoppedBy + " is reached");
+				break;
+			}
+
+			if (checked > 0 && (double) invalid / checked > SWITCH_RATIO) {
+				extendSample();
+			}
+		}
+
+		List<String> result = new ArrayList<String>(dependencies.keySet());
+		Collections.sort(result, new Comparator<String>() {
+
+			@Override
+			public int compare(String o1, String o2) {
+				return Partition.getLevelNumber(o1) - Partition.getLevelNumber(o2);
+			}
+		});
+		Map<String, Collection<Integer>> sorted = new LinkedHashMap<String, Collection<Integer>>();
+		for (String dep : result) {
+			sorted.put(dep, dependencies.get(dep));
+		}
+		return sorted;
+	}
+
+	/**
+	 * Returns the estimated size of the code arrays, the clusters and the sample in bytes.
+	 *
+	 * @return
+	 */
+	private long memoryBytes() {
+		return 8L * codes.length * rows + (long) BYTES_PER_PAIR * sampledPairs.size();
+	}
+
+	private boolean isDone() {
+		for (Set<Long> candidates : pending.values()) {
+			if (!candidates.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares rows farther from each other until the new pairs stop specializing the candidates.
+	 */
+	private void extendSample() {
+		while (window < maxClusterSize) {
+			++window;
+			int added = sample(window);
+			int specialized = added == 0 ? 0 : applySampledNonDependencies();
+			logger.info("extended the sample with window " + window + ": " + added + " new pairs, " + specialized + " candidates specialized");
+			if (specialized * MIN_EFFICIENCY < added) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Compares the rows at distance <code>window</code> in every class of every base partition.
+	 * The rows of a class are ordered by their class in the next attribute, so similar rows are
+	 * compared.
+	 *
+	 * @param window
+	 * @return The number of new pairs.
+	 */
+	private int sample(int window) {
+		if (sampleOrder == null) {
+			sampleOrder = new ArrayList<int[]>();
+			for (int a = 0; a < attributes.size(); a++) {
+				final int[] next = codes[(a + 1) % attributes.size()];
+				for (int[] cluster : clusters[a]) {
+					Integer[] ordered = new Integer[cluster.length];
+					for (int i = 0; i < cluster.length; i++) {
+						ordered[i] = cluster[i];
+					}
+					Arrays.sort(ordered, new Comparator<Integer>() {
+
+						@Override
+						public int compare(Integer o1, Integer o2) {
+							return next[o1] != next[o2] ? next[o1] - next[o2] : o1 - o2;
+						}
+					});
+					int[] sorted = new int[cluster.length];
+					for (int i = 0; i < cluster.length; i++) {
+						sorted[i] = ordered[i];
+					}
+					sampleOrder.add(sorted);
+				}
+			}
+		}
+
+		int added = 0;
+		for (int[] cluster : sampleOrder) {
+			for (int i = 0; i + window < cluster.length; i++) {
+				if (addPair(cluster[i], cluster[i + window])) {
+					++added;
+				}
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Adds a pair of rows to the sample.
+	 *
+	 * @param row1
+	 * @param row2
+	 * @return <code>false</code> if the pair was already in the sample.
+	 */
+	private boolean addPair(int row1, int row2) {
+		long id = (long) Math.min(row1, row2) * rows + Math.max(row1, row2);
+		if (!sampledPairs.add(id)) {
+			return false;
+		}
+		long agreeSet = 0;
+		for (int a = 0; a < attributes.size(); a++) {
+			if (codes[a][row1] == codes[a][row2]) {
+				agreeSet |= 1L << a;
+			}
+		}
+		PairList pairs = agreeSets.get(agreeSet);
+		if (pairs == null) {
+			pairs = new PairList();
+			agreeSets.put(agreeSet, pairs);
+		}
+		pairs.add(row1, row2);
+		maxDegree = Math.max(maxDegree, Math.max(++degrees[row1], ++degrees[row2]));
+		return true;
+	}
+
+	/**
+	 * Computes the non-dependencies proven by the sample and specializes the candidates they
+	 * contain. For every right side the agree sets are tried from the largest: if the number of
+	 * the pairs breaking the dependency doesn't prove it invalid, a matching of their rows is
+	 * built until it does.
+	 *
+	 * @return The number of candidates specialized.
+	 */
+	private int applySampledNonDependencies() {
+		List<Map.Entry<Long, PairList>> frequent = new ArrayList<Map.Entry<Long, PairList>>(agreeSets.entrySet());
+		Collections.sort(frequent, new Comparator<Map.Entry<Long, PairList>>() {
+
+			@Override
+			public int compare(Map.Entry<Long, PairList> o1, Map.Entry<Long, PairList> o2) {
+				return o2.getValue().size - o1.getValue().size;
+			}
+		});
+		if (frequent.size() > MAX_AGREE_SETS) {
+			frequent = frequent.subList(0, MAX_AGREE_SETS);
+		}
+		Collections.sort(frequent, new Comparator<Map.Entry<Long, PairList>>() {
+
+			@Override
+			public int compare(Map.Entry<Long, PairList> o1, Map.Entry<Long, PairList> o2) {
+				return Long.bitCount(o2.getKey()) - Long.bitCount(o1.getKey());
+			}
+		});
+		long[] masks = new long[frequent.size()];
+		PairList[] pairs = new PairList[frequent.size()];
+		for (int i = 0; i < masks.length; i++) {
+			masks[i] = frequent.get(i).getKey();
+			pairs[i] = frequent.get(i).getValue();
+		}
+
+		int found = 0;
+		int specialized = 0;
+		for (Integer a : pending.keySet()) {
+			long bit = 1L << a;
+			List<Long> nonDependencies = new ArrayList<Long>();
+			for (int i = 0; i < masks.length; i++) {
+				if ((masks[i] & bit) != 0 || containsSuperset(nonDependencies, masks[i])) {
+					continue;
+				}
+				// the pairs agreeing on at least masks[i] and breaking masks[i]->a
+				long edges = 0;
+				for (int j = 0; j < masks.length; j++) {
+					if ((masks[j] & bit) == 0 && (masks[i] & ~masks[j]) == 0) {
+						edges += pairs[j].size;
+					}
+				}
+				if (isInvalid((edges + maxDegree) / (maxDegree + 1)) || isInvalid(matching(masks, pairs, masks[i], bit))) {
+					nonDependencies.add(masks[i]);
+				}
+			}
+			for (Long lhs : nonDependencies) {
+				specialized += addNonDependency(a, lhs);
+			}
+			found += nonDependencies.size();
+		}
+		logger.info(sampledPairs.size() + " pairs, " + agreeSets.size() + " agree sets, maximal degree " + maxDegree + ": " + found
+			+ " non-dependencies");
+		return specialized;
+	}
+
+	/**
+	 * Returns <code>true</code> if a dependency with at least <code>lowerBound</code> rows to
+	 * delete is invalid.
+	 *
+	 * @param lowerBound
+	 * @return
+	 */
+	private boolean isInvalid(long lowerBound) {
+		return (double) lowerBound / numberOfRows > epsilon;
+	}
+
+	/**
+	 * Builds a matching from the pairs of the agree sets containing <code>lhs</code> but not
+	 * <code>rhs</code>. Stops as soon as the matching proves <code>lhs->rhs</code> invalid.
+	 *
+	 * @param masks
+	 * @param pairs
+	 * @param lhs
+	 * @param rhs
+	 * @return The size of the matching.
+	 */
+	private int matching(long[] masks, PairList[] pairs, long lhs, long rhs) {
+		int size = 0;
+		++matching;
+		for (int j = 0; j < masks.length; j++) {
+			if ((masks[j] & rhs) != 0 || (lhs & ~masks[j]) != 0) {
+				continue;
+			}
+			int[] rowPairs = pairs[j].rows;
+			for (int k = 0; k < 2 * pairs[j].size; k += 2) {
+				if (matched[rowPairs[k]] != matching && matched[rowPairs[k + 1]] != matching) {
+					matched[rowPairs[k]] = matching;
+					matched[rowPairs[k + 1]] = matching;
+					if (isInvalid(++size)) {
+						return size;
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	private static boolean containsSuperset(List<Long> sets, long set) {
+		for (Long other : sets) {
+			if ((set & ~other) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Specializes the candidates of <code>a</code> contained by the non-dependency
+	 * <code>lhs->a</code>: every such candidate is extended by every attribute outside
+	 * <code>lhs</code>, unless a candidate is a subset of the extended set.
+	 *
+	 * @param a
+	 * @param lhs
+	 * @return The number of candidates specialized.
+	 */
+	private int addNonDependency(int a, long lhs) {
+		Set<Long> candidates = pending.get(a);
+		List<Long> specialized = new ArrayList<Long>();
+		if (candidates.remove(lhs)) {
+			// the candidates are not subsets of each other
+			specialized.add(lhs);
+		} else {
+			for (Iterator<Long> it = candidates.iterator(); it.hasNext();) {
+				long candidate = it.next();
+				if ((candidate & ~lhs) == 0) {
+					it.remove();
+					specialized.add(candidate);
+				}
+			}
+		}
+		for (Long candidate : specialized) {
+			for (int b = 0; b < attributes.size(); b++) {
+				long bit = 1L << b;
+				if (b == a || (lhs & bit) != 0) {
+					continue;
+				}
+				long extended = candidate | bit;
+				if (!containsSubset(candidates, extended, 0) && !containsSubset(settled.get(a), extended)) {
+					candidates.add(extended);
+				}
+			}
+		}
+		return specialized.size();
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>candidates</code> contains a subset of <code>set</code>.
+	 * Every candidate has at least <code>level</code> attributes, so only the subsets of that size
+	 * or larger are looked up.
+	 *
+	 * @param candidates
+	 * @param set
+	 * @param from The bits below <code>from</code> are not removed from <code>set</code>.
+	 * @return
+	 */
+	private boolean containsSubset(Set<Long> candidates, long set, int from) {
+		if (candidates.contains(set)) {
+			return true;
+		}
+		if (Long.bitCount(set) <= level) {
+			return false;
+		}
+		for (int b = from; b < attributes.size(); b++) {
+			if ((set & (1L << b)) != 0 && containsSubset(candidates, set & ~(1L << b), b + 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsSubset(List<Long> sets, long set) {
+		for (Long other : sets) {
+			if ((other & ~set) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the classes of the partition of <code>lhs</code> with more than one row. The
+	 * classes of the attribute with the smallest stripped partition are refined by the others.
+	 *
+	 * @param lhs
+	 * @return
+	 */
+	private List<int[]> groups(long lhs) {
+		int pivot = -1;
+		for (int a = 0; a < attributes.size(); a++) {
+			if ((lhs & (1L << a)) != 0 && (pivot < 0 || strippedSizes[a] < strippedSizes[pivot])) {
+				pivot = a;
+			}
+		}
+		List<int[]> result = clusters[pivot];
+		for (int a = 0; a < attributes.size(); a++) {
+			if (a != pivot && (lhs & (1L << a)) != 0) {
+				List<int[]> refined = new ArrayList<int[]>();
+				for (int[] group : result) {
+					refine(group, codes[a], refined);
+				}
+				result = refined;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Splits <code>group</code> by the codes of an attribute. The parts with more than one row
+	 * are added to <code>result</code>, the rows stay in ascending order.
+	 *
+	 * @param group
+	 * @param attributeCodes
+	 * @param result
+	 */
+	private void refine(int[] group, int[] attributeCodes, List<int[]> result) {
+		int buckets = 0;
+		for (int row : group) {
+			int code = attributeCodes[row];
+			if (bucketOf[code] < 0) {
+				bucketOf[code] = buckets;
+				bucketSizes[buckets++] = 0;
+			}
+			++bucketSizes[bucketOf[code]];
+		}
+		int[][] parts = new int[buckets][];
+		int[] filled = new int[buckets];
+		for (int row : group) {
+			int bucket = bucketOf[attributeCodes[row]];
+			if (bucketSizes[bucket] > 1) {
+				if (parts[bucket] == null) {
+					parts[bucket] = new int[bucketSizes[bucket]];
+				}
+				parts[bucket][filled[bucket]++] = row;
+			}
+		}
+		for (int row : group) {
+			bucketOf[attributeCodes[row]] = -1;
+		}
+		for (int[] part : parts) {
+			if (part != null) {
+				result.add(part);
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the partition with the classes <code>groups</code> has as many
+	 * classes as the number of rows (the left side is a key).
+	 *
+	 * @param groups
+	 * @return
+	 */
+	private boolean isKey(List<int[]> groups) {
+		long classes = rows;
+		for (int[] group : groups) {
+			classes -= group.length - 1;
+		}
+		return classes == numberOfRows;
+	}
+
+	/**
+	 * Checks the dependency with the left side partition <code>groups</code> and the right side
+	 * <code>a</code>. In every class the rows outside the largest subclass must be deleted; on a
+	 * tie the subclass of the first row is kept. Stops as soon as the error exceeds epsilon.
+	 *
+	 * @param groups
+	 * @param a
+	 * @return The rows to delete or <code>null</code> if the dependency doesn't hold.
+	 */
+	private List<Integer> validate(List<int[]> groups, int a) {
+		int[] rhs = codes[a];
+		long error = 0;
+		for (int[] group : groups) {
+			int max = 0;
+			for (int row : group) {
+				max = Math.max(max, ++counts[rhs[row]]);
+			}
+			for (int row : group) {
+				counts[rhs[row]] = 0;
+			}
+			error += group.length - max;
+			if ((double) error / numberOfRows > epsilon) {
+				addViolatingPairs(groups, rhs);
+				return null;
+			}
+		}
+
+		List<Integer> result = new ArrayList<Integer>((int) error);
+		for (int[] group : groups) {
+			int max = 0;
+			for (int row : group) {
+				max = Math.max(max, ++counts[rhs[row]]);
+			}
+			int majority = -1;
+			for (int row : group) {
+				if (majority < 0 && counts[rhs[row]] == max) {
+					majority = rhs[row];
+				}
+			}
+			for (int row : group) {
+				counts[rhs[row]] = 0;
+				if (rhs[row] != majority) {
+					result.add(row);
+				}
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Adds pairs of rows breaking a dependency to the sample: the first row of a class and the
+	 * first row disagreeing with it on the right side.
+	 *
+	 * @param groups
+	 * @param rhs
+	 */
+	private void addViolatingPairs(List<int[]> groups, int[] rhs) {
+		int added = 0;
+		for (int[] group : groups) {
+			for (int i = 1; i < group.length; i++) {
+				if (rhs[group[i]] != rhs[group[0]]) {
+					if (addPair(group[0], group[i]) && ++added == PAIRS_PER_VALIDATION) {
+						return;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the dependency <code>lhs->a</code> in the format used by the <code>Cleaner</code>.
+	 *
+	 * @param lhs
+	 * @param a
+	 * @return
+	 */
+	private String toString(long lhs, int a) {
+		StringBuilder builder = new StringBuilder();
+		for (int b = 0; b < attributes.size(); b++) {
+			if ((lhs & (1L << b)) != 0) {
+				if (builder.length() > 0) {
+					builder.append(':');
+				}
+				builder.append(attributes.get(b));
+			}
+		}
+		return builder.append("->").append(attributes.get(a)).toString();
+	}
+
+	/**
+	 * The pairs of rows of an agree set.
+	 */
+	private static class PairList {
+		private int[] rows = new int[8];
+		private int size;
+
+		void add(int row1, int row2) {
+			if (2 * size == rows.length) {
+				rows = Arrays.copyOf(rows, rows.length * 2);
+			}
+			rows[2 * size] = row1;
+			rows[2 * size + 1] = row2;
+			++size;
+		}
+	}
+
+	/**
+	 * Sets the limits of the run. When one is reached, <code>discover()</code> returns the
+	 * dependencies found so far.
+	 *
+	 * @param limits <code>null</code> means no limits.
+	 */
+	public void setLimits(RunLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Returns the limit that stopped the discovery, or <code>null</code> if it wasn't stopped.
+	 *
+	 * @return
+	 */
+	public String getStoppedBy() {
+		return stoppedBy;
+	}
+
+	/**
+	 * Returns the size of the last left sides validated (fully or partially).
+	 *
+	 * @return
+	 */
+	public int getLevelReached() {
+		return levelReached;
+	}
+
+	/**
+	 * Returns the number of candidates validated on the partitions.
+	 *
+	 * @return
+	 */
+	public int getValidations() {
+		return validations;
+	}
+
+	/**
+	 * Returns the number of row pairs compared.
+	 *
+	 * @return
+	 */
+	public int getSampledPairs() {
+		return sampledPairs.size();
+	}
+}
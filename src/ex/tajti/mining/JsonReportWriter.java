@@ -0,0 +1,192 @@
+package ex.tajti.mining;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the report in JSON lines format. The first line is the header:
+ * <pre>
+ * {"type":"header","statistics":{"Number of rows":8000,...}}
+ * </pre>
+ * every other line is a dependency:
+ * <pre>
+ * {"type":"dependency","dependency":"a:b->c","lhs":["a","b"],"rhs":"c","violations":5,"runs":[3,2,10,3]}
+ * </pre>
+ * The row IDs are sorted and run-length encoded. <code>runs</code> contains pairs: the first
+ * element of a pair is the distance of the run's first row from the end of the previous run
+ * (from 0 for the first run), the second is the length of the run. The example encodes the
+ * rows 3, 4, 15, 16, 17. If the keys of the rows are set, the dependency has a <code>keys</code>
+ * array too, with the keys of the rows in the order of the runs.
+ * <br/>
+ * The ranking of the rows is written as
+ * <pre>
+ * {"type":"ranking","top":[{"row":15,"score":2.5,"dependencies":3},...],"maxScore":2.5,"histogram":[120,31,...]}
+ * </pre>
+ * where the rows have a <code>key</code> too if the keys are set.
+ *
+ * @author Akos Tajti
+ */
+public class JsonReportWriter extends ReportWriter {
+	public JsonReportWriter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	@Override
+	public void writeHeader(Map<String, Object> statistics) throws IOException {
+		write("{\"type\":\"header\",\"statistics\":{");
+		boolean first = true;
+		for (Map.Entry<String, Object> entry : statistics.entrySet()) {
+			if (!first) {
+				write(',');
+			}
+			first = false;
+			writeString(entry.getKey());
+			write(':');
+			Object value = entry.getValue();
+			if (value instanceof Number) {
+				write(value.toString());
+			} else {
+				writeString(String.valueOf(value));
+			}
+		}
+		write("}}\n");
+	}
+
+	@Override
+	public void writeDependency(String dependency, Collection<Integer> rows) throws IOException {
+		String[] parts = dependency.split("->");
+		write("{\"type\":\"dependency\",\"dependency\":");
+		writeString(dependency);
+		write(",\"lhs\":[");
+		if (!parts[0].isEmpty()) {
+			String[] lhs = parts[0].split(":");
+			for (int i = 0; i < lhs.length; i++) {
+				if (i > 0) {
+					write(',');
+				}
+				writeString(lhs[i]);
+			}
+		}
+		write("],\"rhs\":");
+		writeString(parts[1]);
+		write(",\"violations\":");
+		write(rows.size());
+		write(",\"runs\":[");
+		int[] sorted = sortedRows(rows);
+		writeRuns(sorted);
+		if (keys != null) {
+			write("],\"keys\":[");
+			for (int i = 0; i < sorted.length; i++) {
+				if (i > 0) {
+					write(',');
+				}
+				writeRow(sorted[i]);
+			}
+		}
+		write("]}\n");
+	}
+
+	@Override
+	public void writeRanking(List<RowScorer.RowScore> top, int[] histogram, double maxScore) throws IOException {
+		write("{\"type\":\"ranking\",\"top\":[");
+		for (int i = 0; i < top.size(); i++) {
+			RowScorer.RowScore score = top.get(i);
+			if (i > 0) {
+				write(',');
+			}
+			write("{\"row\":");
+			write(score.getRow());
+			if (keys != null) {
+				write(",\"key\":");
+				writeRow(score.getRow());
+			}
+			write(",\"score\":" + score.getScore() + ",\"dependencies\":");
+			write(score.getViolations());
+			write('}');
+		}
+		write("],\"maxScore\":" + maxScore + ",\"histogram\":[");
+		for (int i = 0; i < histogram.length; i++) {
+			if (i > 0) {
+				write(',');
+			}
+			write(histogram[i]);
+		}
+		write("]}\n");
+	}
+
+	/**
+	 * Writes the key of a row; the keys that are not integers are written as strings.
+	 *
+	 * @param row
+	 * @throws IOException
+	 */
+	@Override
+	protected void writeRow(int row) throws IOException {
+		if (keys != null && !keys.isNumeric()) {
+			writeString(keys.getString(row));
+		} else {
+			super.writeRow(row);
+		}
+	}
+
+	/**
+	 * Writes the run-length encoding of <code>rows</code>.
+	 *
+	 * @param rows Sorted row IDs.
+	 * @throws IOException
+	 */
+	private void writeRuns(int[] rows) throws IOException {
+		int end = 0; // the row after the previous run
+		int i = 0;
+		while (i < rows.length) {
+			int start = rows[i];
+			int length = 1;
+			while (i + length < rows.length && rows[i + length] == start + length) {
+				++length;
+			}
+			if (i > 0) {
+				write(',');
+			}
+			write(start - end);
+			write(',');
+			write(length);
+			end = start + length;
+			i += length;
+		}
+	}
+
+	/**
+	 * Writes <code>s</code> as a JSON string.
+	 *
+	 * @param s
+	 * @throws IOException
+	 */
+	private void writeString(String s) throws IOException {
+		write(quote(s));
+	}
+
+	/**
+	 * Returns <code>s</code> as a JSON string literal. The string is encoded as a whole, so the
+	 * surrogate pairs of the characters outside the BMP are kept together.
+	 *
+	 * @param s
+	 * @return
+	 */
+	static String quote(String s) {
+		StringBuilder builder = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if (c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.append('"').toString();
+	}
+}
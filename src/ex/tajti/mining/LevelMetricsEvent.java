@@ -0,0 +1,53 @@
+package ex.tajti.mining;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed at the end of every level of the algorithm.
+ *
+ * @author Akos Tajti
+ */
+@Name("ex.tajti.mining.Level")
+@Label("Level")
+@Category("datacleaner")
+@Description("The metrics of one level of the lattice")
+class LevelMetricsEvent extends jdk.jfr.Event {
+	@Label("Level")
+	int level;
+
+	@Label("Products Computed")
+	long productsComputed;
+
+	@Label("Product Cost")
+	long productCost;
+
+	@Label("Dependencies Checked")
+	long dependenciesChecked;
+
+	@Label("Dependencies Found")
+	long dependenciesFound;
+
+	@Label("Multiply Time")
+	@Timespan(Timespan.MILLISECONDS)
+	long multiplyMillis;
+
+	@Label("Error Check Time")
+	@Timespan(Timespan.MILLISECONDS)
+	long errorCheckMillis;
+
+	@Label("Level Generation Time")
+	@Timespan(Timespan.MILLISECONDS)
+	long levelGenerationMillis;
+
+	@Label("Peak Partition Size")
+	@DataAmount
+	long peakPartitionBytes;
+
+	@Label("Partitions Evicted")
+	long partitionsEvicted;
+}
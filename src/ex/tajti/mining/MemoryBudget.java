@@ -0,0 +1,96 @@
+package ex.tajti.mining;
+
+/**
+ * A pool of bytes shared by concurrently running jobs. A job reserves its estimated footprint
+ * before it starts and releases it when it's finished.
+ *
+ * @author Akos Tajti
+ */
+public class MemoryBudget {
+	/**
+	 * The size of the budget in bytes.
+	 */
+	private final long capacity;
+
+	/**
+	 * The number of bytes reserved at the moment.
+	 */
+	private long reserved;
+
+	/**
+	 * The number of reservations at the moment.
+	 */
+	private int reservations;
+
+	public MemoryBudget(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Creates a budget of the given fraction of the maximal heap size.
+	 *
+	 * @param fraction
+	 * @return
+	 */
+	public static MemoryBudget ofHeap(double fraction) {
+		return new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction));
+	}
+
+	/**
+	 * Reserves <code>bytes</code> if it fits into the budget. A reservation bigger than the
+	 * whole budget succeeds only if there are no other reservations, so such jobs can still
+	 * run alone.
+	 *
+	 * @param bytes
+	 * @return <code>true</code> if the bytes were reserved.
+	 */
+	public synchronized boolean tryReserve(long bytes) {
+		if (reserved + bytes <= capacity || reservations == 0) {
+			reserved += bytes;
+			++reservations;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reserves <code>bytes</code>, waits until it fits into the budget.
+	 *
+	 * @param bytes
+	 * @throws InterruptedException
+	 */
+	public synchronized void reserve(long bytes) throws InterruptedException {
+		while (!tryReserve(bytes)) {
+			wait();
+		}
+	}
+
+	/**
+	 * Releases a reservation.
+	 *
+	 * @param bytes
+	 */
+	public synchronized void release(long bytes) {
+		reserved -= bytes;
+		--reservations;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until a reservation is released or <code>millis</code> milliseconds elapse.
+	 *
+	 * @param millis
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitRelease(long millis) throws InterruptedException {
+		wait(millis);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getAvailable() {
+		return capacity - reserved;
+	}
+}
@@ -0,0 +1,402 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of one run of the algorithm. Every counter and timer is broken
+ * down by lattice level; level 0 stands for the creation of the base partitions.
+ * <br/>
+ * The counters are <code>LongAdder</code>s so recording is cheap and safe when several
+ * threads work on the same run. A new instance must be used for every run.
+ *
+ * @author Akos Tajti
+ */
+public class Metrics {
+	/**
+	 * The counters of the levels. The keys are the level numbers.
+	 */
+	private final ConcurrentMap<Integer, LevelMetrics> levels = new ConcurrentHashMap<Integer, LevelMetrics>();
+
+	/**
+	 * The biggest estimated size (in bytes) of the partitions held at the same time.
+	 */
+	private final AtomicLong peakPartitionBytes = new AtomicLong();
+
+	/**
+	 * The time the run started (<code>System.currentTimeMillis()</code>).
+	 */
+	private final long started = System.currentTimeMillis();
+
+	/**
+	 * Returns the counters of level <code>level</code>. Creates them if needed.
+	 *
+	 * @param level
+	 * @return
+	 */
+	public LevelMetrics level(int level) {
+		LevelMetrics result = levels.get(level);
+		if (result == null) {
+			LevelMetrics created = new LevelMetrics(level);
+			result = levels.putIfAbsent(level, created);
+			if (result == null) {
+				result = created;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the counters of all levels ordered by the level number.
+	 *
+	 * @return
+	 */
+	public List<LevelMetrics> getLevels() {
+		List<LevelMetrics> result = new ArrayList<LevelMetrics>(levels.values());
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Records a partition product.
+	 *
+	 * @param level
+	 * @param cost The number of row IDs the product had to touch.
+	 * @param nanos
+	 */
+	public void recordProduct(int level, long cost, long nanos) {
+		LevelMetrics metrics = level(level);
+		metrics.productsComputed.increment();
+		metrics.productCost.add(cost);
+		metrics.multiplyNanos.add(nanos);
+	}
+
+	/**
+	 * Records the computation of the rows breaking a dependency.
+	 *
+	 * @param level
+	 * @param nanos
+	 */
+	public void recordErrorCheck(int level, long nanos) {
+		LevelMetrics metrics = level(level);
+		metrics.dependenciesChecked.increment();
+		metrics.errorCheckNanos.add(nanos);
+	}
+
+	/**
+	 * Records a dependency that was considered on level <code>level</code>.
+	 *
+	 * @param level
+	 */
+	public void recordPossibleDependency(int level) {
+		level(level).possibleDependencies.increment();
+	}
+
+	/**
+	 * Records a valid dependency.
+	 *
+	 * @param level
+	 */
+	public void recordDependencyFound(int level) {
+		level(level).dependenciesFound.increment();
+	}
+
+	/**
+	 * Records the time spent with pruning the level and generating the next one.
+	 *
+	 * @param level
+	 * @param nanos
+	 */
+	public void recordLevelGeneration(int level, long nanos) {
+		level(level).levelGenerationNanos.add(nanos);
+	}
+
+	/**
+	 * Records the time spent with reading the rows and creating the base partitions.
+	 *
+	 * @param nanos
+	 */
+	public void recordIngest(long nanos) {
+		level(0).ingestNanos.add(nanos);
+	}
+
+	/**
+	 * Records the removal of partitions that are not needed anymore.
+	 *
+	 * @param level
+	 * @param count
+	 */
+	public void recordEvictions(int level, int count) {
+		level(level).partitionsEvicted.add(count);
+	}
+
+	/**
+	 * Records the current (estimated) size of the partitions. The peak is updated if needed.
+	 *
+	 * @param level
+	 * @param bytes
+	 */
+	public void recordPartitionBytes(int level, long bytes) {
+		updateMax(level(level).peakPartitionBytes, bytes);
+		updateMax(peakPartitionBytes, bytes);
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the peak of the estimated partition sizes.
+	 *
+	 * @return
+	 */
+	public long getPeakPartitionBytes() {
+		return peakPartitionBytes.get();
+	}
+
+	public long getProductsComputed() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.getProductsComputed();
+		}
+		return sum;
+	}
+
+	public long getProductCost() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.getProductCost();
+		}
+		return sum;
+	}
+
+	public long getDependenciesChecked() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.getDependenciesChecked();
+		}
+		return sum;
+	}
+
+	public long getPossibleDependencies() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.getPossibleDependencies();
+		}
+		return sum;
+	}
+
+	public long getPartitionsEvicted() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.getPartitionsEvicted();
+		}
+		return sum;
+	}
+
+	public long getIngestMillis() {
+		return level(0).getIngestMillis();
+	}
+
+	public long getMultiplyMillis() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.multiplyNanos.sum();
+		}
+		return sum / 1000000;
+	}
+
+	public long getErrorCheckMillis() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.errorCheckNanos.sum();
+		}
+		return sum / 1000000;
+	}
+
+	public long getLevelGenerationMillis() {
+		long sum = 0;
+		for (LevelMetrics metrics : levels.values()) {
+			sum += metrics.levelGenerationNanos.sum();
+		}
+		return sum / 1000000;
+	}
+
+	/**
+	 * Commits a JFR event with the counters of level <code>level</code>. The event is
+	 * only recorded when a flight recording is running.
+	 *
+	 * @param level
+	 */
+	public void commitLevelEvent(int level) {
+		LevelMetricsEvent event = new LevelMetricsEvent();
+		if (!event.isEnabled()) {
+			return;
+		}
+		LevelMetrics metrics = level(level);
+		event.level = level;
+		event.productsComputed = metrics.getProductsComputed();
+		event.productCost = metrics.getProductCost();
+		event.dependenciesChecked = metrics.getDependenciesChecked();
+		event.dependenciesFound = metrics.getDependenciesFound();
+		event.multiplyMillis = metrics.getMultiplyMillis();
+		event.errorCheckMillis = metrics.getErrorCheckMillis();
+		event.levelGenerationMillis = metrics.getLevelGenerationMillis();
+		event.peakPartitionBytes = metrics.getPeakPartitionBytes();
+		event.partitionsEvicted = metrics.getPartitionsEvicted();
+		event.commit();
+	}
+
+	/**
+	 * Commits a JFR event with the totals of the run.
+	 *
+	 * @param table
+	 */
+	public void commitRunEvent(String table) {
+		RunMetricsEvent event = new RunMetricsEvent();
+		if (!event.isEnabled()) {
+			return;
+		}
+		event.table = table;
+		event.elapsedMillis = System.currentTimeMillis() - started;
+		event.ingestMillis = getIngestMillis();
+		event.productsComputed = getProductsComputed();
+		event.productCost = getProductCost();
+		event.dependenciesChecked = getDependenciesChecked();
+		event.peakPartitionBytes = getPeakPartitionBytes();
+		event.partitionsEvicted = getPartitionsEvicted();
+		event.commit();
+	}
+
+	/**
+	 * Returns the metrics as a JSON object.
+	 *
+	 * @return
+	 */
+	public String toJson() {
+		StringBuilder builder = new StringBuilder("{");
+		builder.append("\"elapsedMillis\":").append(System.currentTimeMillis() - started);
+		builder.append(",\"ingestMillis\":").append(getIngestMillis());
+		builder.append(",\"multiplyMillis\":").append(getMultiplyMillis());
+		builder.append(",\"errorCheckMillis\":").append(getErrorCheckMillis());
+		builder.append(",\"levelGenerationMillis\":").append(getLevelGenerationMillis());
+		builder.append(",\"productsComputed\":").append(getProductsComputed());
+		builder.append(",\"productCost\":").append(getProductCost());
+		builder.append(",\"possibleDependencies\":").append(getPossibleDependencies());
+		builder.append(",\"dependenciesChecked\":").append(getDependenciesChecked());
+		builder.append(",\"peakPartitionBytes\":").append(getPeakPartitionBytes());
+		builder.append(",\"partitionsEvicted\":").append(getPartitionsEvicted());
+		builder.append(",\"levels\":[");
+		boolean first = true;
+		for (LevelMetrics metrics : getLevels()) {
+			if (!first) {
+				builder.append(",");
+			}
+			first = false;
+			builder.append(metrics.toJson());
+		}
+		builder.append("]}");
+		return builder.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "[metrics products: " + getProductsComputed() + ", product cost: " + getProductCost() + ", checked: "
+			+ getDependenciesChecked() + ", ingest: " + getIngestMillis() + " ms, multiply: " + getMultiplyMillis()
+			+ " ms, error check: " + getErrorCheckMillis() + " ms, level generation: " + getLevelGenerationMillis()
+			+ " ms, peak partition bytes: " + getPeakPartitionBytes() + ", evicted: " + getPartitionsEvicted() + "]";
+	}
+
+	/**
+	 * The counters and timers of one level.
+	 */
+	public static class LevelMetrics implements Comparable<LevelMetrics> {
+		private final int level;
+		private final LongAdder productsComputed = new LongAdder();
+		private final LongAdder productCost = new LongAdder();
+		private final LongAdder possibleDependencies = new LongAdder();
+		private final LongAdder dependenciesChecked = new LongAdder();
+		private final LongAdder dependenciesFound = new LongAdder();
+		private final LongAdder partitionsEvicted = new LongAdder();
+		private final LongAdder ingestNanos = new LongAdder();
+		private final LongAdder multiplyNanos = new LongAdder();
+		private final LongAdder errorCheckNanos = new LongAdder();
+		private final LongAdder levelGenerationNanos = new LongAdder();
+		private final AtomicLong peakPartitionBytes = new AtomicLong();
+
+		LevelMetrics(int level) {
+			this.level = level;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public long getProductsComputed() {
+			return productsComputed.sum();
+		}
+
+		public long getProductCost() {
+			return productCost.sum();
+		}
+
+		public long getPossibleDependencies() {
+			return possibleDependencies.sum();
+		}
+
+		public long getDependenciesChecked() {
+			return dependenciesChecked.sum();
+		}
+
+		public long getDependenciesFound() {
+			return dependenciesFound.sum();
+		}
+
+		public long getPartitionsEvicted() {
+			return partitionsEvicted.sum();
+		}
+
+		public long getIngestMillis() {
+			return ingestNanos.sum() / 1000000;
+		}
+
+		public long getMultiplyMillis() {
+			return multiplyNanos.sum() / 1000000;
+		}
+
+		public long getErrorCheckMillis() {
+			return errorCheckNanos.sum() / 1000000;
+		}
+
+		public long getLevelGenerationMillis() {
+			return levelGenerationNanos.sum() / 1000000;
+		}
+
+		public long getPeakPartitionBytes() {
+			return peakPartitionBytes.get();
+		}
+
+		String toJson() {
+			return "{\"level\":" + level + ",\"productsComputed\":" + getProductsComputed() + ",\"productCost\":" + getProductCost()
+				+ ",\"possibleDependencies\":" + getPossibleDependencies() + ",\"dependenciesChecked\":" + getDependenciesChecked()
+				+ ",\"dependenciesFound\":" + getDependenciesFound() + ",\"ingestMillis\":" + getIngestMillis()
+				+ ",\"multiplyMillis\":" + getMultiplyMillis() + ",\"errorCheckMillis\":" + getErrorCheckMillis()
+				+ ",\"levelGenerationMillis\":" + getLevelGenerationMillis() + ",\"peakPartitionBytes\":" + getPeakPartitionBytes()
+				+ ",\"partitionsEvicted\":" + getPartitionsEvicted() + "}";
+		}
+
+		@Override
+		public int compareTo(LevelMetrics o) {
+			return level - o.level;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Computes the errors of <code>X->A</code> for several right sides <code>A</code> in one pass
+ * over the classes of the partition of <code>X</code>, without the partitions of
+ * <code>XA</code>. Every row has the index of its class in the base partition of every right side
+ * (its dictionary code, see <code>PackedGrouping</code>). For a class of <code>X</code> the codes
+ * of its rows are counted for every right side together; the rows outside the most frequent code
+ * are deleted.
+ * <br/>
+ * The pass also gives the number of classes of every <code>XA</code>, so pruning doesn't need
+ * their partitions. The rows to delete are only collected for the dependencies asked for, by a
+ * second pass; a tie between subclasses is broken like in <code>Partition.getRowsToDelete()</code>,
+ * so the rows are the same.
+ *
+ * @author Akos Tajti
+ */
+public class MultiRhsChecker {
+	/**
+	 * The classes of <code>X</code>.
+	 */
+	private final List<EquivalenceClass<Object, Integer>> classes;
+
+	private final int strippedRows;
+
+	/**
+	 * The codes of the right sides: <code>codes[i][row]</code>. Code 0 means the row is stripped
+	 * from the base partition, so its value is unique.
+	 */
+	private final int[][] codes;
+
+	/**
+	 * The number of rows having a code in the current class, for every right side.
+	 */
+	private final int[][] counts;
+
+	private final int[] violations;
+
+	private final int[] numberOfClasses;
+
+	/**
+	 * @param lhs The (stripped) partition of <code>X</code>.
+	 * @param codes The codes of the right sides.
+	 * @param numberOfCodes The largest code of every right side plus one.
+	 */
+	public MultiRhsChecker(Partition lhs, int[][] codes, int[] numberOfCodes) {
+		this.classes = lhs.getClasses();
+		this.strippedRows = lhs.getStrippedRows();
+		this.codes = codes;
+		counts = new int[codes.length][];
+		for (int i = 0; i < codes.length; i++) {
+			counts[i] = new int[numberOfCodes[i]];
+		}
+		violations = new int[codes.length];
+		numberOfClasses = new int[codes.length];
+		check();
+	}
+
+	private void check() {
+		int[] max = new int[codes.length];
+		for (int i = 0; i < codes.length; i++) {
+			numberOfClasses[i] = strippedRows;
+		}
+		for (EquivalenceClass<Object, Integer> clazz : classes) {
+			List<Integer> rows = clazz.getRows();
+			for (int i = 0; i < codes.length; i++) {
+				max[i] = 0;
+			}
+			for (Integer row : rows) {
+				for (int i = 0; i < codes.length; i++) {
+					int code = codes[i][row];
+					int count = code == 0 ? 1 : ++counts[i][code];
+					if (count == 1) {
+						++numberOfClasses[i];
+					}
+					if (count > max[i]) {
+						max[i] = count;
+					}
+				}
+			}
+			for (int i = 0; i < codes.length; i++) {
+				violations[i] += rows.size() - max[i];
+			}
+			reset(rows);
+		}
+	}
+
+	private void reset(List<Integer> rows) {
+		for (Integer row : rows) {
+			for (int i = 0; i < codes.length; i++) {
+				counts[i][codes[i][row]] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @param rhs The index of the right side.
+	 * @return The number of rows to delete so that <code>X->A</code> holds.
+	 */
+	public int getViolations(int rhs) {
+		return violations[rhs];
+	}
+
+	/**
+	 * @param rhs The index of the right side.
+	 * @return The number of classes of <code>XA</code>, including the stripped ones.
+	 */
+	public int getNumberOfClasses(int rhs) {
+		return numberOfClasses[rhs];
+	}
+
+	/**
+	 * Returns the rows to delete so that <code>X->A</code> holds. In every class of
+	 * <code>X</code> the rows of the largest subclass are kept; of equal subclasses the one whose
+	 * first row comes first.
+	 *
+	 * @param rhs The index of the right side.
+	 * @return
+	 */
+	public List<Integer> getRowsToDelete(int rhs) {
+		int[] rhsCodes = codes[rhs];
+		int[] rhsCounts = counts[rhs];
+		List<Integer> result = new ArrayList<Integer>(violations[rhs]);
+		for (EquivalenceClass<Object, Integer> clazz : classes) {
+			List<Integer> rows = clazz.getRows();
+			int max = 1;
+			for (Integer row : rows) {
+				int code = rhsCodes[row];
+				if (code != 0) {
+					max = Math.max(max, ++rhsCounts[code]);
+				}
+			}
+			// the first row of the kept subclass
+			int kept = 0;
+			while (max > 1 && (rhsCodes[rows.get(kept)] == 0 || rhsCounts[rhsCodes[rows.get(kept)]] < max)) {
+				++kept;
+			}
+			int keptCode = rhsCodes[rows.get(kept)];
+			for (int i = 0; i < rows.size(); i++) {
+				Integer row = rows.get(i);
+				if (max == 1 ? i != 0 : rhsCodes[row] != keptCode) {
+					result.add(row);
+				}
+			}
+			for (Integer row : rows) {
+				rhsCounts[rhsCodes[row]] = 0;
+			}
+		}
+		return result;
+	}
+}
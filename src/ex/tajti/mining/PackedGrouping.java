@@ -0,0 +1,258 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the partition of an attribute set directly from the base partitions, without a chain
+ * of products. Every row gets the index of its class in the base partition of every attribute
+ * (its dictionary code); if the codes of the attributes fit into 63 bits together, they are packed
+ * into one <code>long</code> per row and the rows are grouped by it in one pass with an open
+ * addressing table.
+ * <br/>
+ * Code 0 means the row is stripped from the base partition. Such a row is stripped from the
+ * partition of every attribute set containing the attribute, so only the rows of the smallest
+ * base partition are scanned. The cost of a grouping is the number of codes read:
+ * <code>|X| * ||smallest base partition||</code>, compared to the cost of a product with
+ * <code>COST_RATIO</code>.
+ *
+ * @author Akos Tajti
+ */
+public class PackedGrouping {
+	/**
+	 * The maximal number of bits of a packed key.
+	 */
+	static final int MAX_BITS = 63;
+
+	/**
+	 * Reading a code from an array is about this many times cheaper than touching a row in a
+	 * product (boxed row IDs in a hash map), so a grouping is chosen if its cost is less than this
+	 * many times the cost of the product.
+	 */
+	static final int COST_RATIO = 4;
+
+	/**
+	 * The dictionary codes of the base attributes: <code>codes.get(attribute)[row]</code>, 0 for the
+	 * stripped rows.
+	 */
+	private final Map<String, int[]> codes = new HashMap<String, int[]>();
+
+	/**
+	 * The number of bits of the codes of the base attributes.
+	 */
+	private final Map<String, Integer> bits = new HashMap<String, Integer>();
+
+	/**
+	 * The number of classes of the base partitions.
+	 */
+	private final Map<String, Integer> numberOfCodes = new HashMap<String, Integer>();
+
+	/**
+	 * The rows of the (stripped) base partitions in ascending order.
+	 */
+	private final Map<String, int[]> rows = new HashMap<String, int[]>();
+
+	/**
+	 * The number of rows of the base partitions, including the stripped ones.
+	 */
+	private int numberOfRows;
+
+	/**
+	 * Reads the dictionary codes from the base partitions.
+	 *
+	 * @param basePartitions The stripped partitions of the attributes.
+	 */
+	public PackedGrouping(Map<String, Partition> basePartitions) {
+		int maxRow = -1;
+		for (Partition partition : basePartitions.values()) {
+			for (EquivalenceClass<Object, Integer> clazz : partition.getClasses()) {
+				for (Integer row : clazz.getRows()) {
+					maxRow = Math.max(maxRow, row);
+				}
+			}
+		}
+		for (Map.Entry<String, Partition> entry : basePartitions.entrySet()) {
+			int[] attributeCodes = new int[maxRow + 1];
+			List<EquivalenceClass<Object, Integer>> classes = entry.getValue().getClasses();
+			int[] attributeRows = new int[Partition.rowCount(classes)];
+			int count = 0;
+			for (int i = 0; i < classes.size(); i++) {
+				for (Integer row : classes.get(i).getRows()) {
+					attributeCodes[row] = i + 1;
+					attributeRows[count++] = row;
+				}
+			}
+			Arrays.sort(attributeRows);
+			numberOfRows = Math.max(numberOfRows, attributeRows.length + entry.getValue().getStrippedRows());
+			codes.put(entry.getKey(), attributeCodes);
+			bits.put(entry.getKey(), 32 - Integer.numberOfLeadingZeros(classes.size()));
+			numberOfCodes.put(entry.getKey(), classes.size() + 1);
+			rows.put(entry.getKey(), attributeRows);
+		}
+	}
+
+	/**
+	 * Estimates the bytes of a grouping before it's created: a code and a row ID per row and
+	 * attribute.
+	 *
+	 * @param numberOfRows
+	 * @param numberOfAttributes
+	 * @return
+	 */
+	static long estimateBytes(int numberOfRows, int numberOfAttributes) {
+		return 8L * numberOfRows * numberOfAttributes;
+	}
+
+	/**
+	 * @return The bytes used by the arrays of the codes and the rows.
+	 */
+	public long estimateBytes() {
+		long result = 0;
+		for (String attribute : codes.keySet()) {
+			result += 4L * (codes.get(attribute).length + rows.get(attribute).length);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the dictionary codes of a base attribute (indexed by the row), or <code>null</code> if
+	 * the attribute is unknown. The array must not be modified.
+	 *
+	 * @param attribute
+	 * @return
+	 */
+	int[] getCodes(String attribute) {
+		return codes.get(attribute);
+	}
+
+	/**
+	 * Returns the largest code of a base attribute plus one, or -1 if the attribute is unknown.
+	 *
+	 * @param attribute
+	 * @return
+	 */
+	int getNumberOfCodes(String attribute) {
+		Integer result = numberOfCodes.get(attribute);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Returns the cost of grouping the rows by <code>attributeList</code>, or -1 if its codes don't
+	 * fit into a <code>long</code> or an attribute is unknown.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public long cost(String attributeList) {
+		String[] parts = attributeList.split(":");
+		int total = 0;
+		long minRows = Long.MAX_VALUE;
+		for (String part : parts) {
+			Integer attributeBits = bits.get(part);
+			if (attributeBits == null) {
+				return -1;
+			}
+			total += attributeBits;
+			minRows = Math.min(minRows, rows.get(part).length);
+		}
+		return total > MAX_BITS ? -1 : parts.length * minRows;
+	}
+
+	/**
+	 * Groups the rows by <code>attributeList</code>. The result is stripped, the rows of its classes
+	 * are in ascending order like in a product. Its stripped row count is the number of rows
+	 * outside its classes, like in a product.
+	 *
+	 * @param attributeList An attribute set whose <code>cost()</code> is not negative.
+	 * @return
+	 */
+	public Partition group(String attributeList) {
+		String[] parts = attributeList.split(":");
+		int[][] attributeCodes = new int[parts.length][];
+		int[] shifts = new int[parts.length];
+		int[] scanned = null;
+		int shift = 0;
+		for (int i = 0; i < parts.length; i++) {
+			attributeCodes[i] = codes.get(parts[i]);
+			shifts[i] = shift;
+			shift += bits.get(parts[i]);
+			int[] attributeRows = rows.get(parts[i]);
+			if (scanned == null || attributeRows.length < scanned.length) {
+				scanned = attributeRows;
+			}
+		}
+
+		// the group of every scanned row, -1 if it's stripped from a base partition
+		int[] groups = new int[scanned.length];
+		int[] sizes = new int[16];
+		int numberOfGroups = 0;
+		long[] keys = new long[Math.max(16, Integer.highestOneBit(Math.max(scanned.length, 1)) * 4)];
+		int[] indexes = new int[keys.length];
+		Arrays.fill(indexes, -1);
+		int mask = keys.length - 1;
+		rows:
+		for (int r = 0; r < scanned.length; r++) {
+			int row = scanned[r];
+			long key = 0;
+			for (int i = 0; i < attributeCodes.length; i++) {
+				int code = attributeCodes[i][row];
+				if (code == 0) {
+					groups[r] = -1;
+					continue rows;
+				}
+				key |= (long) code << shifts[i];
+			}
+			int slot = mix(key) & mask;
+			while (indexes[slot] >= 0 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			if (indexes[slot] < 0) {
+				keys[slot] = key;
+				indexes[slot] = numberOfGroups;
+				if (numberOfGroups == sizes.length) {
+					sizes = Arrays.copyOf(sizes, sizes.length * 2);
+				}
+				++numberOfGroups;
+			}
+			groups[r] = indexes[slot];
+			++sizes[groups[r]];
+		}
+
+		List<EquivalenceClass<Object, Integer>> classes = new ArrayList<EquivalenceClass<Object, Integer>>();
+		EquivalenceClass<Object, Integer>[] classOfGroup = newClasses(numberOfGroups);
+		int stripped = numberOfRows;
+		for (int r = 0; r < scanned.length; r++) {
+			int group = groups[r];
+			if (group < 0 || sizes[group] == 1) {
+				continue;
+			}
+			--stripped;
+			if (classOfGroup[group] == null) {
+				classOfGroup[group] = new EquivalenceClass<Object, Integer>(attributeList);
+				classes.add(classOfGroup[group]);
+			}
+			classOfGroup[group].addRow(scanned[r]);
+		}
+
+		return new Partition(attributeList, classes, stripped);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static EquivalenceClass<Object, Integer>[] newClasses(int size) {
+		return new EquivalenceClass[size];
+	}
+
+	/**
+	 * Spreads the bits of a key over the slots of an open addressing table.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -1,5 +1,8 @@
 package ex.tajti.mining;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -34,7 +37,8 @@ public class Partition {
 	private int level = -1;
 
 	/**
-	 * The number of rows removed by the <code>strip()</code> method.
+	 * The number of rows outside the classes of a stripped partition: the rows removed by the
+	 * <code>strip()</code> method and, for a product, the rows stripped from its factors.
 	 */
 	private int strippedRows;
 
@@ -59,13 +63,25 @@ public class Partition {
 		this.classes = new ArrayList<EquivalenceClass<Object, Integer>>(classes);
 	}
 
+	/**
+	 * Creates a stripped partition.
+	 *
+	 * @param attribute
+	 * @param classes The classes having more than one row.
+	 * @param strippedRows The number of rows in the classes removed.
+	 */
+	Partition(String attribute, List<EquivalenceClass<Object, Integer>> classes, int strippedRows) {
+		this(attribute, classes);
+		this.strippedRows = strippedRows;
+	}
+
 	/**
 	 * Computes the level on which the partition was created.
 	 *
 	 * @param
 	 * @return
 	 */
-	private int getLevelNumber(String attributeList) {
+	static int getLevelNumber(String attributeList) {
 		return attributeList.replaceAll("[^:]", "").length();
 	}
 
@@ -125,7 +141,6 @@ public class Partition {
 			EquivalenceClass<Object, Integer> cl = it.next();
 			if (cl.getSize() == 1) {
 				++strippedRows;
-				++stripped;
 				rowsStripped.add(cl.getRows().get(0));
 				it.remove();
 			}
@@ -163,6 +178,20 @@ public class Partition {
 	 * @return null if there was an error
 	 */
 	public Partition multiply(Partition part) {
+		return part == null ? null : multiply(part, attribute + ":" + part.attribute);
+	}
+
+	/**
+	 * Multiplies this partition with <code>part</code>. The attribute set of the result is
+	 * <code>resultAttribute</code>, which must be the union of the attribute sets of the two
+	 * partitions. The number of stripped rows of the result includes the rows stripped from this
+	 * partition, so <code>classes + stripped rows</code> is the number of value combinations.
+	 *
+	 * @param part
+	 * @param resultAttribute
+	 * @return null if there was an error
+	 */
+	public Partition multiply(Partition part, String resultAttribute) {
 		if (part == null) {
 			return null;
 		}
@@ -178,7 +207,7 @@ public class Partition {
 		}
 
 
-		Partition result = new Partition(attribute + ":" + part.attribute);
+		Partition result = new Partition(resultAttribute);
 
 		List<EquivalenceClass<Object, Integer>> otherClasses = part.getClasses();
 		for (EquivalenceClass<Object, Integer> cl : otherClasses) {
@@ -192,7 +221,7 @@ public class Partition {
 				if (eqClasses.get(o) != null) {
 					eqClasses.get(o).addRow(rowId);
 				} else {
-					EquivalenceClass<Object, Integer> clazz = new EquivalenceClass<Object, Integer>(attribute + ":" + part.attribute);
+					EquivalenceClass<Object, Integer> clazz = new EquivalenceClass<Object, Integer>(resultAttribute);
 					clazz.addRow(rowId);
 					eqClasses.put(o, clazz);
 				}
@@ -205,9 +234,32 @@ public class Partition {
 		}
 
 		result.strip();
+		result.strippedRows = rowCount(classes) + strippedRows - rowCount(result.classes);
 		return result;
 	}
 
+	/**
+	 * Returns the number of row IDs a product of this partition and <code>part</code>
+	 * has to touch.
+	 *
+	 * @param part
+	 * @return
+	 */
+	public long productCost(Partition part) {
+		return rowCount(classes) + rowCount(part.classes);
+	}
+
+	/**
+	 * Returns the estimated number of bytes the partition occupies on the heap. Every row
+	 * ID is a boxed <code>Integer</code> referenced from a list, every stripped row is an
+	 * entry of a <code>HashSet</code>.
+	 *
+	 * @return
+	 */
+	public long estimateBytes() {
+		return 64L + 80L * classes.size() + 20L * rowCount(classes) + 48L * rowsStripped.size();
+	}
+
 	/**
 	 * Returns the level on which the partition was created.
 	 *
@@ -220,91 +272,56 @@ public class Partition {
 		return level;
 	}
 
-	public static long iterations = 0;
-	public static long continued = 0;
-	public static long stripped = 0;
-	//private static List<EquivalenceClass<Object, Integer>> result;
-
 	/**
-	 * Returns the list of equivalence classes that must be deleted from <code>extended</code>
-	 * in order to make the <code>attribute -> extended.attribute</code> functional dependency
-	 * valid. <code>attribute</code> must be a subset of <code>extended.attribute</code>. If this
-	 * is not the case or <code>extended</code> is <code>null</code> the method returns <code>null</code>.
+	 * Returns the rows that must be deleted in order to make the <code>attribute -> extended.attribute</code>
+	 * functional dependency valid: in every class of this partition the rows outside the largest
+	 * subclass in <code>extended</code>. On a tie the subclass of the first row is kept; if every
+	 * row of a class is stripped from <code>extended</code>, the first row is kept.
+	 * <code>attribute</code> must be a subset of <code>extended.attribute</code>. If
+	 * <code>extended</code> is <code>null</code> the method returns <code>null</code>.
+	 * <br/>
+	 * Only the classes of the two partitions are used, so it doesn't matter which products the
+	 * partitions were computed by.
 	 *
 	 * @param extended
 	 * @return
 	 */
-	public Collection<Integer> getRowsToDelete(Partition extended) { //TODO: test this
-		if (extended == null /*|| !extended.attribute.contains(attribute)*/) {
+	public Collection<Integer> getRowsToDelete(Partition extended) {
+		if (extended == null) {
 			System.out.println("unsupported attribute");
 			return null;
 		}
 		Set<Integer> result = new HashSet<Integer>();
 
-
-		List<EquivalenceClass<Object, Integer>> extendedClasses = extended.classes;
-
-		Map<Integer, Integer> idAndSize = new HashMap<Integer, Integer>(extendedClasses.size());
-		for (EquivalenceClass<Object, Integer> cl : extendedClasses) {
-			idAndSize.put(cl.getRandomRowId(), cl.getSize());
-			++iterations;
+		Map<Integer, EquivalenceClass<Object, Integer>> classOfRow = new HashMap<Integer, EquivalenceClass<Object, Integer>>(2 * rowCount(extended.classes));
+		for (EquivalenceClass<Object, Integer> cl : extended.classes) {
+			for (Integer row : cl.getRows()) {
+				classOfRow.put(row, cl);
+			}
 		}
 
 		for (EquivalenceClass<Object, Integer> cl : classes) {
-			int max = 0; // the size of the biggest subset
-			Integer maxRow = null;
 			List<Integer> clRows = cl.getRows();
-			for (Integer row : clRows) { // TODO: is SortedSet better?
-				Integer size = idAndSize.get(row);
-				if (size != null && size > max) {
-					max = size;
-					maxRow = row;
-				}
-				++iterations;
-			}
-
-			EquivalenceClass<Object, Integer> maxSuperClass = null;
-			if (max == 0) { // the case when all ECs were stripped. one must be put back.
-				EquivalenceClass<Object, Integer> newClass = new EquivalenceClass<Object, Integer>();
-				newClass.addRow(clRows.get(0));
-				extended.classes.add(newClass);
+			if (clRows.size() < 2) {
 				continue;
 			}
-
-			for (EquivalenceClass<Object, Integer> clazz : extendedClasses) {
-
-				if (clazz.rows.contains(maxRow)) {
-					maxSuperClass = clazz;
-					break;
+			EquivalenceClass<Object, Integer> maxSuperClass = null; // the biggest subset
+			for (Integer row : clRows) {
+				EquivalenceClass<Object, Integer> superClass = classOfRow.get(row);
+				if (superClass != null && (maxSuperClass == null || superClass.getSize() > maxSuperClass.getSize())) {
+					maxSuperClass = superClass;
 				}
-				++iterations;
 			}
 
-			if (maxSuperClass != null) {
-				Collection<Integer> maxRows = maxSuperClass.rows;
-				for (Integer row : clRows) {
-					++iterations;
-					if (!maxRows.contains(row)) {
-
-						for (EquivalenceClass<Object, Integer> clazz : extendedClasses) {
-							if (clazz.rows.contains(row)) {
-
-								result.addAll(clazz.getRows());
-								++iterations;
-								break;
-							}
-						}
-					}
+			for (int i = 0; i < clRows.size(); i++) {
+				Integer row = clRows.get(i);
+				boolean kept = maxSuperClass == null ? i == 0 : classOfRow.get(row) == maxSuperClass;
+				if (!kept) {
+					result.add(row);
 				}
 			}
 		}
 
-		if (strippedRows != 0 || extended.strippedRows != 0) {
-			List<Integer> extendedRowsStripped = new ArrayList<Integer>(extended.rowsStripped);
-			extendedRowsStripped.removeAll(rowsStripped);
-			result.addAll(extendedRowsStripped);
-		}
-
 		return result;
 	}
 
@@ -350,6 +367,61 @@ public class Partition {
 		return p;
 	}
 
+	/**
+	 * Writes the partition to <code>out</code>. The classifiers must be serializable.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(ObjectOutput out) throws IOException {
+		out.writeUTF(attribute);
+		out.writeInt(strippedRows);
+		out.writeInt(rowsStripped.size());
+		for (Integer row : rowsStripped) {
+			out.writeInt(row);
+		}
+		out.writeInt(classes.size());
+		for (EquivalenceClass<Object, Integer> clazz : classes) {
+			out.writeObject(clazz.getClassifier());
+			List<Integer> rows = clazz.getRows();
+			out.writeInt(rows.size());
+			for (Integer row : rows) {
+				out.writeInt(row);
+			}
+		}
+	}
+
+	/**
+	 * Reads a partition written by <code>write()</code>.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static Partition read(ObjectInput in) throws IOException {
+		Partition result = new Partition(in.readUTF());
+		result.strippedRows = in.readInt();
+		for (int i = in.readInt(); i > 0; i--) {
+			result.rowsStripped.add(in.readInt());
+		}
+		int classCount = in.readInt();
+		result.classes = new ArrayList<EquivalenceClass<Object, Integer>>(classCount);
+		for (int i = 0; i < classCount; i++) {
+			EquivalenceClass<Object, Integer> clazz;
+			try {
+				clazz = new EquivalenceClass<Object, Integer>(in.readObject());
+			} catch (ClassNotFoundException ex) {
+				throw new IOException(ex);
+			}
+			for (int j = in.readInt(); j > 0; j--) {
+				clazz.addRow(in.readInt());
+			}
+			result.classes.add(clazz);
+		}
+
+		return result;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -379,7 +451,7 @@ public class Partition {
 	}
 
 	/**
-	 * Returns the number of rows removed by <code>strip()</code>.
+	 * Returns the number of rows outside the classes, each of them forms a class alone.
 	 *
 	 * @return the strippedRows
 	 */
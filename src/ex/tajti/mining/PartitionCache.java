@@ -0,0 +1,256 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Caches the base partitions of tables between runs. The partitions of a table are stored as a
+ * snapshot: they come from the same query, so their row IDs are consistent. A run needing only
+ * columns contained by a snapshot doesn't have to read the table. If the rows were read ordered by
+ * a key column, the snapshot also holds their keys, and a run using that key column gets them from
+ * the snapshot; a snapshot without the keys of the run's key column is a miss. A snapshot taken by
+ * a profiling run holds no partitions of the constant and key columns, only their names; it's a hit
+ * for another profiling run, which leaves those columns out as well.
+ * <br/>
+ * The least recently used snapshots are evicted when the estimated size of the cache exceeds its
+ * capacity, and snapshots older than the time to live are not used. The cached partitions must not
+ * be modified. The class is thread-safe.
+ *
+ * @author Akos Tajti
+ */
+public class PartitionCache {
+	private static final Logger logger = Logger.getLogger(PartitionCache.class.getSimpleName());
+
+	/**
+	 * The snapshots in access order. The keys are built from the JDBC url and the table name.
+	 */
+	private final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+
+	/**
+	 * The maximal estimated size of the cache in bytes.
+	 */
+	private final long capacity;
+
+	/**
+	 * Snapshots older than this (in milliseconds) are not used. 0 means no limit.
+	 */
+	private final long timeToLive;
+
+	private long bytes;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	/**
+	 * @param capacity The maximal estimated size of the cache in bytes.
+	 * @param timeToLive Snapshots older than this (in milliseconds) are not used. 0 means no limit.
+	 */
+	public PartitionCache(long capacity, long timeToLive) {
+		this.capacity = capacity;
+		this.timeToLive = timeToLive;
+	}
+
+	private static String key(String jdbcUrl, String table) {
+		return jdbcUrl + "|" + table;
+	}
+
+	/**
+	 * Returns the snapshot of <code>table</code> if it contains the partitions of all
+	 * <code>attributes</code> (and the keys of <code>keyColumn</code> if it's set),
+	 * <code>null</code> otherwise.
+	 *
+	 * @param jdbcUrl
+	 * @param table
+	 * @param attributes
+	 * @param keyColumn The key column of the run, or <code>null</code>.
+	 * @param profiling <code>true</code> if the run profiles the columns, so it doesn't need the
+	 * partitions of the constant and key columns.
+	 * @return
+	 */
+	public synchronized Snapshot get(String jdbcUrl, String table, Collection<String> attributes, String keyColumn, boolean profiling) {
+		String key = key(jdbcUrl, table);
+		Snapshot snapshot = snapshots.get(key);
+		if (snapshot != null && timeToLive > 0 && System.currentTimeMillis() - snapshot.created > timeToLive) {
+			remove(key);
+			snapshot = null;
+		}
+		if (snapshot == null || !snapshot.contains(attributes, profiling) || (keyColumn != null && !keyColumn.equals(snapshot.keyColumn))) {
+			++misses;
+			return null;
+		}
+		++hits;
+		return snapshot;
+	}
+
+	/**
+	 * Stores the base partitions of <code>table</code>. Replaces the previous snapshot of the table.
+	 *
+	 * @param jdbcUrl
+	 * @param table
+	 * @param numberOfRows
+	 * @param partitions The base partitions. The keys are the attribute names.
+	 * @param keyColumn The column the rows were ordered by, or <code>null</code>.
+	 * @param rowKeys The keys of the rows if <code>keyColumn</code> is set.
+	 * @param constants The constant columns left out by the profiling, or an empty collection.
+	 * @param keys The key columns left out by the profiling, or an empty collection.
+	 */
+	public synchronized void put(String jdbcUrl, String table, int numberOfRows, Map<String, Partition> partitions, String keyColumn,
+		RowKeys rowKeys, Collection<String> constants, Collection<String> keys) {
+		String key = key(jdbcUrl, table);
+		remove(key);
+		Snapshot snapshot = new Snapshot(numberOfRows, partitions, keyColumn, rowKeys, constants, keys);
+		if (snapshot.bytes > capacity) {
+			logger.info("partitions of " + table + " are too big to be cached");
+			return;
+		}
+		snapshots.put(key, snapshot);
+		bytes += snapshot.bytes;
+
+		for (Iterator<Map.Entry<String, Snapshot>> it = snapshots.entrySet().iterator(); bytes > capacity && it.hasNext();) {
+			Map.Entry<String, Snapshot> entry = it.next();
+			logger.info("evicting the partitions of " + entry.getKey());
+			bytes -= entry.getValue().bytes;
+			++evictions;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Removes the snapshot of <code>table</code>.
+	 *
+	 * @param jdbcUrl
+	 * @param table
+	 */
+	public synchronized void invalidate(String jdbcUrl, String table) {
+		remove(key(jdbcUrl, table));
+	}
+
+	/**
+	 * Removes every snapshot.
+	 */
+	public synchronized void clear() {
+		snapshots.clear();
+		bytes = 0;
+	}
+
+	private void remove(String key) {
+		Snapshot old = snapshots.remove(key);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+	}
+
+	/**
+	 * Returns the statistics of the cache as a JSON object.
+	 *
+	 * @return
+	 */
+	public synchronized String toJson() {
+		StringBuilder builder = new StringBuilder("{\"tables\":[");
+		boolean first = true;
+		for (Map.Entry<String, Snapshot> entry : snapshots.entrySet()) {
+			if (!first) {
+				builder.append(",");
+			}
+			first = false;
+			String table = entry.getKey().substring(entry.getKey().lastIndexOf('|') + 1);
+			builder.append("{\"table\":\"").append(table).append("\",\"rows\":").append(entry.getValue().numberOfRows)
+				.append(",\"columns\":").append(entry.getValue().partitions.size()).append(",\"bytes\":")
+				.append(entry.getValue().bytes).append("}");
+		}
+		builder.append("],\"bytes\":").append(bytes).append(",\"capacity\":").append(capacity).append(",\"hits\":").append(hits)
+			.append(",\"misses\":").append(misses).append(",\"evictions\":").append(evictions).append("}");
+		return builder.toString();
+	}
+
+	/**
+	 * The base partitions of a table created by one query, and the keys of the rows if the query
+	 * ordered them by a key column.
+	 */
+	public static class Snapshot {
+		private final int numberOfRows;
+		private final Map<String, Partition> partitions;
+		private final String keyColumn;
+		private final RowKeys rowKeys;
+		private final List<String> constants;
+		private final List<String> keys;
+		private final long bytes;
+		private final long created = System.currentTimeMillis();
+
+		Snapshot(int numberOfRows, Map<String, Partition> partitions, String keyColumn, RowKeys rowKeys, Collection<String> constants,
+			Collection<String> keys) {
+			this.numberOfRows = numberOfRows;
+			this.partitions = new HashMap<String, Partition>(partitions);
+			this.constants = new ArrayList<String>(constants);
+			this.keys = new ArrayList<String>(keys);
+			this.keyColumn = rowKeys == null ? null : keyColumn;
+			this.rowKeys = this.keyColumn == null ? null : rowKeys;
+			long size = this.rowKeys == null ? 0 : this.rowKeys.estimateBytes();
+			for (Partition partition : partitions.values()) {
+				size += partition.estimateBytes();
+			}
+			this.bytes = size;
+		}
+
+		public int getNumberOfRows() {
+			return numberOfRows;
+		}
+
+		private boolean contains(Collection<String> attributes, boolean profiling) {
+			for (String attribute : attributes) {
+				if (!partitions.containsKey(attribute) && !(profiling && (constants.contains(attribute) || keys.contains(attribute)))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return The constant columns left out by the profiling run that took the snapshot.
+		 */
+		public List<String> getConstants() {
+			return Collections.unmodifiableList(constants);
+		}
+
+		/**
+		 * @return The key columns left out by the profiling run that took the snapshot.
+		 */
+		public List<String> getKeys() {
+			return Collections.unmodifiableList(keys);
+		}
+
+		/**
+		 * @return The keys of the rows, or <code>null</code> if the rows were not read with a key column.
+		 */
+		public RowKeys getRowKeys() {
+			return rowKeys;
+		}
+
+		/**
+		 * Returns a new map containing the partitions of <code>attributes</code> that are in the
+		 * snapshot.
+		 *
+		 * @param attributes
+		 * @return
+		 */
+		public Map<String, Partition> getPartitions(Collection<String> attributes) {
+			Map<String, Partition> result = new HashMap<String, Partition>();
+			for (String attribute : attributes) {
+				if (partitions.containsKey(attribute)) {
+					result.put(attribute, partitions.get(attribute));
+				}
+			}
+			return result;
+		}
+	}
+}
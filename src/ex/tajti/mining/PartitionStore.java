@@ -0,0 +1,355 @@
+package ex.tajti.mining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Holds the partitions of a run. If their estimated size exceeds the memory budget, the least
+ * recently used partitions are written to files and read back when they are needed again, so a
+ * run that doesn't fit into the heap gets slower instead of failing.
+ * <br/>
+ * The number of classes of a spilled partition is kept in memory, so pruning doesn't read it
+ * back. The number of rows and the size of the largest class are kept for every partition, so
+ * the error bounds of the dependencies are computed without reading the classes.
+ *
+ * @author Akos Tajti
+ */
+public class PartitionStore {
+	private static final Logger logger = Logger.getLogger(PartitionStore.class.getSimpleName());
+
+	/**
+	 * The partitions in memory in access order.
+	 */
+	private final LinkedHashMap<String, Partition> partitions = new LinkedHashMap<String, Partition>(16, 0.75f, true);
+
+	/**
+	 * The estimated sizes of the partitions in memory.
+	 */
+	private final Map<String, Long> sizes = new HashMap<String, Long>();
+
+	/**
+	 * The files of the spilled partitions.
+	 */
+	private final Map<String, File> spilled = new HashMap<String, File>();
+
+	/**
+	 * The number of classes (including the stripped ones) of the spilled partitions.
+	 */
+	private final Map<String, Integer> spilledClasses = new HashMap<String, Integer>();
+
+	/**
+	 * The number of rows in the classes of every partition, in memory or spilled.
+	 */
+	private final Map<String, Integer> rowCounts = new HashMap<String, Integer>();
+
+	/**
+	 * The size of the largest class of every partition, in memory or spilled.
+	 */
+	private final Map<String, Integer> largestClasses = new HashMap<String, Integer>();
+
+	/**
+	 * The maximal estimated size of the partitions in memory.
+	 */
+	private final long memoryBudget;
+
+	private long memoryBytes;
+
+	/**
+	 * The bytes held outside the partitions (see <code>reserve()</code>).
+	 */
+	private long reserved;
+
+	private File directory;
+
+	private int spills;
+
+	private int loads;
+
+	/**
+	 * Creates a store that never spills.
+	 */
+	public PartitionStore() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param memoryBudget The maximal estimated size of the partitions in memory (in bytes).
+	 */
+	public PartitionStore(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns the partition of <code>attributeList</code> or <code>null</code> if there's no
+	 * such partition. A spilled partition is read back.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public Partition get(String attributeList) {
+		Partition result = partitions.get(attributeList);
+		if (result == null && spilled.containsKey(attributeList)) {
+			result = load(attributeList);
+		}
+		return result;
+	}
+
+	/**
+	 * Counts <code>bytes</code> held outside the partitions (e.g. the codes of a
+	 * <code>PackedGrouping</code>) against the budget. Partitions are spilled if they don't fit
+	 * any more. The reservation is released by <code>clear()</code>, or in part by reserving a
+	 * negative number of bytes.
+	 *
+	 * @param bytes
+	 */
+	public void reserve(long bytes) {
+		reserved += bytes;
+		spillIfNeeded();
+	}
+
+	/**
+	 * Returns <code>true</code> if the store has a budget, so it may spill.
+	 *
+	 * @return
+	 */
+	public boolean isBounded() {
+		return memoryBudget != Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns <code>true</code> if the partition of <code>attributeList</code> is spilled, so
+	 * getting it reads it back.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public boolean isSpilled(String attributeList) {
+		return spilled.containsKey(attributeList);
+	}
+
+	/**
+	 * Returns the number of bytes left of the budget.
+	 *
+	 * @return
+	 */
+	public long getFreeBytes() {
+		return memoryBudget - memoryBytes - reserved;
+	}
+
+	public void put(String attributeList, Partition partition) {
+		remove(attributeList);
+		partitions.put(attributeList, partition);
+		long size = partition.estimateBytes();
+		sizes.put(attributeList, size);
+		rowCounts.put(attributeList, Partition.rowCount(partition.getClasses()));
+		int largest = partition.getStrippedRows() > 0 ? 1 : 0;
+		for (EquivalenceClass<Object, Integer> ec : partition.getClasses()) {
+			largest = Math.max(largest, ec.getSize());
+		}
+		largestClasses.put(attributeList, largest);
+		memoryBytes += size;
+		spillIfNeeded();
+	}
+
+	/**
+	 * Adds every partition of <code>map</code>.
+	 *
+	 * @param map
+	 */
+	public void putAll(Map<String, Partition> map) {
+		for (Map.Entry<String, Partition> entry : map.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public void remove(String attributeList) {
+		rowCounts.remove(attributeList);
+		largestClasses.remove(attributeList);
+		if (partitions.remove(attributeList) != null) {
+			memoryBytes -= sizes.remove(attributeList);
+		}
+		File file = spilled.remove(attributeList);
+		if (file != null) {
+			spilledClasses.remove(attributeList);
+			file.delete();
+		}
+	}
+
+	public boolean containsKey(String attributeList) {
+		return partitions.containsKey(attributeList) || spilled.containsKey(attributeList);
+	}
+
+	/**
+	 * Returns the attribute sets of the partitions, in memory or spilled. The returned set is a copy.
+	 *
+	 * @return
+	 */
+	public Set<String> keySet() {
+		Set<String> result = new LinkedHashSet<String>(partitions.keySet());
+		result.addAll(spilled.keySet());
+		return result;
+	}
+
+	/**
+	 * Returns the number of classes of a partition including the stripped ones, or -1 if there's
+	 * no such partition. Doesn't read spilled partitions.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public int getNumberOfClasses(String attributeList) {
+		Partition partition = partitions.get(attributeList);
+		if (partition != null) {
+			return partition.getClasses().size() + partition.getStrippedRows();
+		}
+		Integer result = spilledClasses.get(attributeList);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Returns the number of rows in the (not stripped) classes of a partition, or -1 if there's no
+	 * such partition. Doesn't read spilled partitions.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public int getRowCount(String attributeList) {
+		Integer result = rowCounts.get(attributeList);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Returns the number of rows in the largest class of a partition (1 if every class is
+	 * stripped), or -1 if there's no such partition. Doesn't read spilled partitions.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public int getLargestClass(String attributeList) {
+		Integer result = largestClasses.get(attributeList);
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Removes every partition and deletes the files.
+	 */
+	public void clear() {
+		partitions.clear();
+		sizes.clear();
+		rowCounts.clear();
+		largestClasses.clear();
+		memoryBytes = 0;
+		reserved = 0;
+		for (File file : spilled.values()) {
+			file.delete();
+		}
+		spilled.clear();
+		spilledClasses.clear();
+		if (directory != null) {
+			directory.delete();
+			directory = null;
+		}
+	}
+
+	/**
+	 * Spills the least recently used partitions until the partitions in memory fit into the
+	 * budget. The most recently used partition is never spilled.
+	 */
+	private void spillIfNeeded() {
+		for (Iterator<Map.Entry<String, Partition>> it = partitions.entrySet().iterator(); memoryBytes + reserved > memoryBudget && partitions.size() > 1;) {
+			Map.Entry<String, Partition> entry = it.next();
+			try {
+				spill(entry.getKey(), entry.getValue());
+			} catch (IOException ex) {
+				// the partition stays in memory
+				logger.warning("cannot spill the partition of " + entry.getKey() + ": " + ex.getMessage());
+				return;
+			}
+			memoryBytes -= sizes.remove(entry.getKey());
+			it.remove();
+		}
+	}
+
+	private void spill(String attributeList, Partition partition) throws IOException {
+		if (directory == null) {
+			directory = File.createTempFile("partitions", "");
+			directory.delete();
+			directory.mkdir();
+			directory.deleteOnExit();
+		}
+		File file = File.createTempFile("partition", ".bin", directory);
+		file.deleteOnExit();
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			partition.write(out);
+		} finally {
+			out.close();
+		}
+		spilled.put(attributeList, file);
+		spilledClasses.put(attributeList, partition.getClasses().size() + partition.getStrippedRows());
+		++spills;
+		logger.info("spilled the partition of " + attributeList + " to " + file);
+	}
+
+	private Partition load(String attributeList) {
+		File file = spilled.remove(attributeList);
+		spilledClasses.remove(attributeList);
+		Partition result;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			try {
+				result = Partition.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException("cannot read the spilled partition of " + attributeList, ex);
+		} finally {
+			file.delete();
+		}
+		++loads;
+		put(attributeList, result);
+
+		return result;
+	}
+
+	/**
+	 * Returns the estimated size of the partitions in memory and the reserved bytes.
+	 *
+	 * @return
+	 */
+	public long getMemoryBytes() {
+		return memoryBytes + reserved;
+	}
+
+	/**
+	 * Returns the number of times a partition was written to disk.
+	 *
+	 * @return
+	 */
+	public int getSpills() {
+		return spills;
+	}
+
+	/**
+	 * Returns the number of times a spilled partition was read back.
+	 *
+	 * @return
+	 */
+	public int getLoads() {
+		return loads;
+	}
+}
@@ -3,13 +3,27 @@ package ex.tajti.mining;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 
 /**
  * Creates the base partitions from the result of a query. Base partitions are partitions
  * based on attribute sets with one element.
+ * <br/>
+ * Every column is read by a reader chosen by its SQL type: integer columns are read with
+ * <code>getInt()</code>/<code>getLong()</code> into a primitive hash table, one character columns
+ * through a lookup table indexed by the character. A value is boxed only once, when its class is
+ * created, and the nulls of a column are collected in a bitmap, so reading a cell allocates
+ * nothing but the row ID shared by the columns of the row.
+ * <br/>
+ * If the rows are read with their keys, the last column of the result is the key column. It's not
+ * partitioned, its values are collected in a <code>RowKeys</code>.
  *
  * @author Akos Tajti
  */
@@ -36,18 +50,39 @@ public class Partitioner {
 	 */
 	private Integer numberOfRows;
 //    private int sampleSize;
+	/**
+	 * The number of partitioned columns.
+	 */
+	private int columns;
+	/**
+	 * The keys of the rows, <code>null</code> if the result has no key column.
+	 */
+	private RowKeys keys;
 
 	/**
 	 * @param results
 	 * @throws java.sql.SQLException
 	 */
 	public Partitioner(ResultSet results) throws SQLException {
+		this(results, false);
+	}
+
+	/**
+	 * @param results
+	 * @param withKeys If <code>true</code>, the last column of the result is the key column.
+	 * @throws java.sql.SQLException
+	 */
+	public Partitioner(ResultSet results, boolean withKeys) throws SQLException {
 		this.results = results;
 		meta = results.getMetaData();
-		columnNames = new String[meta.getColumnCount() + 1];
-		for (int i = 1; i <= meta.getColumnCount(); i++) {
+		columns = withKeys ? meta.getColumnCount() - 1 : meta.getColumnCount();
+		columnNames = new String[columns + 1];
+		for (int i = 1; i <= columns; i++) {
 			columnNames[i] = meta.getColumnName(i);
 		}
+		if (withKeys) {
+			keys = RowKeys.create(meta, columns + 1);
+		}
 		partitions = new HashMap<String, Partition>();
 	}
 
@@ -59,7 +94,6 @@ public class Partitioner {
 	 * @throws java.sql.SQLException
 	 */
 	public void partition(int i) throws SQLException {
-		preparePartitions();
 		processResult(i);
 	}
 
@@ -82,29 +116,323 @@ public class Partitioner {
 	 */
 	private int processResult(int j) throws SQLException {
 		logger.fine("processResult");
+		int first = j;
+		ColumnReader[] readers = new ColumnReader[columns + 1];
+		for (int i = 1; i <= columns; i++) {
+			readers[i] = createReader(i);
+		}
 		while (results.next()) {
-			for (int i = 1; i <= meta.getColumnCount(); i++) {
-				getPartitions().get(columnNames[i]).addRow(j, results.getObject(i));
+			Integer rowId = j;
+			for (int i = 1; i <= columns; i++) {
+				readers[i].read(rowId);
+			}
+			if (keys != null) {
+				keys.add(results, columns + 1);
 			}
 			j++;
 		}
 
 		results.close();
+		for (int i = 1; i <= columns; i++) {
+			partitions.put(columnNames[i], readers[i].createPartition(first));
+		}
 		numberOfRows = j;
 		return j;
 	}
 
 	/**
-	 * Initializes the <code>partitions</code> map.
+	 * Chooses the reader of column <code>i</code> by its type.
 	 *
-	 * @throws java.sql.SQLException
+	 * @param i
+	 * @return
+	 * @throws SQLException
+	 */
+	private ColumnReader createReader(int i) throws SQLException {
+		switch (meta.getColumnType(i)) {
+			case Types.INTEGER:
+				// unsigned ints are returned as longs by the drivers
+				return meta.isSigned(i) ? new IntReader(i) : new LongReader(i);
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return new IntReader(i);
+			case Types.BIGINT:
+				return meta.isSigned(i) ? new LongReader(i) : new ColumnReader(i);
+			case Types.CHAR:
+				return meta.getPrecision(i) == 1 ? new CharReader(i) : new ColumnReader(i);
+			default:
+				return new ColumnReader(i);
+		}
+	}
+
+	/**
+	 * Reads the values of a column and builds its classes. The classes are created in the order of
+	 * the first occurrences of their values. This reader calls <code>getObject()</code>, the
+	 * subclasses read primitive values.
 	 */
-	private void preparePartitions() throws SQLException {
-		for (int i = 1; i <= meta.getColumnCount(); i++) {
-			partitions.put(meta.getColumnName(i), new Partition(meta.getColumnName(i)));
+	private class ColumnReader {
+		final int column;
+
+		final List<EquivalenceClass<Object, Integer>> classes = new ArrayList<EquivalenceClass<Object, Integer>>();
+
+		/**
+		 * The rows having null in the column, relative to the first row.
+		 */
+		private final BitSet nulls = new BitSet();
+
+		/**
+		 * The index of the class of the nulls, -1 if there was no null so far.
+		 */
+		private int nullClass = -1;
+
+		private Map<Object, EquivalenceClass<Object, Integer>> classForValue;
+
+		private int first = -1;
+
+		ColumnReader(int column) {
+			this.column = column;
+		}
+
+		/**
+		 * Reads the value of the current row.
+		 *
+		 * @param rowId
+		 * @throws SQLException
+		 */
+		void read(Integer rowId) throws SQLException {
+			add(rowId, results.getObject(column));
+		}
+
+		/**
+		 * Adds the row to the class of <code>value</code>.
+		 *
+		 * @param rowId
+		 * @param value
+		 */
+		final void add(Integer rowId, Object value) {
+			if (value == null) {
+				addNull(rowId);
+				return;
+			}
+			if (classForValue == null) {
+				classForValue = new HashMap<Object, EquivalenceClass<Object, Integer>>();
+			}
+			EquivalenceClass<Object, Integer> clazz = classForValue.get(value);
+			if (clazz == null) {
+				clazz = newClass(value);
+				classForValue.put(value, clazz);
+			}
+			clazz.addRow(rowId);
+		}
+
+		/**
+		 * Creates a class for <code>value</code> and returns it.
+		 *
+		 * @param value
+		 * @return
+		 */
+		final EquivalenceClass<Object, Integer> newClass(Object value) {
+			EquivalenceClass<Object, Integer> clazz = new EquivalenceClass<Object, Integer>(value);
+			classes.add(clazz);
+			return clazz;
+		}
+
+		final void addNull(int rowId) {
+			if (first < 0) {
+				first = rowId;
+			}
+			if (nullClass < 0) {
+				nullClass = classes.size();
+				newClass(null);
+			}
+			nulls.set(rowId - first);
+		}
+
+		/**
+		 * Returns the partition of the column. The rows of the nulls are added to their class
+		 * here, in the order of the row IDs.
+		 *
+		 * @param firstRow
+		 * @return
+		 */
+		Partition createPartition(int firstRow) {
+			if (nullClass >= 0) {
+				EquivalenceClass<Object, Integer> clazz = classes.get(nullClass);
+				for (int i = nulls.nextSetBit(0); i >= 0; i = nulls.nextSetBit(i + 1)) {
+					clazz.addRow(first + i);
+				}
+			}
+			return new Partition(columnNames[column], classes);
 		}
 	}
 
+	/**
+	 * Reads the columns of type int with <code>getInt()</code>. The classes are found with open
+	 * addressing on the primitive values.
+	 */
+	private class IntReader extends ColumnReader {
+		private int[] keys = new int[16];
+
+		private int[] indexes = new int[16];
+
+		private int size;
+
+		IntReader(int column) {
+			super(column);
+			Arrays.fill(indexes, -1);
+		}
+
+		@Override
+		void read(Integer rowId) throws SQLException {
+			int value = results.getInt(column);
+			if (value == 0 && results.wasNull()) {
+				addNull(rowId);
+				return;
+			}
+			int mask = keys.length - 1;
+			int slot = mix(value) & mask;
+			while (indexes[slot] >= 0 && keys[slot] != value) {
+				slot = (slot + 1) & mask;
+			}
+			EquivalenceClass<Object, Integer> clazz;
+			if (indexes[slot] < 0) {
+				keys[slot] = value;
+				indexes[slot] = classes.size();
+				clazz = newClass(value);
+				if (++size * 2 > keys.length) {
+					grow();
+				}
+			} else {
+				clazz = classes.get(indexes[slot]);
+			}
+			clazz.addRow(rowId);
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldIndexes = indexes;
+			keys = new int[oldKeys.length * 2];
+			indexes = new int[oldKeys.length * 2];
+			Arrays.fill(indexes, -1);
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldIndexes[i] >= 0) {
+					int slot = mix(oldKeys[i]) & mask;
+					while (indexes[slot] >= 0) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					indexes[slot] = oldIndexes[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the columns of type bigint (and unsigned int) with <code>getLong()</code>.
+	 */
+	private class LongReader extends ColumnReader {
+		private long[] keys = new long[16];
+
+		private int[] indexes = new int[16];
+
+		private int size;
+
+		LongReader(int column) {
+			super(column);
+			Arrays.fill(indexes, -1);
+		}
+
+		@Override
+		void read(Integer rowId) throws SQLException {
+			long value = results.getLong(column);
+			if (value == 0 && results.wasNull()) {
+				addNull(rowId);
+				return;
+			}
+			int mask = keys.length - 1;
+			int slot = mix(value) & mask;
+			while (indexes[slot] >= 0 && keys[slot] != value) {
+				slot = (slot + 1) & mask;
+			}
+			EquivalenceClass<Object, Integer> clazz;
+			if (indexes[slot] < 0) {
+				keys[slot] = value;
+				indexes[slot] = classes.size();
+				clazz = newClass(value);
+				if (++size * 2 > keys.length) {
+					grow();
+				}
+			} else {
+				clazz = classes.get(indexes[slot]);
+			}
+			clazz.addRow(rowId);
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldIndexes = indexes;
+			keys = new long[oldKeys.length * 2];
+			indexes = new int[oldKeys.length * 2];
+			Arrays.fill(indexes, -1);
+			int mask = keys.length - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldIndexes[i] >= 0) {
+					int slot = mix(oldKeys[i]) & mask;
+					while (indexes[slot] >= 0) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					indexes[slot] = oldIndexes[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the char(1) columns. The classes of the Latin-1 characters are found by indexing a
+	 * table with the character, the other values fall back to the hash map.
+	 */
+	private class CharReader extends ColumnReader {
+		private final EquivalenceClass<Object, Integer>[] table;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		CharReader(int column) {
+			super(column);
+			table = new EquivalenceClass[256];
+		}
+
+		@Override
+		void read(Integer rowId) throws SQLException {
+			String value = results.getString(column);
+			if (value == null) {
+				addNull(rowId);
+				return;
+			}
+			if (value.length() != 1 || value.charAt(0) >= table.length) {
+				add(rowId, value);
+				return;
+			}
+			char c = value.charAt(0);
+			EquivalenceClass<Object, Integer> clazz = table[c];
+			if (clazz == null) {
+				clazz = newClass(value);
+				table[c] = clazz;
+			}
+			clazz.addRow(rowId);
+		}
+	}
+
+	/**
+	 * Spreads the bits of a key over the slots of an open addressing table.
+	 *
+	 * @param key
+	 * @return
+	 */
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
 	/**
 	 * Returns the partitions. The key in each entry is an attribute name and
 	 * the value is a <code>Partition</code> object.
@@ -115,6 +443,15 @@ public class Partitioner {
 		return partitions;
 	}
 
+	/**
+	 * Returns the keys of the rows, <code>null</code> if the result has no key column.
+	 *
+	 * @return
+	 */
+	public RowKeys getRowKeys() {
+		return keys;
+	}
+
 	/**
 	 * Returns the number of rows in the result.
 	 *
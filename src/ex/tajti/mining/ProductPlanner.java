@@ -0,0 +1,132 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the partitions whose product gives the partition of an attribute set. The cost of
+ * the product of <code>p</code> and <code>q</code> is <code>||p|| + ||q||</code>, the number
+ * of rows in their stripped classes; every pair of stored partitions whose attribute sets cover
+ * the attribute set is considered and the cheapest one is chosen.
+ * <br/>
+ * The attributes of the stored attribute sets are in the order of <code>attributeOrder</code>
+ * (see <code>canonical()</code>), so the partition of <code>XA</code> computed for the
+ * dependency <code>X->A</code> is found again when <code>XA</code> is a left side.
+ *
+ * @author Akos Tajti
+ */
+public class ProductPlanner {
+	/**
+	 * The order of the attributes in the stored attribute sets.
+	 */
+	private final List<String> attributeOrder;
+
+	/**
+	 * @param attributeOrder The order of the attributes in the stored attribute sets.
+	 */
+	public ProductPlanner(List<String> attributeOrder) {
+		this.attributeOrder = attributeOrder;
+	}
+
+	/**
+	 * Returns <code>attributeList</code> with its attributes in the order of <code>attributeOrder</code>.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	public String canonical(String attributeList) {
+		String[] parts = attributeList.split(":");
+		int previous = -1;
+		boolean ordered = true;
+		for (String part : parts) {
+			int index = attributeOrder.indexOf(part);
+			if (index < previous) {
+				ordered = false;
+				break;
+			}
+			previous = index;
+		}
+		if (ordered) {
+			return attributeList;
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (String attribute : attributeOrder) {
+			for (String part : parts) {
+				if (part.equals(attribute)) {
+					if (builder.length() > 0) {
+						builder.append(':');
+					}
+					builder.append(attribute);
+					break;
+				}
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the cheapest pair of stored attribute sets whose product is the partition of
+	 * <code>attributeList</code>, or <code>null</code> if there's no such pair. The candidates are
+	 * the subsets having one less attribute and the single attributes. On a tie the split at the
+	 * last attribute wins.
+	 *
+	 * @param store
+	 * @param attributeList A canonical attribute set with at least two attributes.
+	 * @return
+	 */
+	public String[] plan(PartitionStore store, String attributeList) {
+		String[] parts = attributeList.split(":");
+		List<String> cached = new ArrayList<String>();
+		List<String> missing = new ArrayList<String>();
+		for (int i = parts.length - 1; i >= 0; i--) {
+			String subset = without(parts, i);
+			if (store.containsKey(subset)) {
+				cached.add(subset);
+				missing.add(parts[i]);
+			}
+		}
+
+		String[] result = null;
+		long minCost = Long.MAX_VALUE;
+		for (int i = 0; i < cached.size(); i++) {
+			long cost = store.getRowCount(cached.get(i));
+			if (store.containsKey(missing.get(i))) {
+				long pairCost = cost + store.getRowCount(missing.get(i));
+				if (pairCost < minCost) {
+					minCost = pairCost;
+					result = new String[] { cached.get(i), missing.get(i) };
+				}
+			}
+			for (int j = i + 1; j < cached.size(); j++) {
+				long pairCost = cost + store.getRowCount(cached.get(j));
+				if (pairCost < minCost) {
+					minCost = pairCost;
+					result = new String[] { cached.get(i), cached.get(j) };
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the attribute set of <code>parts</code> without the attribute at <code>index</code>.
+	 *
+	 * @param parts
+	 * @param index
+	 * @return
+	 */
+	private static String without(String[] parts, int index) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < parts.length; i++) {
+			if (i != index) {
+				if (builder.length() > 0) {
+					builder.append(':');
+				}
+				builder.append(parts[i]);
+			}
+		}
+		return builder.toString();
+	}
+}
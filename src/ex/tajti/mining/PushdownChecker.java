@@ -0,0 +1,430 @@
+package ex.tajti.mining;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Checks the dependencies inside the database, so the rows are never pulled into the JVM. The
+ * error of <code>X->A</code> is computed by grouping the rows by <code>X, A</code>: in every
+ * group of <code>X</code> the rows outside the most frequent <code>A</code> value must be
+ * deleted. The checks of a level are sent in batches, joined by <code>UNION ALL</code>.
+ * <br/>
+ * The violating rows are retrieved only for the accepted dependencies: the rows are joined to
+ * the kept <code>A</code> value of each <code>X</code> group breaking the dependency, and only
+ * the keys of the other rows are returned, in the order of the key (the order of the row IDs).
+ * Without a key column the rows are scanned once in the order of the row IDs instead.
+ * <br/>
+ * The values are grouped and compared as binary strings, like Java compares them, whatever the
+ * collation of the columns is.
+ *
+ * @author Akos Tajti
+ */
+public class PushdownChecker implements DependencyChecker {
+	private static final Logger logger = Logger.getLogger(PushdownChecker.class.getSimpleName());
+
+	/**
+	 * The default number of dependencies checked by one query.
+	 */
+	static final int BATCH_SIZE = 16;
+
+	private final String jdbcUrl;
+
+	/**
+	 * The table or derived table (e.g. a sample) the dependencies are checked on.
+	 */
+	private final String source;
+
+	/**
+	 * The column identifying the rows, or <code>null</code>.
+	 */
+	private final String keyColumn;
+
+	/**
+	 * The keys of the rows in the order of the row IDs, if the key column is set.
+	 */
+	private final RowKeys keys;
+
+	/**
+	 * The query returning the rows of <code>source</code> in the order of the row IDs.
+	 */
+	private final String scanQuery;
+
+	private final Metrics metrics;
+
+	/**
+	 * The number of classes of the attribute sets seen so far. The keys are the sorted attribute sets.
+	 */
+	private final Map<String, Integer> classes = new HashMap<String, Integer>();
+
+	private int batchSize = BATCH_SIZE;
+
+	/**
+	 * @param jdbcUrl
+	 * @param source The table or the (parenthesized) query the dependencies are checked on. A
+	 * query must return the key column if it's set.
+	 * @param scanQuery The query returning the rows of <code>source</code> in the order of the row IDs.
+	 * @param keyColumn The column identifying the rows, or <code>null</code>.
+	 * @param keys The keys of the rows in the order of the row IDs, if <code>keyColumn</code> is set.
+	 * @param metrics
+	 */
+	public PushdownChecker(String jdbcUrl, String source, String scanQuery, String keyColumn, RowKeys keys, Metrics metrics) {
+		this.jdbcUrl = jdbcUrl;
+		this.source = source;
+		this.scanQuery = scanQuery;
+		this.keyColumn = keyColumn;
+		this.keys = keys;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Counts the distinct values of the attributes in one query. Needed before the first level if
+	 * no base partitions are built.
+	 *
+	 * @param attributes
+	 * @throws SQLException
+	 */
+	public void countDistinct(List<String> attributes) throws SQLException {
+		StringBuilder query = new StringBuilder("select ");
+		for (String attribute : attributes) {
+			query.append("count(distinct binary ").append(attribute).append("),");
+		}
+		query.deleteCharAt(query.length() - 1).append(" from ").append(source("s"));
+
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				ResultSet results = st.executeQuery(query.toString());
+				while (results.next()) {
+					for (int i = 0; i < attributes.size(); i++) {
+						classes.put(attributes.get(i), results.getInt(i + 1));
+					}
+				}
+				results.close();
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	@Override
+	public Map<String, Integer> countViolations(List<String> deps, int levelNumber) throws SQLException {
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		List<String> checked = new ArrayList<String>();
+		for (String dep : deps) {
+			if (!dep.startsWith("->")) {
+				checked.add(dep);
+			}
+		}
+		if (checked.isEmpty()) {
+			return result;
+		}
+
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				for (int from = 0; from < checked.size(); from += batchSize) {
+					List<String> batch = checked.subList(from, Math.min(from + batchSize, checked.size()));
+					long start = System.nanoTime();
+					ResultSet results = st.executeQuery(createErrorQuery(batch));
+					while (results.next()) {
+						String dep = batch.get(results.getInt(1));
+						result.put(dep, (int) results.getLong(2));
+						String[] parts = dep.split("->");
+						classes.put(sorted(parts[0] + ":" + parts[1]), (int) results.getLong(3));
+					}
+					results.close();
+					long elapsed = System.nanoTime() - start;
+					for (int i = 0; i < batch.size(); i++) {
+						metrics.recordErrorCheck(levelNumber, elapsed / batch.size());
+					}
+				}
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Creates the query computing the errors of <code>batch</code>. Every row of the result
+	 * contains the index of a dependency, the number of rows to delete and the number of classes
+	 * of the attribute set of the dependency.
+	 *
+	 * @param batch
+	 * @return
+	 */
+	private String createErrorQuery(List<String> batch) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < batch.size(); i++) {
+			String[] parts = batch.get(i).split("->");
+			String[] lhs = parts[0].split(":");
+			StringBuilder values = new StringBuilder();
+			StringBuilder grouping = new StringBuilder();
+			StringBuilder columns = new StringBuilder();
+			for (int j = 0; j < lhs.length; j++) {
+				values.append("binary ").append(lhs[j]).append(" as c").append(j).append(", ");
+				grouping.append("binary ").append(lhs[j]).append(", ");
+				columns.append(j > 0 ? ", " : "").append("c").append(j);
+			}
+			if (i > 0) {
+				builder.append(" union all ");
+			}
+			builder.append("select ").append(i).append(", sum(total) - sum(majority), sum(subclasses) from (");
+			builder.append("select count(*) subclasses, sum(cnt) total, max(cnt) majority from (");
+			builder.append("select ").append(values).append("count(*) cnt from ").append(source("s"));
+			builder.append(" group by ").append(grouping).append("binary ").append(parts[1]).append(") g group by ").append(columns).append(") x");
+		}
+
+		return builder.toString();
+	}
+
+	@Override
+	public Map<String, Collection<Integer>> getViolatingRows(List<String> deps) throws SQLException {
+		Map<String, Collection<Integer>> result = new HashMap<String, Collection<Integer>>();
+		if (deps.isEmpty()) {
+			return result;
+		}
+
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				if (keyColumn != null) {
+					for (String dep : deps) {
+						result.put(dep, retrieveViolatingRows(st, dep));
+					}
+				} else {
+					scanViolatingRows(st, deps, result);
+				}
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+		logger.info("retrieved the violating rows of " + deps.size() + " dependencies");
+
+		return result;
+	}
+
+	/**
+	 * Retrieves the keys of the rows violating <code>dep</code> in the order of the key and maps
+	 * them to row IDs. The row IDs are in the same order, so the keys of the rows are walked once.
+	 *
+	 * @param st
+	 * @param dep
+	 * @return
+	 * @throws SQLException if a key is not among the keys of the rows
+	 */
+	private List<Integer> retrieveViolatingRows(Statement st, String dep) throws SQLException {
+		String[] parts = dep.split("->");
+		String[] lhs = parts[0].split(":");
+		StringBuilder query = new StringBuilder("select t.").append(keyColumn).append(" from ").append(source("t"));
+		query.append(" join (").append(createMajorityQuery(lhs, parts[1])).append(") m on ");
+		for (int i = 0; i < lhs.length; i++) {
+			query.append(i > 0 ? " and " : "").append("binary t.").append(lhs[i]).append(" <=> m.c").append(i);
+		}
+		query.append(" where not (binary t.").append(parts[1]).append(" <=> m.r) order by t.").append(keyColumn);
+
+		List<Integer> rows = new ArrayList<Integer>();
+		ResultSet results = st.executeQuery(query.toString());
+		try {
+			int row = 0;
+			while (results.next()) {
+				if (keys.isNumeric()) {
+					long key = results.getLong(1);
+					while (row < keys.size() && keys.getLong(row) != key) {
+						++row;
+					}
+				} else {
+					String key = results.getString(1);
+					while (row < keys.size() && !keys.getString(row).equals(key)) {
+						++row;
+					}
+				}
+				if (row == keys.size()) {
+					throw new SQLException("the key " + results.getString(1) + " is not among the keys of the rows");
+				}
+				rows.add(row++);
+			}
+		} finally {
+			results.close();
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Finds the violating rows of <code>deps</code> by scanning the rows once in the order of the
+	 * row IDs. Used if there is no key column to identify the rows by. Only the left side values
+	 * having more than one right side value are held in memory.
+	 *
+	 * @param st
+	 * @param deps
+	 * @param result
+	 * @throws SQLException
+	 */
+	private void scanViolatingRows(Statement st, List<String> deps, Map<String, Collection<Integer>> result) throws SQLException {
+		List<Map<List<String>, String>> majorities = new ArrayList<Map<List<String>, String>>();
+		for (String dep : deps) {
+			majorities.add(retrieveMajorities(st, dep));
+			result.put(dep, new ArrayList<Integer>());
+		}
+
+		ResultSet rows = st.executeQuery(scanQuery);
+		try {
+			Map<String, Integer> columns = new HashMap<String, Integer>();
+			for (int i = 1; i <= rows.getMetaData().getColumnCount(); i++) {
+				columns.put(rows.getMetaData().getColumnName(i), i);
+			}
+			int[][] lhsColumns = new int[deps.size()][];
+			int[] rhsColumns = new int[deps.size()];
+			for (int i = 0; i < deps.size(); i++) {
+				String[] parts = deps.get(i).split("->");
+				String[] lhs = parts[0].split(":");
+				lhsColumns[i] = new int[lhs.length];
+				for (int j = 0; j < lhs.length; j++) {
+					lhsColumns[i][j] = columns.get(lhs[j]);
+				}
+				rhsColumns[i] = columns.get(parts[1]);
+			}
+
+			int row = 0;
+			while (rows.next()) {
+				for (int i = 0; i < deps.size(); i++) {
+					if (majorities.get(i).isEmpty()) {
+						continue;
+					}
+					String[] key = new String[lhsColumns[i].length];
+					for (int j = 0; j < key.length; j++) {
+						key[j] = rows.getString(lhsColumns[i][j]);
+					}
+					List<String> lhsValue = Arrays.asList(key);
+					if (majorities.get(i).containsKey(lhsValue) && !equal(majorities.get(i).get(lhsValue), rows.getString(rhsColumns[i]))) {
+						result.get(deps.get(i)).add(row);
+					}
+				}
+				++row;
+			}
+		} finally {
+			rows.close();
+		}
+	}
+
+	/**
+	 * Returns the kept right side value for every left side value of <code>dep</code> having more
+	 * than one right side value.
+	 *
+	 * @param st
+	 * @param dep
+	 * @return
+	 * @throws SQLException
+	 */
+	private Map<List<String>, String> retrieveMajorities(Statement st, String dep) throws SQLException {
+		String[] parts = dep.split("->");
+		String[] lhs = parts[0].split(":");
+		Map<List<String>, String> majorities = new HashMap<List<String>, String>();
+		ResultSet results = st.executeQuery(createMajorityQuery(lhs, parts[1]));
+		try {
+			while (results.next()) {
+				String[] key = new String[lhs.length];
+				for (int i = 0; i < lhs.length; i++) {
+					key[i] = results.getString(i + 1);
+				}
+				majorities.put(Arrays.asList(key), results.getString(lhs.length + 1));
+			}
+		} finally {
+			results.close();
+		}
+
+		return majorities;
+	}
+
+	/**
+	 * Creates the query returning the kept right side value <code>r</code> for every left side
+	 * value <code>c0, c1, ...</code> having more than one right side value: the most frequent one,
+	 * of equally frequent ones the smallest. The values are compared as binary strings.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private String createMajorityQuery(String[] lhs, String rhs) {
+		StringBuilder values = new StringBuilder();
+		StringBuilder grouping = new StringBuilder();
+		StringBuilder columns = new StringBuilder();
+		StringBuilder join = new StringBuilder();
+		for (int i = 0; i < lhs.length; i++) {
+			values.append("binary ").append(lhs[i]).append(" as c").append(i).append(", ");
+			grouping.append("binary ").append(lhs[i]).append(", ");
+			columns.append(i > 0 ? ", " : "").append("g.c").append(i);
+			join.append("g.c").append(i).append(" <=> x.c").append(i).append(" and ");
+		}
+		String groups = "(select " + values + "binary " + rhs + " as r, count(*) cnt from " + source("s") + " group by " + grouping
+			+ "binary " + rhs + ") g";
+
+		return "select " + columns + ", min(g.r) r from " + groups + " join (select " + columns + ", max(g.cnt) cnt from " + groups
+			+ " group by " + columns + " having count(*) > 1) x on " + join + "g.cnt = x.cnt group by " + columns;
+	}
+
+	private static boolean equal(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+	/**
+	 * Returns <code>source</code> with an alias.
+	 *
+	 * @param alias
+	 * @return
+	 */
+	private String source(String alias) {
+		return source + " " + alias;
+	}
+
+	/**
+	 * Returns the attributes of <code>attributeList</code> in alphabetical order.
+	 *
+	 * @param attributeList
+	 * @return
+	 */
+	static String sorted(String attributeList) {
+		String[] parts = attributeList.split(":");
+		Arrays.sort(parts);
+		StringBuilder builder = new StringBuilder();
+		for (String part : parts) {
+			if (builder.length() > 0) {
+				builder.append(':');
+			}
+			builder.append(part);
+		}
+		return builder.toString();
+	}
+
+	@Override
+	public int getNumberOfClasses(String attributeList) {
+		Integer result = classes.get(sorted(attributeList));
+		return result == null ? -1 : result;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+}
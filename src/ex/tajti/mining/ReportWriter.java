@@ -0,0 +1,257 @@
+package ex.tajti.mining;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the results of a run to a channel. The output goes through a fixed size buffer, so
+ * the report is never built in memory as a whole.
+ * <br/>
+ * The header (the statistics of the run) must be written first, then the dependencies one by one.
+ * If the keys of the rows are set, the rows are identified by their keys in the report.
+ *
+ * @author Akos Tajti
+ */
+public abstract class ReportWriter implements Closeable {
+	/**
+	 * The size of the output buffer.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The channel the report is written to.
+	 */
+	private final WritableByteChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	/**
+	 * Used by <code>write(long)</code>.
+	 */
+	private final byte[] digits = new byte[20];
+
+	/**
+	 * The keys of the rows, <code>null</code> if the rows are identified by their IDs.
+	 */
+	protected RowKeys keys;
+
+	protected ReportWriter(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Creates a writer for <code>file</code>.
+	 *
+	 * @param format <code>text</code> or <code>json</code>.
+	 * @param file
+	 * @param compress If <code>true</code> the output is gzip compressed.
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReportWriter create(String format, File file, boolean compress) throws IOException {
+		WritableByteChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		if (compress) {
+			channel = Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+		}
+
+		return create(format, channel);
+	}
+
+	/**
+	 * Creates a writer for <code>channel</code>.
+	 *
+	 * @param format <code>text</code> or <code>json</code>.
+	 * @param channel
+	 * @return
+	 */
+	public static ReportWriter create(String format, WritableByteChannel channel) {
+		if ("json".equals(format)) {
+			return new JsonReportWriter(channel);
+		}
+		if ("text".equals(format)) {
+			return new TextReportWriter(channel);
+		}
+
+		throw new IllegalArgumentException("unknown report format: " + format);
+	}
+
+	/**
+	 * Returns the file extension used for <code>format</code>.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public static String extension(String format) {
+		return "json".equals(format) ? "jsonl" : "report";
+	}
+
+	/**
+	 * Sets the keys the rows are identified by.
+	 *
+	 * @param keys <code>null</code> means the row IDs.
+	 */
+	public void setRowKeys(RowKeys keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * Writes the statistics of the run.
+	 *
+	 * @param statistics The names and values of the statistics in the order they should appear.
+	 * @throws IOException
+	 */
+	public abstract void writeHeader(Map<String, Object> statistics) throws IOException;
+
+	/**
+	 * Writes a dependency and the rows breaking it.
+	 *
+	 * @param dependency
+	 * @param rows
+	 * @throws IOException
+	 */
+	public abstract void writeDependency(String dependency, Collection<Integer> rows) throws IOException;
+
+	/**
+	 * Writes the most suspicious rows and the histogram of the scores.
+	 *
+	 * @param top The rows with the highest scores in descending order.
+	 * @param histogram The histogram of the non-zero scores (see <code>RowScorer.histogram</code>).
+	 * @param maxScore The highest score.
+	 * @throws IOException
+	 */
+	public abstract void writeRanking(List<RowScorer.RowScore> top, int[] histogram, double maxScore) throws IOException;
+
+	/**
+	 * Writes the buffered content to the channel.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Flushes the buffer and closes the channel.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	protected void write(String s) throws IOException {
+		write(s.getBytes(UTF8));
+	}
+
+	protected void write(byte[] bytes) throws IOException {
+		int offset = 0;
+		while (offset < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+	}
+
+	/**
+	 * Writes a character. Characters outside the BMP are two <code>char</code>s that must be
+	 * encoded together, so they must be written with <code>write(String)</code>.
+	 *
+	 * @param c
+	 * @throws IOException
+	 */
+	protected void write(char c) throws IOException {
+		if (c > 0x7f) {
+			write(String.valueOf(c));
+			return;
+		}
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put((byte) c);
+	}
+
+	/**
+	 * Writes the decimal representation of <code>value</code> without creating a <code>String</code>.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	protected void write(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			write(Long.toString(value));
+			return;
+		}
+		if (value < 0) {
+			write('-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		if (buffer.remaining() < digits.length - i) {
+			flush();
+		}
+		buffer.put(digits, i, digits.length - i);
+	}
+
+	/**
+	 * Writes the key of a row, or its ID if the keys are not set.
+	 *
+	 * @param row
+	 * @throws IOException
+	 */
+	protected void writeRow(int row) throws IOException {
+		if (keys == null) {
+			write(row);
+		} else if (keys.isNumeric()) {
+			write(keys.getLong(row));
+		} else {
+			write(keys.getString(row));
+		}
+	}
+
+	/**
+	 * Returns the row IDs in ascending order.
+	 *
+	 * @param rows
+	 * @return
+	 */
+	protected static int[] sortedRows(Collection<Integer> rows) {
+		int[] result = new int[rows.size()];
+		int i = 0;
+		for (Integer row : rows) {
+			result[i++] = row;
+		}
+		Arrays.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,492 @@
+package ex.tajti.mining;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, compressed set of row IDs. The IDs are split into chunks by their high 16 bits.
+ * A chunk with few rows stores the low 16 bits in a sorted <code>char</code> array, a dense chunk
+ * stores them in a bitmap of 1024 words. Negative row IDs are not supported.
+ * <br/>
+ * Two bitmaps are equal if they contain the same rows.
+ *
+ * @author Akos Tajti
+ */
+public final class RowBitmap extends AbstractCollection<Integer> {
+	/**
+	 * Chunks with more rows than this are stored as bitmaps.
+	 */
+	private static final int ARRAY_LIMIT = 4096;
+
+	private static final int WORDS = 1024;
+
+	public static final RowBitmap EMPTY = new RowBitmap(new char[0], new Object[0], 0);
+
+	/**
+	 * The high 16 bits of the chunks in ascending order.
+	 */
+	private final char[] keys;
+
+	/**
+	 * The chunks. Every element is either a <code>char[]</code> or a <code>long[]</code>.
+	 */
+	private final Object[] containers;
+
+	private final int cardinality;
+
+	private final int hash;
+
+	private RowBitmap(char[] keys, Object[] containers, int cardinality) {
+		this.keys = keys;
+		this.containers = containers;
+		this.cardinality = cardinality;
+		int h = cardinality;
+		for (int i = 0; i < keys.length; i++) {
+			h = 31 * h + keys[i];
+			h = 31 * h + (containers[i] instanceof char[] ? Arrays.hashCode((char[]) containers[i]) : Arrays.hashCode(toArray((long[]) containers[i])));
+		}
+		this.hash = h;
+	}
+
+	/**
+	 * Creates a bitmap containing the rows in <code>rows</code>.
+	 *
+	 * @param rows
+	 * @return
+	 */
+	public static RowBitmap of(Collection<Integer> rows) {
+		if (rows instanceof RowBitmap) {
+			return (RowBitmap) rows;
+		}
+		int[] sorted = new int[rows.size()];
+		int i = 0;
+		for (Integer row : rows) {
+			sorted[i++] = row;
+		}
+		Arrays.sort(sorted);
+
+		return ofSorted(sorted, sorted.length);
+	}
+
+	/**
+	 * Creates a bitmap from the first <code>length</code> elements of <code>rows</code>. The
+	 * elements must be sorted, duplicates are allowed.
+	 *
+	 * @param rows
+	 * @param length
+	 * @return
+	 */
+	public static RowBitmap ofSorted(int[] rows, int length) {
+		if (length == 0) {
+			return EMPTY;
+		}
+		int chunks = 1;
+		for (int i = 1; i < length; i++) {
+			if ((rows[i] >>> 16) != (rows[i - 1] >>> 16)) {
+				++chunks;
+			}
+		}
+		char[] keys = new char[chunks];
+		Object[] containers = new Object[chunks];
+		int cardinality = 0;
+		int start = 0;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int key = rows[start] >>> 16;
+			int end = start;
+			while (end < length && (rows[end] >>> 16) == key) {
+				++end;
+			}
+			char[] low = new char[end - start];
+			int size = 0;
+			for (int i = start; i < end; i++) {
+				char value = (char) rows[i];
+				if (size == 0 || low[size - 1] != value) {
+					low[size++] = value;
+				}
+			}
+			keys[chunk] = (char) key;
+			containers[chunk] = compact(size == low.length ? low : Arrays.copyOf(low, size));
+			cardinality += size;
+			start = end;
+		}
+
+		return new RowBitmap(keys, containers, cardinality);
+	}
+
+	/**
+	 * Converts a sorted array chunk to a bitmap chunk if it's too big.
+	 */
+	private static Object compact(char[] low) {
+		if (low.length <= ARRAY_LIMIT) {
+			return low;
+		}
+		long[] words = new long[WORDS];
+		for (char value : low) {
+			words[value >>> 6] |= 1L << value;
+		}
+		return words;
+	}
+
+	/**
+	 * Converts a bitmap chunk to an array chunk if it's small enough.
+	 */
+	private static Object compact(long[] words, int size) {
+		if (size > ARRAY_LIMIT) {
+			return words;
+		}
+		return toArray(words);
+	}
+
+	private static char[] toArray(long[] words) {
+		int size = 0;
+		for (long word : words) {
+			size += Long.bitCount(word);
+		}
+		char[] result = new char[size];
+		int i = 0;
+		for (int w = 0; w < words.length; w++) {
+			long word = words[w];
+			while (word != 0) {
+				result[i++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+				word &= word - 1;
+			}
+		}
+		return result;
+	}
+
+	private static long[] toWords(Object container) {
+		if (container instanceof long[]) {
+			return (long[]) container;
+		}
+		long[] words = new long[WORDS];
+		for (char value : (char[]) container) {
+			words[value >>> 6] |= 1L << value;
+		}
+		return words;
+	}
+
+	/**
+	 * Checks if the bitmap contains <code>row</code>.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public boolean contains(int row) {
+		if (row < 0) {
+			return false;
+		}
+		int index = Arrays.binarySearch(keys, (char) (row >>> 16));
+		if (index < 0) {
+			return false;
+		}
+		Object container = containers[index];
+		char low = (char) row;
+		if (container instanceof char[]) {
+			return Arrays.binarySearch((char[]) container, low) >= 0;
+		}
+		return (((long[]) container)[low >>> 6] & (1L << low)) != 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+
+	@Override
+	public int size() {
+		return cardinality;
+	}
+
+	/**
+	 * Returns the rows in ascending order.
+	 *
+	 * @return
+	 */
+	public int[] toIntArray() {
+		int[] result = new int[cardinality];
+		int i = 0;
+		for (int chunk = 0; chunk < keys.length; chunk++) {
+			int high = keys[chunk] << 16;
+			Object container = containers[chunk];
+			char[] low = container instanceof char[] ? (char[]) container : toArray((long[]) container);
+			for (char value : low) {
+				result[i++] = high | value;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the biggest row ID in the bitmap or -1 if it's empty.
+	 *
+	 * @return
+	 */
+	public int last() {
+		if (cardinality == 0) {
+			return -1;
+		}
+		int chunk = keys.length - 1;
+		Object container = containers[chunk];
+		int low;
+		if (container instanceof char[]) {
+			char[] array = (char[]) container;
+			low = array[array.length - 1];
+		} else {
+			long[] words = (long[]) container;
+			int w = words.length - 1;
+			while (words[w] == 0) {
+				--w;
+			}
+			low = w * 64 + 63 - Long.numberOfLeadingZeros(words[w]);
+		}
+		return (keys[chunk] << 16) | low;
+	}
+
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int chunk = 0;
+			private char[] low = keys.length == 0 ? null : lowValues(0);
+			private int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return low != null && index < low.length;
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int result = (keys[chunk] << 16) | low[index++];
+				if (index == low.length) {
+					++chunk;
+					index = 0;
+					low = chunk < keys.length ? lowValues(chunk) : null;
+				}
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private char[] lowValues(int chunk) {
+		Object container = containers[chunk];
+		return container instanceof char[] ? (char[]) container : toArray((long[]) container);
+	}
+
+	/**
+	 * Returns the rows contained by both bitmaps.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public RowBitmap and(RowBitmap other) {
+		return combine(this, other, AND);
+	}
+
+	/**
+	 * Returns the rows contained by any of the bitmaps.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public RowBitmap or(RowBitmap other) {
+		return combine(this, other, OR);
+	}
+
+	/**
+	 * Returns the rows contained by this bitmap but not by <code>other</code>.
+	 *
+	 * @param other
+	 * @return
+	 */
+	public RowBitmap andNot(RowBitmap other) {
+		return combine(this, other, AND_NOT);
+	}
+
+	private static final int AND = 0;
+	private static final int OR = 1;
+	private static final int AND_NOT = 2;
+
+	private static RowBitmap combine(RowBitmap a, RowBitmap b, int operation) {
+		char[] keys = new char[a.keys.length + b.keys.length];
+		Object[] containers = new Object[keys.length];
+		int chunks = 0;
+		int cardinality = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.keys.length || j < b.keys.length) {
+			int keyA = i < a.keys.length ? a.keys[i] : Integer.MAX_VALUE;
+			int keyB = j < b.keys.length ? b.keys[j] : Integer.MAX_VALUE;
+			Object container = null;
+			int key;
+			if (keyA == keyB) {
+				key = keyA;
+				long[] wordsA = toWords(a.containers[i++]);
+				long[] wordsB = toWords(b.containers[j++]);
+				long[] words = new long[WORDS];
+				int size = 0;
+				for (int w = 0; w < WORDS; w++) {
+					long word;
+					if (operation == AND) {
+						word = wordsA[w] & wordsB[w];
+					} else if (operation == OR) {
+						word = wordsA[w] | wordsB[w];
+					} else {
+						word = wordsA[w] & ~wordsB[w];
+					}
+					words[w] = word;
+					size += Long.bitCount(word);
+				}
+				if (size > 0) {
+					container = compact(words, size);
+				}
+			} else if (keyA < keyB) {
+				key = keyA;
+				Object containerA = a.containers[i++];
+				if (operation != AND) {
+					container = containerA;
+				}
+			} else {
+				key = keyB;
+				Object containerB = b.containers[j++];
+				if (operation == OR) {
+					container = containerB;
+				}
+			}
+			if (container != null) {
+				keys[chunks] = (char) key;
+				containers[chunks] = container;
+				cardinality += container instanceof char[] ? ((char[]) container).length : bitCount((long[]) container);
+				++chunks;
+			}
+		}
+
+		return new RowBitmap(Arrays.copyOf(keys, chunks), Arrays.copyOf(containers, chunks), cardinality);
+	}
+
+	private static int bitCount(long[] words) {
+		int size = 0;
+		for (long word : words) {
+			size += Long.bitCount(word);
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the estimated number of bytes the bitmap occupies on the heap.
+	 *
+	 * @return
+	 */
+	public long sizeInBytes() {
+		long size = 48 + 2L * keys.length + 4L * containers.length;
+		for (Object container : containers) {
+			size += 16 + (container instanceof char[] ? 2L * ((char[]) container).length : 8L * WORDS);
+		}
+		return size;
+	}
+
+	/**
+	 * Serializes the bitmap.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(keys.length);
+		for (int chunk = 0; chunk < keys.length; chunk++) {
+			out.writeChar(keys[chunk]);
+			Object container = containers[chunk];
+			if (container instanceof char[]) {
+				char[] low = (char[]) container;
+				out.writeInt(low.length);
+				for (char value : low) {
+					out.writeChar(value);
+				}
+			} else {
+				out.writeInt(-1);
+				for (long word : (long[]) container) {
+					out.writeLong(word);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a bitmap serialized by <code>write</code>.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static RowBitmap read(DataInput in) throws IOException {
+		int chunks = in.readInt();
+		char[] keys = new char[chunks];
+		Object[] containers = new Object[chunks];
+		int cardinality = 0;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			keys[chunk] = in.readChar();
+			int size = in.readInt();
+			if (size >= 0) {
+				char[] low = new char[size];
+				for (int i = 0; i < size; i++) {
+					low[i] = in.readChar();
+				}
+				containers[chunk] = low;
+				cardinality += size;
+			} else {
+				long[] words = new long[WORDS];
+				for (int i = 0; i < WORDS; i++) {
+					words[i] = in.readLong();
+				}
+				containers[chunk] = words;
+				cardinality += bitCount(words);
+			}
+		}
+
+		return new RowBitmap(keys, containers, cardinality);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RowBitmap)) {
+			return false;
+		}
+		RowBitmap other = (RowBitmap) obj;
+		if (hash != other.hash || cardinality != other.cardinality || !Arrays.equals(keys, other.keys)) {
+			return false;
+		}
+		for (int chunk = 0; chunk < keys.length; chunk++) {
+			Object a = containers[chunk];
+			Object b = other.containers[chunk];
+			if (a instanceof char[] && b instanceof char[]) {
+				if (!Arrays.equals((char[]) a, (char[]) b)) {
+					return false;
+				}
+			} else if (!Arrays.equals(toWords(a), toWords(b))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+}
@@ -0,0 +1,274 @@
+package ex.tajti.mining;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Maps the row IDs (the positions of the rows in the result of the scan query) to the values of
+ * the key column of the table. The rows are processed by their IDs; the keys are only used when
+ * the results leave the program (reports, write-back).
+ * <br/>
+ * Integer keys are stored in a <code>long</code> array indexed by the row ID. Other keys are
+ * stored as UTF-8 bytes in one array, with the offset of every key in an <code>int</code> array,
+ * so no object is kept per row.
+ *
+ * @author Akos Tajti
+ */
+public class RowKeys {
+	/**
+	 * <code>true</code> if the keys are integers.
+	 */
+	private final boolean numeric;
+
+	/**
+	 * The integer keys.
+	 */
+	private long[] numbers;
+
+	/**
+	 * The bytes of the other keys.
+	 */
+	private byte[] bytes;
+
+	/**
+	 * The key of row <code>i</code> is <code>bytes[offsets[i]..offsets[i + 1])</code>.
+	 */
+	private int[] offsets;
+
+	private int size;
+
+	/**
+	 * @param numeric <code>true</code> if the keys are integers.
+	 */
+	RowKeys(boolean numeric) {
+		this.numeric = numeric;
+		if (numeric) {
+			numbers = new long[16];
+		} else {
+			bytes = new byte[64];
+			offsets = new int[17];
+		}
+	}
+
+	/**
+	 * Returns an empty mapping for the values of <code>column</code>.
+	 *
+	 * @param meta
+	 * @param column
+	 * @return
+	 * @throws SQLException
+	 */
+	static RowKeys create(ResultSetMetaData meta, int column) throws SQLException {
+		switch (meta.getColumnType(column)) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return new RowKeys(true);
+			case Types.BIGINT:
+				// unsigned bigints don't fit into a long
+				return new RowKeys(meta.isSigned(column));
+			default:
+				return new RowKeys(false);
+		}
+	}
+
+	/**
+	 * Reads the keys of the rows of <code>results</code>. The key is the first column.
+	 *
+	 * @param results
+	 * @return
+	 * @throws SQLException
+	 */
+	static RowKeys read(ResultSet results) throws SQLException {
+		try {
+			RowKeys keys = create(results.getMetaData(), 1);
+			while (results.next()) {
+				keys.add(results, 1);
+			}
+			return keys;
+		} finally {
+			results.close();
+		}
+	}
+
+	/**
+	 * Adds the key of the current row of <code>results</code> as the key of the next row ID.
+	 *
+	 * @param results
+	 * @param column
+	 * @throws SQLException if the key is null
+	 */
+	void add(ResultSet results, int column) throws SQLException {
+		if (numeric) {
+			long key = results.getLong(column);
+			if (results.wasNull()) {
+				throw new SQLException("the key of row " + size + " is null");
+			}
+			add(key);
+		} else {
+			String key = results.getString(column);
+			if (key == null) {
+				throw new SQLException("the key of row " + size + " is null");
+			}
+			add(key.getBytes(ReportWriter.UTF8));
+		}
+	}
+
+	private void add(long key) {
+		if (size == numbers.length) {
+			numbers = Arrays.copyOf(numbers, size * 2);
+		}
+		numbers[size++] = key;
+	}
+
+	private void add(byte[] key) {
+		int end = offsets[size];
+		if (end + key.length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end + key.length));
+		}
+		System.arraycopy(key, 0, bytes, end, key.length);
+		if (size + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[++size] = end + key.length;
+	}
+
+	/**
+	 * Adds the keys of <code>other</code> after the keys of this mapping. Used when the rows are
+	 * read in chunks.
+	 *
+	 * @param other The keys of the next chunk.
+	 */
+	void append(RowKeys other) {
+		if (other.numeric != numeric) {
+			throw new IllegalArgumentException("the types of the keys differ");
+		}
+		for (int row = 0; row < other.size; row++) {
+			if (numeric) {
+				add(other.numbers[row]);
+			} else {
+				add(Arrays.copyOfRange(other.bytes, other.offsets[row], other.offsets[row + 1]));
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the keys are integers.
+	 */
+	public boolean isNumeric() {
+		return numeric;
+	}
+
+	/**
+	 * @return The number of rows.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the integer key of a row.
+	 *
+	 * @param row
+	 * @return
+	 * @throws IllegalStateException if the keys are not integers
+	 */
+	public long getLong(int row) {
+		if (!numeric) {
+			throw new IllegalStateException("the keys are not integers");
+		}
+		check(row);
+		return numbers[row];
+	}
+
+	/**
+	 * Returns the key of a row as a string.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public String getString(int row) {
+		check(row);
+		if (numeric) {
+			return Long.toString(numbers[row]);
+		}
+		return new String(bytes, offsets[row], offsets[row + 1] - offsets[row], ReportWriter.UTF8);
+	}
+
+	/**
+	 * Returns the key of a row: a <code>Long</code> for integer keys, a <code>String</code> otherwise.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public Object getKey(int row) {
+		return numeric ? (Object) getLong(row) : getString(row);
+	}
+
+	private void check(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("row " + row + " of " + size);
+		}
+	}
+
+	/**
+	 * Serializes the keys. The format is read by <code>read(DataInput)</code>.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeBoolean(numeric);
+		out.writeInt(size);
+		if (numeric) {
+			for (int row = 0; row < size; row++) {
+				out.writeLong(numbers[row]);
+			}
+		} else {
+			for (int row = 1; row <= size; row++) {
+				out.writeInt(offsets[row]);
+			}
+			out.write(bytes, 0, offsets[size]);
+		}
+	}
+
+	/**
+	 * Reads keys serialized by <code>write</code>.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static RowKeys read(DataInput in) throws IOException {
+		RowKeys keys = new RowKeys(in.readBoolean());
+		int size = in.readInt();
+		if (keys.numeric) {
+			keys.numbers = new long[Math.max(size, 1)];
+			for (int row = 0; row < size; row++) {
+				keys.numbers[row] = in.readLong();
+			}
+		} else {
+			keys.offsets = new int[size + 2];
+			for (int row = 1; row <= size; row++) {
+				keys.offsets[row] = in.readInt();
+			}
+			keys.bytes = new byte[Math.max(keys.offsets[size], 1)];
+			in.readFully(keys.bytes, 0, keys.offsets[size]);
+		}
+		keys.size = size;
+		return keys;
+	}
+
+	/**
+	 * @return The bytes used by the arrays.
+	 */
+	public long estimateBytes() {
+		return numeric ? 8L * numbers.length : bytes.length + 4L * offsets.length;
+	}
+}
@@ -0,0 +1,246 @@
+package ex.tajti.mining;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ranks the rows by how suspicious they are. Every row has a counter (the number of valid
+ * dependencies it breaks) and a score. The score is the sum of the weights of the broken
+ * dependencies: a dependency broken by few rows is a stronger evidence of corruption than one
+ * that is close to the epsilon threshold, so the weight of a dependency is
+ * <code>1 - error / epsilon</code>, but at least <code>MIN_WEIGHT</code>.
+ * <br/>
+ * The scores are updated when a dependency is accepted, so no extra pass over the violation
+ * sets is needed.
+ *
+ * @author Akos Tajti
+ */
+public class RowScorer {
+	/**
+	 * The smallest weight a dependency can have.
+	 */
+	public static final double MIN_WEIGHT = 0.1;
+
+	/**
+	 * The number of dependencies broken by the rows.
+	 */
+	private int[] counts;
+
+	/**
+	 * The scores of the rows.
+	 */
+	private double[] scores;
+
+	/**
+	 * The number of rows having non-zero score.
+	 */
+	private int suspiciousRows;
+
+	private double maxScore;
+
+	/**
+	 * @param numberOfRows The expected number of rows. The arrays grow if needed.
+	 */
+	public RowScorer(int numberOfRows) {
+		counts = new int[Math.max(numberOfRows, 16)];
+		scores = new double[counts.length];
+	}
+
+	/**
+	 * Returns the weight of a dependency.
+	 *
+	 * @param error
+	 * @param epsilon
+	 * @return
+	 */
+	public static double weight(double error, double epsilon) {
+		if (epsilon <= 0) {
+			return 1;
+		}
+		return Math.max(1 - error / epsilon, MIN_WEIGHT);
+	}
+
+	/**
+	 * Adds the weight of a dependency to the scores of the rows breaking it.
+	 *
+	 * @param rows
+	 * @param weight
+	 */
+	public synchronized void record(Collection<Integer> rows, double weight) {
+		for (Integer row : rows) {
+			if (row >= counts.length) {
+				int length = Math.max(row + 1, counts.length * 2);
+				counts = Arrays.copyOf(counts, length);
+				scores = Arrays.copyOf(scores, length);
+			}
+			if (counts[row]++ == 0) {
+				++suspiciousRows;
+			}
+			double score = scores[row] += weight;
+			if (score > maxScore) {
+				maxScore = score;
+			}
+		}
+	}
+
+	public synchronized int getCount(int row) {
+		return row < counts.length ? counts[row] : 0;
+	}
+
+	public synchronized double getScore(int row) {
+		return row < scores.length ? scores[row] : 0;
+	}
+
+	/**
+	 * Returns the number of rows breaking at least one dependency.
+	 *
+	 * @return
+	 */
+	public synchronized int getSuspiciousRows() {
+		return suspiciousRows;
+	}
+
+	public synchronized double getMaxScore() {
+		return maxScore;
+	}
+
+	/**
+	 * Returns the <code>k</code> rows having the highest scores in descending order. The rows
+	 * are selected with a heap of size <code>k</code>.
+	 *
+	 * @param k
+	 * @return
+	 */
+	public synchronized List<RowScore> top(int k) {
+		if (k <= 0) {
+			return Collections.emptyList();
+		}
+		int[] heap = new int[k]; // min-heap of row IDs ordered by score
+		int size = 0;
+		for (int row = 0; row < scores.length; row++) {
+			if (counts[row] == 0) {
+				continue;
+			}
+			if (size < k) {
+				heap[size] = row;
+				siftUp(heap, size++);
+			} else if (less(heap[0], row)) {
+				heap[0] = row;
+				siftDown(heap, size);
+			}
+		}
+
+		RowScore[] result = new RowScore[size];
+		while (size > 0) {
+			int row = heap[0];
+			result[--size] = new RowScore(row, scores[row], counts[row]);
+			heap[0] = heap[size];
+			siftDown(heap, size);
+		}
+		return Arrays.asList(result);
+	}
+
+	/**
+	 * Returns <code>true</code> if row <code>a</code> ranks lower than row <code>b</code>.
+	 * Ties are broken by the row ID.
+	 */
+	private boolean less(int a, int b) {
+		return scores[a] < scores[b] || (scores[a] == scores[b] && a > b);
+	}
+
+	private void siftUp(int[] heap, int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!less(heap[i], heap[parent])) {
+				break;
+			}
+			int t = heap[i];
+			heap[i] = heap[parent];
+			heap[parent] = t;
+			i = parent;
+		}
+	}
+
+	private void siftDown(int[] heap, int size) {
+		int i = 0;
+		while (true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if (left < size && less(heap[left], heap[smallest])) {
+				smallest = left;
+			}
+			if (right < size && less(heap[right], heap[smallest])) {
+				smallest = right;
+			}
+			if (smallest == i) {
+				return;
+			}
+			int t = heap[i];
+			heap[i] = heap[smallest];
+			heap[smallest] = t;
+			i = smallest;
+		}
+	}
+
+	/**
+	 * Returns the histogram of the non-zero scores. The range <code>(0, maxScore]</code> is split into
+	 * <code>buckets</code> equal parts, the i-th element of the result is the number of rows whose
+	 * score falls into the i-th part.
+	 *
+	 * @param buckets
+	 * @return
+	 */
+	public synchronized int[] histogram(int buckets) {
+		int[] result = new int[buckets];
+		if (maxScore == 0) {
+			return result;
+		}
+		for (int row = 0; row < scores.length; row++) {
+			if (counts[row] != 0) {
+				int bucket = (int) Math.ceil(scores[row] / maxScore * buckets) - 1;
+				result[Math.max(0, Math.min(bucket, buckets - 1))]++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The score of a row.
+	 */
+	public static class RowScore {
+		private final int row;
+		private final double score;
+		private final int violations;
+
+		public RowScore(int row, double score, int violations) {
+			this.row = row;
+			this.score = score;
+			this.violations = violations;
+		}
+
+		public int getRow() {
+			return row;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		/**
+		 * Returns the number of dependencies broken by the row.
+		 *
+		 * @return
+		 */
+		public int getViolations() {
+			return violations;
+		}
+
+		@Override
+		public String toString() {
+			return "[row " + row + ": " + score + " (" + violations + ")]";
+		}
+	}
+}
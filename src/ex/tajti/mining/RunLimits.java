@@ -0,0 +1,66 @@
+package ex.tajti.mining;
+
+/**
+ * The limits of an anytime run. The levels are processed in increasing order, so when a limit
+ * is reached the dependencies with the smallest left sides are already found; the run stops and
+ * its result is marked as partial.
+ *
+ * @author Akos Tajti
+ */
+public class RunLimits {
+	/**
+	 * The time (in milliseconds, see <code>System.currentTimeMillis()</code>) after which no more
+	 * dependencies are checked. 0 means no deadline.
+	 */
+	private final long deadline;
+
+	/**
+	 * The maximal size of the left sides checked. Negative means no limit.
+	 */
+	private final int maxLhsSize;
+
+	/**
+	 * The maximal estimated size of the partitions and the violating row sets in bytes. 0 means
+	 * no limit.
+	 */
+	private final long maxMemory;
+
+	/**
+	 * @param deadline The time after which no more dependencies are checked, 0 means no deadline.
+	 * @param maxLhsSize The maximal size of the left sides, negative means no limit.
+	 * @param maxMemory The maximal estimated size of the partitions and the violating row sets, 0
+	 * means no limit.
+	 */
+	public RunLimits(long deadline, int maxLhsSize, long maxMemory) {
+		this.deadline = deadline;
+		this.maxLhsSize = maxLhsSize;
+		this.maxMemory = maxMemory;
+	}
+
+	/**
+	 * Returns <code>true</code> if the left sides of <code>lhsSize</code> attributes may be checked.
+	 *
+	 * @param lhsSize
+	 * @return
+	 */
+	public boolean allowsLhsSize(int lhsSize) {
+		return maxLhsSize < 0 || lhsSize <= maxLhsSize;
+	}
+
+	/**
+	 * Returns the limit reached by a run using <code>memoryBytes</code> bytes at the moment, or
+	 * <code>null</code> if the run may go on.
+	 *
+	 * @param memoryBytes
+	 * @return
+	 */
+	public String reached(long memoryBytes) {
+		if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+			return "deadline";
+		}
+		if (maxMemory > 0 && memoryBytes > maxMemory) {
+			return "memory limit";
+		}
+		return null;
+	}
+}
@@ -0,0 +1,46 @@
+package ex.tajti.mining;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event committed at the end of a run.
+ *
+ * @author Akos Tajti
+ */
+@Name("ex.tajti.mining.Run")
+@Label("Run")
+@Category("datacleaner")
+@Description("The totals of one run of the algorithm")
+class RunMetricsEvent extends jdk.jfr.Event {
+	@Label("Table")
+	String table;
+
+	@Label("Elapsed Time")
+	@Timespan(Timespan.MILLISECONDS)
+	long elapsedMillis;
+
+	@Label("Ingest Time")
+	@Timespan(Timespan.MILLISECONDS)
+	long ingestMillis;
+
+	@Label("Products Computed")
+	long productsComputed;
+
+	@Label("Product Cost")
+	long productCost;
+
+	@Label("Dependencies Checked")
+	long dependenciesChecked;
+
+	@Label("Peak Partition Size")
+	@DataAmount
+	long peakPartitionBytes;
+
+	@Label("Partitions Evicted")
+	long partitionsEvicted;
+}
@@ -0,0 +1,175 @@
+package ex.tajti.mining;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Rejects candidate dependencies by their error on a random sample of rows, before their
+ * partitions are computed. Every sampled row gets the index of its class in the base partition
+ * of every attribute; the error of <code>X->A</code> on the sample is computed by sorting the
+ * sampled rows by their codes.
+ * <br/>
+ * If <code>D</code> is a minimal set of rows whose deletion makes the dependency hold on the
+ * table, deleting the sampled rows of <code>D</code> makes it hold on the sample, so the error
+ * of the sample is at most the fraction of the sample in <code>D</code>. By Hoeffding's
+ * inequality (sampling without replacement) that fraction exceeds the error of the table by more
+ * than <code>sqrt(ln(1 / DELTA) / 2m)</code> with probability at most <code>DELTA</code>
+ * (<code>m</code> is the sample size). A candidate is rejected if its sample error minus this
+ * bound still exceeds epsilon, so a valid dependency is rejected with probability at most
+ * <code>DELTA</code>. The other candidates are checked exactly.
+ *
+ * @author Akos Tajti
+ */
+public class SampleChecker {
+	/**
+	 * The probability of rejecting a valid dependency.
+	 */
+	static final double DELTA = 0.001;
+
+	/**
+	 * The seed of the sample, so the runs are repeatable.
+	 */
+	private static final long SEED = 0x5DEECE66DL;
+
+	/**
+	 * The codes of the sampled rows: <code>codes.get(attribute)[i]</code> is the class of the
+	 * <code>i</code>th sampled row in the base partition of the attribute.
+	 */
+	private final Map<String, int[]> codes = new HashMap<String, int[]>();
+
+	private final int sampleSize;
+
+	/**
+	 * The slack of the lower bound of the error.
+	 */
+	private final double slack;
+
+	/**
+	 * @param attributes The attributes.
+	 * @param partitions The store holding the (not stripped) partitions of the attributes.
+	 * @param sampleSize The number of rows sampled. If it's not less than the number of rows, no
+	 * candidate is rejected.
+	 */
+	public SampleChecker(List<String> attributes, PartitionStore partitions, int sampleSize) {
+		int numberOfRows = 0;
+		if (!attributes.isEmpty()) {
+			for (EquivalenceClass<Object, Integer> ec : partitions.get(attributes.get(0)).getClasses()) {
+				numberOfRows += ec.getRows().size();
+			}
+		}
+		this.sampleSize = Math.min(sampleSize, numberOfRows);
+		slack = Math.sqrt(Math.log(1 / DELTA) / (2.0 * Math.max(this.sampleSize, 1)));
+		if (this.sampleSize == numberOfRows) {
+			return;
+		}
+
+		// Floyd's algorithm: sampleSize distinct rows
+		int[] indexOfRow = new int[numberOfRows];
+		Arrays.fill(indexOfRow, -1);
+		Random random = new Random(SEED);
+		int count = 0;
+		for (int j = numberOfRows - this.sampleSize; j < numberOfRows; j++) {
+			int row = random.nextInt(j + 1);
+			if (indexOfRow[row] >= 0) {
+				row = j;
+			}
+			indexOfRow[row] = count++;
+		}
+
+		for (String attribute : attributes) {
+			int[] attributeCodes = new int[this.sampleSize];
+			List<EquivalenceClass<Object, Integer>> classes = partitions.get(attribute).getClasses();
+			for (int c = 0; c < classes.size(); c++) {
+				for (Integer row : classes.get(c).getRows()) {
+					if (indexOfRow[row] >= 0) {
+						attributeCodes[indexOfRow[row]] = c + 1;
+					}
+				}
+			}
+			codes.put(attribute, attributeCodes);
+		}
+	}
+
+	/**
+	 * @return The number of rows sampled.
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * Returns <code>true</code> if <code>dep</code> doesn't hold with high probability.
+	 *
+	 * @param dep A dependency in the <code>a:b->c</code> format.
+	 * @param epsilon
+	 * @return
+	 */
+	public boolean rejects(String dep, double epsilon) {
+		if (codes.isEmpty()) {
+			return false;
+		}
+		String[] parts = dep.split("->");
+		if (parts[0].isEmpty()) {
+			return false;
+		}
+		String[] lhs = parts[0].split(":");
+		final int[][] lhsCodes = new int[lhs.length][];
+		for (int i = 0; i < lhs.length; i++) {
+			lhsCodes[i] = codes.get(lhs[i]);
+		}
+		final int[] rhsCodes = codes.get(parts[1]);
+		if (rhsCodes == null || Arrays.asList(lhsCodes).contains(null)) {
+			return false;
+		}
+
+		Integer[] order = new Integer[sampleSize];
+		for (int i = 0; i < sampleSize; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				for (int[] attributeCodes : lhsCodes) {
+					if (attributeCodes[o1] != attributeCodes[o2]) {
+						return attributeCodes[o1] < attributeCodes[o2] ? -1 : 1;
+					}
+				}
+				return rhsCodes[o1] < rhsCodes[o2] ? -1 : (rhsCodes[o1] == rhsCodes[o2] ? 0 : 1);
+			}
+		});
+
+		// in every class of the left side the rows outside the largest subclass are deleted
+		int deleted = 0;
+		int classStart = 0;
+		int runStart = 0;
+		int largest = 0;
+		for (int i = 1; i <= sampleSize; i++) {
+			boolean sameClass = i < sampleSize && sameLhs(lhsCodes, order[i - 1], order[i]);
+			if (!sameClass || rhsCodes[order[i - 1]] != rhsCodes[order[i]]) {
+				largest = Math.max(largest, i - runStart);
+				runStart = i;
+			}
+			if (!sameClass) {
+				deleted += i - classStart - largest;
+				classStart = i;
+				largest = 0;
+			}
+		}
+
+		return (double) deleted / sampleSize - slack > epsilon;
+	}
+
+	private static boolean sameLhs(int[][] lhsCodes, int row1, int row2) {
+		for (int[] attributeCodes : lhsCodes) {
+			if (attributeCodes[row1] != attributeCodes[row2]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
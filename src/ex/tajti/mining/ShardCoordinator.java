@@ -0,0 +1,351 @@
+package ex.tajti.mining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+/**
+ * Checks the dependencies on rows spread across <code>ShardWorker</code> processes. Every worker
+ * owns a horizontal shard of the rows. For a candidate <code>X->A</code> the workers send the
+ * number of rows of every (X value, A value) pair in their shard to the worker owning the X value
+ * (by its hash), so the owner computes the exact error of its X values even if they occur in
+ * several shards. The coordinator only adds up the errors of the owners; the X values reach it
+ * only for the valid dependencies, whose violating rows are collected.
+ * <br/>
+ * The requests are sent to every worker before the first response is read, so the workers
+ * compute their aggregates at the same time. Every response is read even if a worker fails, so
+ * the connections can be used for the next request.
+ *
+ * @author Akos Tajti
+ */
+public class ShardCoordinator implements DependencyChecker {
+	private static final Logger logger = Logger.getLogger(ShardCoordinator.class.getSimpleName());
+
+	/**
+	 * The number of dependencies aggregated by one request.
+	 */
+	static final int BATCH_SIZE = 16;
+
+	private final List<WorkerConnection> workers = new ArrayList<WorkerConnection>();
+
+	private final double epsilon;
+
+	private final Metrics metrics;
+
+	private int numberOfRows;
+
+	/**
+	 * The number of classes of the attribute sets seen so far. The keys are the sorted attribute sets.
+	 */
+	private final Map<String, Integer> classes = new HashMap<String, Integer>();
+
+	/**
+	 * Connects to the workers.
+	 *
+	 * @param addresses
+	 * @param epsilon The violating rows are kept only for the dependencies with a smaller error.
+	 * @param metrics
+	 * @throws IOException
+	 */
+	public ShardCoordinator(List<InetSocketAddress> addresses, double epsilon, Metrics metrics) throws IOException {
+		this.epsilon = epsilon;
+		this.metrics = metrics;
+		try {
+			for (InetSocketAddress address : addresses) {
+				workers.add(new WorkerConnection(address));
+			}
+		} catch (IOException ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of <code>host:port</code> pairs.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public static List<InetSocketAddress> parseAddresses(String list) {
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		for (String address : list.split(",")) {
+			int index = address.lastIndexOf(':');
+			result.add(new InetSocketAddress(address.substring(0, index), Integer.parseInt(address.substring(index + 1))));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of workers.
+	 *
+	 * @return
+	 */
+	public int getNumberOfWorkers() {
+		return workers.size();
+	}
+
+	/**
+	 * Makes the workers read their shards and connect to each other. The worker <code>i</code>
+	 * runs <code>queries[i]</code> and numbers its rows from <code>firstRows[i]</code>.
+	 *
+	 * @param jdbcUrl
+	 * @param queries
+	 * @param firstRows
+	 * @return The number of rows in all shards.
+	 * @throws IOException
+	 */
+	public int load(String jdbcUrl, String[] queries, int[] firstRows) throws IOException {
+		for (int i = 0; i < workers.size(); i++) {
+			DataOutputStream out = workers.get(i).out;
+			out.writeByte(ShardProtocol.LOAD);
+			out.writeUTF(jdbcUrl);
+			out.writeUTF(queries[i]);
+			out.writeInt(firstRows[i]);
+			out.flush();
+		}
+		numberOfRows = 0;
+		int[] ports = new int[workers.size()];
+		IOException failure = null;
+		for (int i = 0; i < workers.size(); i++) {
+			IOException workerFailure = ShardProtocol.readFailure(workers.get(i).in);
+			if (workerFailure != null) {
+				failure = failure == null ? workerFailure : failure;
+				continue;
+			}
+			numberOfRows += workers.get(i).in.readInt();
+			ports[i] = workers.get(i).in.readInt();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		for (int i = 0; i < workers.size(); i++) {
+			DataOutputStream out = workers.get(i).out;
+			out.writeByte(ShardProtocol.CONNECT);
+			out.writeInt(i);
+			out.writeInt(ports.length);
+			for (int port : ports) {
+				out.writeInt(port);
+			}
+			out.flush();
+		}
+		for (WorkerConnection worker : workers) {
+			IOException workerFailure = ShardProtocol.readFailure(worker.in);
+			failure = failure == null ? workerFailure : failure;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		logger.info(numberOfRows + " rows loaded by " + workers.size() + " workers");
+
+		return numberOfRows;
+	}
+
+	/**
+	 * Counts the distinct values of the attributes. Needed before the first level.
+	 *
+	 * @param attributes
+	 * @throws SQLException
+	 */
+	public void countDistinct(List<String> attributes) throws SQLException {
+		List<String> deps = new ArrayList<String>();
+		for (String attribute : attributes) {
+			deps.add("->" + attribute);
+		}
+		aggregate(deps, 0);
+	}
+
+	@Override
+	public Map<String, Integer> countViolations(List<String> deps, int levelNumber) throws SQLException {
+		List<String> checked = new ArrayList<String>();
+		for (String dep : deps) {
+			if (!dep.startsWith("->")) {
+				checked.add(dep);
+			}
+		}
+		return aggregate(checked, levelNumber);
+	}
+
+	/**
+	 * Collects the errors of <code>deps</code> on the X values owned by the workers.
+	 *
+	 * @param deps
+	 * @param levelNumber
+	 * @return The number of rows to delete for every dependency.
+	 * @throws SQLException
+	 */
+	private Map<String, Integer> aggregate(List<String> deps, int levelNumber) throws SQLException {
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		// a worker keeps the majorities of a dependency only if it may be valid
+		long maxViolations = (long) Math.floor(epsilon * numberOfRows);
+		try {
+			for (int from = 0; from < deps.size(); from += BATCH_SIZE) {
+				List<String> batch = deps.subList(from, Math.min(from + BATCH_SIZE, deps.size()));
+				long start = System.nanoTime();
+				for (WorkerConnection worker : workers) {
+					worker.out.writeByte(ShardProtocol.AGGREGATE);
+					worker.out.writeInt(levelNumber);
+					worker.out.writeLong(maxViolations);
+					worker.out.writeBoolean(from == 0);
+					worker.out.writeInt(batch.size());
+					for (String dep : batch) {
+						worker.out.writeUTF(dep);
+					}
+					worker.out.flush();
+				}
+
+				long[] violations = new long[batch.size()];
+				int[] subclasses = new int[batch.size()];
+				IOException failure = null;
+				for (WorkerConnection worker : workers) {
+					IOException workerFailure = ShardProtocol.readFailure(worker.in);
+					if (workerFailure != null) {
+						failure = failure == null ? workerFailure : failure;
+						continue;
+					}
+					for (int i = 0; i < batch.size(); i++) {
+						violations[i] += worker.in.readLong();
+						subclasses[i] += worker.in.readInt();
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+
+				for (int i = 0; i < batch.size(); i++) {
+					String[] parts = batch.get(i).split("->");
+					classes.put(PushdownChecker.sorted(parts[0].isEmpty() ? parts[1] : parts[0] + ":" + parts[1]), subclasses[i]);
+					result.put(batch.get(i), (int) violations[i]);
+				}
+				long elapsed = System.nanoTime() - start;
+				if (levelNumber > 0) {
+					for (int i = 0; i < batch.size(); i++) {
+						metrics.recordErrorCheck(levelNumber, elapsed / batch.size());
+					}
+				}
+			}
+		} catch (IOException ex) {
+			throw new SQLException("cannot aggregate on the workers", ex);
+		}
+
+		return result;
+	}
+
+	@Override
+	public Map<String, Collection<Integer>> getViolatingRows(List<String> deps) throws SQLException {
+		Map<String, Collection<Integer>> result = new HashMap<String, Collection<Integer>>();
+		try {
+			for (String dep : deps) {
+				// the violating X values of a valid dependency are at most as many as its violating rows
+				for (WorkerConnection worker : workers) {
+					worker.out.writeByte(ShardProtocol.MAJORITIES);
+					worker.out.writeUTF(dep);
+					worker.out.flush();
+				}
+				String lhs = dep.substring(0, dep.indexOf("->"));
+				int lhsSize = lhs.isEmpty() ? 0 : lhs.split(":").length;
+				Map<List<Object>, Object> violating = new HashMap<List<Object>, Object>();
+				IOException failure = null;
+				for (WorkerConnection worker : workers) {
+					IOException workerFailure = ShardProtocol.readFailure(worker.in);
+					if (workerFailure != null) {
+						failure = failure == null ? workerFailure : failure;
+						continue;
+					}
+					for (int groups = worker.in.readInt(); groups > 0; groups--) {
+						Object[] key = new Object[lhsSize];
+						for (int i = 0; i < lhsSize; i++) {
+							key[i] = ShardProtocol.readValue(worker.in);
+						}
+						violating.put(Arrays.asList(key), ShardProtocol.readValue(worker.in));
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+
+				for (WorkerConnection worker : workers) {
+					worker.out.writeByte(ShardProtocol.VIOLATIONS);
+					worker.out.writeUTF(dep);
+					worker.out.writeInt(violating.size());
+					for (Entry<List<Object>, Object> entry : violating.entrySet()) {
+						for (Object value : entry.getKey()) {
+							ShardProtocol.writeValue(worker.out, value);
+						}
+						ShardProtocol.writeValue(worker.out, entry.getValue());
+					}
+					worker.out.flush();
+				}
+
+				// the shards are in the order of the row IDs, so are the rows
+				List<Integer> rows = new ArrayList<Integer>();
+				for (WorkerConnection worker : workers) {
+					IOException workerFailure = ShardProtocol.readFailure(worker.in);
+					if (workerFailure != null) {
+						failure = failure == null ? workerFailure : failure;
+						continue;
+					}
+					for (int n = worker.in.readInt(); n > 0; n--) {
+						rows.add(worker.in.readInt());
+					}
+				}
+				if (failure != null) {
+					throw failure;
+				}
+				result.put(dep, rows);
+			}
+		} catch (IOException ex) {
+			throw new SQLException("cannot retrieve the violating rows from the workers", ex);
+		}
+
+		return result;
+	}
+
+	@Override
+	public int getNumberOfClasses(String attributeList) {
+		Integer result = classes.get(PushdownChecker.sorted(attributeList));
+		return result == null ? -1 : result;
+	}
+
+	/**
+	 * Closes the connections. The workers keep running.
+	 */
+	public void close() {
+		for (WorkerConnection worker : workers) {
+			try {
+				worker.socket.close();
+			} catch (IOException ex) {
+				logger.warning("cannot close the connection: " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The connection to a worker.
+	 */
+	private static class WorkerConnection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		WorkerConnection(InetSocketAddress address) throws IOException {
+			socket = new Socket(address.getAddress(), address.getPort());
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		}
+	}
+}
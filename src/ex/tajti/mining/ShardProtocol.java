@@ -0,0 +1,202 @@
+package ex.tajti.mining;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The binary protocol between the <code>ShardCoordinator</code> and the <code>ShardWorker</code>s.
+ * Every request starts with an opcode, every response with a status byte (<code>OK</code>, or
+ * <code>ERROR</code> followed by a message).
+ * <pre>
+ * LOAD       url, query, firstRow                    -> rows, exchange port
+ * CONNECT    index, n, n * exchange port             ->
+ * AGGREGATE  level, max violations, reset, n, n * dependency -> per dependency: violations, (X value, A value) pairs
+ * MAJORITIES dependency                              -> groups, per group: X values, majority A value
+ * VIOLATIONS dependency, groups, per group: X values, majority A value -> n, n * row ID
+ * </pre>
+ * The workers send the counts of the X values to their owners (see <code>bucket()</code>) through
+ * the connections opened by <code>CONNECT</code>: per dependency groups, per group: X values,
+ * entries, per entry: A value, count. Strings are written with <code>writeUTF</code>, values with
+ * a one byte type tag.
+ *
+ * @author Akos Tajti
+ */
+final class ShardProtocol {
+	static final byte LOAD = 1;
+	static final byte AGGREGATE = 2;
+	static final byte VIOLATIONS = 3;
+	static final byte CONNECT = 4;
+	static final byte MAJORITIES = 5;
+
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	private static final byte NULL = 0;
+	private static final byte INTEGER = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte STRING = 4;
+
+	private ShardProtocol() {
+	}
+
+	/**
+	 * Converts a value read from the database to a type the protocol can transfer. Values of other
+	 * types are converted to strings, so values of a column compare the same way on every worker
+	 * and on the coordinator.
+	 *
+	 * @param value
+	 * @return
+	 */
+	static Object normalize(Object value) {
+		if (value == null || value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof String) {
+			return value;
+		}
+		if (value instanceof Short || value instanceof Byte) {
+			return ((Number) value).intValue();
+		}
+		if (value instanceof Float) {
+			return ((Float) value).doubleValue();
+		}
+		return value.toString();
+	}
+
+	static void writeValue(DataOutput out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else {
+			byte[] bytes = value.toString().getBytes("UTF-8");
+			out.writeByte(STRING);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static Object readValue(DataInput in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case NULL:
+				return null;
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case DOUBLE:
+				return in.readDouble();
+			case STRING:
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				return new String(bytes, "UTF-8");
+			default:
+				throw new IOException("unknown value type: " + type);
+		}
+	}
+
+	/**
+	 * Returns the index of the worker owning an X value. The hash codes of the transferred types
+	 * are the same in every JVM.
+	 *
+	 * @param lhsValue
+	 * @param workers
+	 * @return
+	 */
+	static int bucket(List<Object> lhsValue, int workers) {
+		return (lhsValue.hashCode() & Integer.MAX_VALUE) % workers;
+	}
+
+	/**
+	 * Writes the counts of the A values by X value.
+	 *
+	 * @param out
+	 * @param counts
+	 * @throws IOException
+	 */
+	static void writeCounts(DataOutput out, Map<List<Object>, Map<Object, int[]>> counts) throws IOException {
+		out.writeInt(counts.size());
+		for (Entry<List<Object>, Map<Object, int[]>> group : counts.entrySet()) {
+			out.writeInt(group.getKey().size());
+			for (Object value : group.getKey()) {
+				writeValue(out, value);
+			}
+			out.writeInt(group.getValue().size());
+			for (Entry<Object, int[]> entry : group.getValue().entrySet()) {
+				writeValue(out, entry.getKey());
+				out.writeInt(entry.getValue()[0]);
+			}
+		}
+	}
+
+	/**
+	 * Reads counts written by <code>writeCounts</code> into <code>counts</code>.
+	 *
+	 * @param in
+	 * @param counts
+	 * @throws IOException
+	 */
+	static void readCounts(DataInput in, Map<List<Object>, Map<Object, int[]>> counts) throws IOException {
+		for (int groups = in.readInt(); groups > 0; groups--) {
+			Object[] key = new Object[in.readInt()];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = readValue(in);
+			}
+			Map<Object, int[]> entries = new HashMap<Object, int[]>(2);
+			for (int n = in.readInt(); n > 0; n--) {
+				Object value = readValue(in);
+				entries.put(value, new int[] { in.readInt() });
+			}
+			counts.put(Arrays.asList(key), entries);
+		}
+	}
+
+	/**
+	 * Adds <code>other</code> to <code>counts</code>.
+	 *
+	 * @param counts
+	 * @param other
+	 */
+	static void addCounts(Map<List<Object>, Map<Object, int[]>> counts, Map<List<Object>, Map<Object, int[]>> other) {
+		for (Entry<List<Object>, Map<Object, int[]>> group : other.entrySet()) {
+			Map<Object, int[]> entries = counts.get(group.getKey());
+			if (entries == null) {
+				counts.put(group.getKey(), group.getValue());
+				continue;
+			}
+			for (Entry<Object, int[]> entry : group.getValue().entrySet()) {
+				int[] total = entries.get(entry.getKey());
+				if (total == null) {
+					entries.put(entry.getKey(), entry.getValue());
+				} else {
+					total[0] += entry.getValue()[0];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the status of a response. The response of a failed request has nothing after the
+	 * message.
+	 *
+	 * @param in
+	 * @return An exception with the message of the worker if the request failed, <code>null</code>
+	 * otherwise.
+	 * @throws IOException
+	 */
+	static IOException readFailure(DataInput in) throws IOException {
+		return in.readByte() == ERROR ? new IOException("worker failed: " + in.readUTF()) : null;
+	}
+}
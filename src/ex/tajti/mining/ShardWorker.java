@@ -0,0 +1,648 @@
+package ex.tajti.mining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns a horizontal shard of the rows and answers the requests of a <code>ShardCoordinator</code>
+ * (see <code>ShardProtocol</code>). The base partitions of the shard are held as one class index
+ * per row and column; the partitions of attribute sets are computed by refining them and are kept
+ * for the next level.
+ * <br/>
+ * The values of X are spread across the workers by their hash: for a candidate <code>X->A</code>
+ * every worker counts the (X value, A value) pairs of its shard and sends the counts of every X
+ * value to the worker owning it, over a direct connection between the workers. The owner adds
+ * them up, so it computes the exact error of its X values; only the totals go to the coordinator.
+ * The owner keeps the most frequent A value of its violating X values for the violating rows.
+ * <br/>
+ * Start a worker with:
+ * <pre>
+ * java ex.tajti.mining.ShardWorker &lt;port&gt; &lt;driver&gt;
+ * </pre>
+ * The worker listens on the loopback interface and serves one coordinator at a time until it's killed.
+ *
+ * @author Akos Tajti
+ */
+public class ShardWorker {
+	private static final Logger logger = Logger.getLogger(ShardWorker.class.getSimpleName());
+
+	/**
+	 * The ID of the first row of the shard.
+	 */
+	private int firstRow;
+
+	/**
+	 * The number of rows in the shard.
+	 */
+	private int numberOfRows;
+
+	/**
+	 * The class of every row in the base partitions, by column.
+	 */
+	private Map<String, int[]> codes = new HashMap<String, int[]>();
+
+	/**
+	 * The values of the classes of the base partitions, by column.
+	 */
+	private Map<String, Object[]> values = new HashMap<String, Object[]>();
+
+	/**
+	 * The partitions of attribute sets computed so far.
+	 */
+	private Map<String, Grouping> groupings = new HashMap<String, Grouping>();
+
+	/**
+	 * The index of this worker, the owner of the X values whose bucket it is.
+	 */
+	private int index;
+
+	/**
+	 * Accepts the connections of the other workers.
+	 */
+	private ServerSocket exchange;
+
+	/**
+	 * The connections to the other workers by their index, <code>null</code> at <code>index</code>.
+	 * The counts are sent through the outgoing connections and received through the incoming ones.
+	 */
+	private Socket[] peerSockets = new Socket[0];
+	private DataOutputStream[] peersOut = new DataOutputStream[0];
+	private DataInputStream[] peersIn = new DataInputStream[0];
+
+	/**
+	 * Sends and receives the counts at the same time.
+	 */
+	private ExecutorService pool;
+
+	/**
+	 * The most frequent A value of the owned X values having violations, for the dependencies
+	 * aggregated since the last reset whose error on the owned X values is small enough.
+	 */
+	private final Map<String, Map<List<Object>, Object>> majorities = new HashMap<String, Map<List<Object>, Object>>();
+
+	/**
+	 * Reads the rows of the shard and builds the base partitions. Opens the exchange socket the
+	 * other workers connect to.
+	 *
+	 * @param jdbcUrl
+	 * @param query
+	 * @param firstRow
+	 * @throws SQLException
+	 * @throws IOException if the exchange socket cannot be opened
+	 */
+	void load(String jdbcUrl, String query, int firstRow) throws SQLException, IOException {
+		this.firstRow = firstRow;
+		Connection conn = DriverManager.getConnection(jdbcUrl);
+		try {
+			Statement st = conn.createStatement();
+			try {
+				ResultSet results = st.executeQuery(query);
+				Partitioner partitioner = new Partitioner(results);
+				partitioner.partition(firstRow);
+				numberOfRows = partitioner.getNumberOfRows() - firstRow;
+
+				codes.clear();
+				values.clear();
+				groupings.clear();
+				for (Entry<String, Partition> entry : partitioner.getPartitions().entrySet()) {
+					List<EquivalenceClass<Object, Integer>> classes = entry.getValue().getClasses();
+					int[] columnCodes = new int[numberOfRows];
+					Object[] columnValues = new Object[classes.size()];
+					for (int i = 0; i < classes.size(); i++) {
+						columnValues[i] = ShardProtocol.normalize(classes.get(i).getClassifier());
+						for (Integer row : classes.get(i).getRows()) {
+							columnCodes[row - firstRow] = i;
+						}
+					}
+					codes.put(entry.getKey(), columnCodes);
+					values.put(entry.getKey(), columnValues);
+					groupings.put(entry.getKey(), new Grouping(columnCodes, classes.size(), 0));
+				}
+			} finally {
+				st.close();
+			}
+		} finally {
+			conn.close();
+		}
+		logger.info("loaded " + numberOfRows + " rows from " + firstRow);
+		if (exchange == null) {
+			exchange = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		}
+	}
+
+	/**
+	 * Connects to the other workers. Every worker connects to the others first (the connections
+	 * wait in the backlog of the exchange socket), then accepts theirs, so the workers don't wait
+	 * for each other.
+	 *
+	 * @param index The index of this worker.
+	 * @param ports The exchange ports of the workers by their index.
+	 * @throws IOException
+	 */
+	void connect(int index, int[] ports) throws IOException {
+		closePeers();
+		this.index = index;
+		int workers = ports.length;
+		peerSockets = new Socket[2 * workers];
+		peersOut = new DataOutputStream[workers];
+		peersIn = new DataInputStream[workers];
+		for (int i = 0; i < workers; i++) {
+			if (i != index) {
+				Socket socket = new Socket(InetAddress.getLoopbackAddress(), ports[i]);
+				socket.setTcpNoDelay(true);
+				peerSockets[i] = socket;
+				peersOut[i] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+				peersOut[i].writeInt(index);
+				peersOut[i].flush();
+			}
+		}
+		for (int i = 1; i < workers; i++) {
+			Socket socket = exchange.accept();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			int peer = in.readInt();
+			peerSockets[workers + peer] = socket;
+			peersIn[peer] = in;
+		}
+		logger.info("connected to " + (workers - 1) + " workers as worker " + index);
+	}
+
+	private void closePeers() {
+		for (Socket socket : peerSockets) {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException ex) {
+					logger.warning("cannot close the connection to a worker: " + ex.getMessage());
+				}
+			}
+		}
+		peerSockets = new Socket[0];
+		peersOut = new DataOutputStream[0];
+		peersIn = new DataInputStream[0];
+	}
+
+	/**
+	 * Returns the partition of <code>attributeList</code>. Computed from the partition of the
+	 * attribute set without its last attribute.
+	 *
+	 * @param attributeList
+	 * @param level
+	 * @return
+	 */
+	private Grouping grouping(String attributeList, int level) {
+		if (attributeList.isEmpty()) {
+			return new Grouping(new int[numberOfRows], 1, level);
+		}
+		Grouping result = groupings.get(attributeList);
+		if (result == null) {
+			int index = attributeList.lastIndexOf(':');
+			Grouping prefix = grouping(attributeList.substring(0, index), level);
+			String last = attributeList.substring(index + 1);
+			result = prefix.refine(groupings.get(last), level);
+			groupings.put(attributeList, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Removes the partitions not needed on level <code>level</code> any more.
+	 *
+	 * @param level
+	 */
+	private void cleanGroupings(int level) {
+		for (Iterator<Grouping> it = groupings.values().iterator(); it.hasNext();) {
+			int created = it.next().level;
+			if (created != 0 && created < level - 1) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Counts the rows of every (X value, A value) pair of the shard for <code>dep</code>.
+	 *
+	 * @param dep
+	 * @param level
+	 * @return The counts of the A values by X value.
+	 */
+	private Map<List<Object>, Map<Object, int[]>> count(String dep, int level) {
+		Map<List<Object>, Map<Object, int[]>> result = new HashMap<List<Object>, Map<Object, int[]>>();
+		if (numberOfRows == 0) {
+			return result;
+		}
+		String[] parts = dep.split("->");
+		String[] lhs = parts[0].isEmpty() ? new String[0] : parts[0].split(":");
+		Grouping left = grouping(parts[0], level);
+		int[] rhsCodes = codes.get(parts[1]);
+		Object[] rhsValues = values.get(parts[1]);
+
+		// counts[group][A class], sparse
+		List<Map<Integer, int[]>> counts = new ArrayList<Map<Integer, int[]>>(left.count);
+		int[] representatives = new int[left.count];
+		for (int i = 0; i < left.count; i++) {
+			counts.add(new HashMap<Integer, int[]>(2));
+		}
+		for (int row = 0; row < numberOfRows; row++) {
+			int group = left.ids[row];
+			representatives[group] = row;
+			int[] count = counts.get(group).get(rhsCodes[row]);
+			if (count == null) {
+				counts.get(group).put(rhsCodes[row], new int[] { 1 });
+			} else {
+				++count[0];
+			}
+		}
+
+		for (int group = 0; group < left.count; group++) {
+			Object[] key = new Object[lhs.length];
+			for (int i = 0; i < lhs.length; i++) {
+				key[i] = values.get(lhs[i])[codes.get(lhs[i])[representatives[group]]];
+			}
+			Map<Object, int[]> entries = new HashMap<Object, int[]>(2);
+			for (Entry<Integer, int[]> entry : counts.get(group).entrySet()) {
+				entries.put(rhsValues[entry.getKey()], entry.getValue());
+			}
+			result.put(Arrays.asList(key), entries);
+		}
+		return result;
+	}
+
+	/**
+	 * Sends the counts of the X values owned by the other workers to them and adds the counts
+	 * received to the counts of the owned X values. Every worker sends whether it could count
+	 * before its counts, and the counts are sent even if it couldn't, so the connections stay in
+	 * sync when a request fails.
+	 *
+	 * @param counts The counts of the shard, by dependency. Empty if the shard couldn't be counted.
+	 * @param counted <code>false</code> if the shard couldn't be counted.
+	 * @return The counts of the owned X values in all shards, by dependency.
+	 * @throws IOException if the exchange fails or another worker couldn't count its shard
+	 */
+	private List<Map<List<Object>, Map<Object, int[]>>> exchange(List<Map<List<Object>, Map<Object, int[]>>> counts,
+		final boolean counted) throws IOException {
+		final int workers = peersOut.length == 0 ? 1 : peersOut.length;
+		final List<Map<List<Object>, Map<Object, int[]>>> owned = new ArrayList<Map<List<Object>, Map<Object, int[]>>>();
+		// sent[worker][dependency]
+		final List<List<Map<List<Object>, Map<Object, int[]>>>> sent = new ArrayList<List<Map<List<Object>, Map<Object, int[]>>>>();
+		for (int i = 0; i < workers; i++) {
+			sent.add(new ArrayList<Map<List<Object>, Map<Object, int[]>>>());
+		}
+		for (int dep = 0; dep < counts.size(); dep++) {
+			for (int i = 0; i < workers; i++) {
+				sent.get(i).add(new HashMap<List<Object>, Map<Object, int[]>>());
+			}
+			for (Entry<List<Object>, Map<Object, int[]>> group : counts.get(dep).entrySet()) {
+				sent.get(ShardProtocol.bucket(group.getKey(), workers)).get(dep).put(group.getKey(), group.getValue());
+			}
+			owned.add(sent.get(index).get(dep));
+		}
+		if (workers == 1) {
+			return owned;
+		}
+
+		if (pool == null) {
+			pool = Executors.newCachedThreadPool();
+		}
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		tasks.add(pool.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				for (int i = 0; i < workers; i++) {
+					if (i != index) {
+						peersOut[i].writeBoolean(counted);
+						for (Map<List<Object>, Map<Object, int[]>> groups : sent.get(i)) {
+							ShardProtocol.writeCounts(peersOut[i], groups);
+						}
+						peersOut[i].flush();
+					}
+				}
+				return null;
+			}
+		}));
+		// one reader per worker, so a worker waiting for a slow one doesn't block the others
+		for (int i = 0; i < workers; i++) {
+			if (i != index) {
+				final DataInputStream in = peersIn[i];
+				final int peer = i;
+				tasks.add(pool.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws IOException {
+						boolean peerCounted = in.readBoolean();
+						for (Map<List<Object>, Map<Object, int[]>> groups : owned) {
+							Map<List<Object>, Map<Object, int[]>> received = new HashMap<List<Object>, Map<Object, int[]>>();
+							ShardProtocol.readCounts(in, received);
+							synchronized (groups) {
+								ShardProtocol.addCounts(groups, received);
+							}
+						}
+						if (!peerCounted) {
+							throw new IOException("worker " + peer + " couldn't count its shard");
+						}
+						return null;
+					}
+				}));
+			}
+		}
+		for (Future<Void> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("the exchange was interrupted");
+			} catch (ExecutionException ex) {
+				throw new IOException("the exchange with the other workers failed: " + ex.getCause().getMessage(), ex.getCause());
+			}
+		}
+		return owned;
+	}
+
+	/**
+	 * Computes the errors of <code>deps</code> on the owned X values.
+	 *
+	 * @param deps
+	 * @param level
+	 * @param maxViolations The majorities of a dependency are kept only if it has at most this
+	 * many violations on the owned X values.
+	 * @return The number of rows to delete and the number of (X value, A value) pairs for every
+	 * dependency.
+	 * @throws IOException
+	 */
+	private long[][] aggregate(List<String> deps, int level, long maxViolations) throws IOException {
+		List<Map<List<Object>, Map<Object, int[]>>> counts = new ArrayList<Map<List<Object>, Map<Object, int[]>>>();
+		RuntimeException failure = null;
+		try {
+			for (String dep : deps) {
+				counts.add(count(dep, level));
+			}
+		} catch (RuntimeException ex) {
+			// the other workers wait for the counts of this shard
+			failure = ex;
+			counts.clear();
+			for (int i = 0; i < deps.size(); i++) {
+				counts.add(new HashMap<List<Object>, Map<Object, int[]>>());
+			}
+		}
+		counts = exchange(counts, failure == null);
+		if (failure != null) {
+			throw failure;
+		}
+
+		long[][] result = new long[deps.size()][2];
+		for (int i = 0; i < deps.size(); i++) {
+			Map<List<Object>, Object> violating = new HashMap<List<Object>, Object>();
+			for (Entry<List<Object>, Map<Object, int[]>> group : counts.get(i).entrySet()) {
+				result[i][1] += group.getValue().size();
+				if (group.getValue().size() == 1) {
+					continue;
+				}
+				long total = 0;
+				long max = -1;
+				Object majority = null;
+				for (Entry<Object, int[]> entry : group.getValue().entrySet()) {
+					total += entry.getValue()[0];
+					if (entry.getValue()[0] > max) {
+						max = entry.getValue()[0];
+						majority = entry.getKey();
+					}
+				}
+				result[i][0] += total - max;
+				violating.put(group.getKey(), majority);
+			}
+			counts.set(i, null);
+			if (result[i][0] <= maxViolations) {
+				majorities.put(deps.get(i), violating);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the majority A values of the X groups having violations and writes the IDs of the rows
+	 * breaking <code>dep</code>.
+	 *
+	 * @param dep
+	 * @param in
+	 * @param out
+	 * @throws IOException
+	 */
+	private void violations(String dep, DataInputStream in, DataOutputStream out) throws IOException {
+		String[] parts = dep.split("->");
+		String[] lhs = parts[0].isEmpty() ? new String[0] : parts[0].split(":");
+		Map<List<Object>, Object> majorities = new HashMap<List<Object>, Object>();
+		int groups = in.readInt();
+		for (int i = 0; i < groups; i++) {
+			List<Object> key = new ArrayList<Object>(lhs.length);
+			for (int j = 0; j < lhs.length; j++) {
+				key.add(ShardProtocol.readValue(in));
+			}
+			majorities.put(key, ShardProtocol.readValue(in));
+		}
+
+		List<Integer> rows = new ArrayList<Integer>();
+		if (!majorities.isEmpty()) {
+			int[] rhsCodes = codes.get(parts[1]);
+			Object[] rhsValues = values.get(parts[1]);
+			for (int row = 0; row < numberOfRows; row++) {
+				List<Object> key = new ArrayList<Object>(lhs.length);
+				for (String attribute : lhs) {
+					key.add(values.get(attribute)[codes.get(attribute)[row]]);
+				}
+				if (majorities.containsKey(key)) {
+					Object majority = majorities.get(key);
+					Object value = rhsValues[rhsCodes[row]];
+					if (majority == null ? value != null : !majority.equals(value)) {
+						rows.add(firstRow + row);
+					}
+				}
+			}
+		}
+
+		out.writeByte(ShardProtocol.OK);
+		out.writeInt(rows.size());
+		for (Integer row : rows) {
+			out.writeInt(row);
+		}
+	}
+
+	/**
+	 * Serves the requests of a coordinator until it closes the connection.
+	 *
+	 * @param socket
+	 * @throws IOException
+	 */
+	void serve(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		try {
+			while (true) {
+				byte opcode;
+				try {
+					opcode = in.readByte();
+				} catch (EOFException ex) {
+					return;
+				}
+
+				try {
+					switch (opcode) {
+						case ShardProtocol.LOAD:
+							load(in.readUTF(), in.readUTF(), in.readInt());
+							out.writeByte(ShardProtocol.OK);
+							out.writeInt(numberOfRows);
+							out.writeInt(exchange.getLocalPort());
+							break;
+						case ShardProtocol.CONNECT:
+							int workerIndex = in.readInt();
+							int[] ports = new int[in.readInt()];
+							for (int i = 0; i < ports.length; i++) {
+								ports[i] = in.readInt();
+							}
+							connect(workerIndex, ports);
+							out.writeByte(ShardProtocol.OK);
+							break;
+						case ShardProtocol.AGGREGATE:
+							int level = in.readInt();
+							long maxViolations = in.readLong();
+							boolean reset = in.readBoolean();
+							List<String> deps = new ArrayList<String>();
+							for (int i = in.readInt(); i > 0; i--) {
+								deps.add(in.readUTF());
+							}
+							if (reset) {
+								majorities.clear();
+							}
+							cleanGroupings(level);
+							// computed before the response is started, so a failure can be reported
+							long[][] errors = aggregate(deps, level, maxViolations);
+							out.writeByte(ShardProtocol.OK);
+							for (long[] error : errors) {
+								out.writeLong(error[0]);
+								out.writeInt((int) error[1]);
+							}
+							break;
+						case ShardProtocol.MAJORITIES:
+							String dep = in.readUTF();
+							Map<List<Object>, Object> violating = majorities.get(dep);
+							if (violating == null) {
+								throw new IllegalStateException("the majorities of " + dep + " are not kept");
+							}
+							out.writeByte(ShardProtocol.OK);
+							out.writeInt(violating.size());
+							for (Entry<List<Object>, Object> entry : violating.entrySet()) {
+								for (Object value : entry.getKey()) {
+									ShardProtocol.writeValue(out, value);
+								}
+								ShardProtocol.writeValue(out, entry.getValue());
+							}
+							break;
+						case ShardProtocol.VIOLATIONS:
+							violations(in.readUTF(), in, out);
+							break;
+						default:
+							throw new IOException("unknown opcode: " + opcode);
+					}
+				} catch (Exception ex) {
+					// nothing is written before the request succeeds, so the stream stays in sync
+					logger.log(Level.SEVERE, null, ex);
+					out.writeByte(ShardProtocol.ERROR);
+					out.writeUTF(String.valueOf(ex.getMessage()));
+				}
+				out.flush();
+			}
+		} finally {
+			closePeers();
+			socket.close();
+		}
+	}
+
+	/**
+	 * The partition of an attribute set: a class index for every row of the shard.
+	 */
+	private static class Grouping {
+		private final int[] ids;
+		private final int count;
+		private final int level;
+
+		Grouping(int[] ids, int count, int level) {
+			this.ids = ids;
+			this.count = count;
+			this.level = level;
+		}
+
+		/**
+		 * Returns the product of this partition and <code>other</code>. The class indexes of the
+		 * result are dense, so the key of a pair of classes fits into a long.
+		 *
+		 * @param other
+		 * @param level
+		 * @return
+		 */
+		Grouping refine(Grouping other, int level) {
+			int[] result = new int[ids.length];
+			Map<Long, Integer> classes = new HashMap<Long, Integer>();
+			for (int row = 0; row < ids.length; row++) {
+				long key = (long) ids[row] * other.count + other.ids[row];
+				Integer id = classes.get(key);
+				if (id == null) {
+					id = classes.size();
+					classes.put(key, id);
+				}
+				result[row] = id;
+			}
+
+			return new Grouping(result, classes.size(), level);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java ex.tajti.mining.ShardWorker <port> <driver>");
+			System.exit(1);
+		}
+		try {
+			Class.forName(args[1]);
+		} catch (ClassNotFoundException ex) {
+			System.out.println("driver class cannot be found");
+			System.exit(1);
+		}
+
+		ServerSocket server = new ServerSocket(Integer.parseInt(args[0]), 1, InetAddress.getLoopbackAddress());
+		System.out.println("listening on port " + server.getLocalPort());
+		ShardWorker worker = new ShardWorker();
+		while (true) {
+			try {
+				worker.serve(server.accept());
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, "connection failed", ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package ex.tajti.mining;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the human readable report. The rows (their keys if they are set) are written in the
+ * order the collection returns them.
+ *
+ * @author Akos Tajti
+ */
+public class TextReportWriter extends ReportWriter {
+	/**
+	 * <code>true</code> if the separator of the dependencies was already written.
+	 */
+	private boolean dependenciesStarted;
+
+	public TextReportWriter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	@Override
+	public void writeHeader(Map<String, Object> statistics) throws IOException {
+		write("================ General ============\n");
+		write("Date: " + new Date() + "\n");
+		write("============= Statistics ============\n");
+		for (Map.Entry<String, Object> entry : statistics.entrySet()) {
+			write(entry.getKey() + ": " + entry.getValue() + "\n");
+		}
+	}
+
+	@Override
+	public void writeDependency(String dependency, Collection<Integer> rows) throws IOException {
+		if (!dependenciesStarted) {
+			write("========== Dependencies =============\n");
+			dependenciesStarted = true;
+		}
+		write("Dependency: " + dependency + "\n");
+		write("To delete (");
+		write(rows.size());
+		write("): [");
+		for (Iterator<Integer> it = rows.iterator(); it.hasNext();) {
+			writeRow(it.next());
+			if (it.hasNext()) {
+				write(", ");
+			}
+		}
+		write("]\n");
+	}
+
+	@Override
+	public void writeRanking(List<RowScorer.RowScore> top, int[] histogram, double maxScore) throws IOException {
+		write("========== Suspicious rows ==========\n");
+		for (RowScorer.RowScore score : top) {
+			write("Row ");
+			writeRow(score.getRow());
+			write(": score " + String.format("%.3f", score.getScore()) + ", dependencies broken: ");
+			write(score.getViolations());
+			write('\n');
+		}
+		write("Score histogram:\n");
+		for (int i = 0; i < histogram.length; i++) {
+			write(String.format("(%.3f, %.3f]: ", maxScore * i / histogram.length, maxScore * (i + 1) / histogram.length));
+			write(histogram[i]);
+			write('\n');
+		}
+	}
+}
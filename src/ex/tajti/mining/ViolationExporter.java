@@ -0,0 +1,571 @@
+package ex.tajti.mining;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Exports the values of the rows breaking the dependencies, so they can be investigated without
+ * querying the rows one by one. The violating rows of a dependency are read by their keys in
+ * batches: a batch of integer keys lying close to each other is read by one key range
+ * (<code>where key between ? and ?</code>), the other batches by an <code>in</code> list. Then
+ * the left side classes containing them are read in batches by their left side values, so the
+ * rows they conflict with are written next to them. The batches of violating rows are read by
+ * several connections at the same time and written in order, so only the batches being read are
+ * held in memory. The rows of the classes are streamed from the database to the output, so a
+ * class is never held in memory however big it is: a left side with few values can have classes
+ * holding most of the table.
+ * <br/>
+ * The output is tab separated text. Every dependency starts with a <code>#</code> line and a
+ * header line; the last column tells whether a row is violating or kept, and the left side
+ * classes are separated by an empty line.
+ *
+ * @author Akos Tajti
+ */
+public class ViolationExporter {
+	private static final Logger logger = Logger.getLogger(ViolationExporter.class.getSimpleName());
+
+	/**
+	 * The default number of rows read by one query.
+	 */
+	static final int BATCH_SIZE = 500;
+
+	/**
+	 * The default number of connections reading the rows.
+	 */
+	static final int CONNECTIONS = 4;
+
+	/**
+	 * A batch of integer keys is read by a key range if the range holds at most this many times
+	 * more keys than the batch.
+	 */
+	private static final int RANGE_DENSITY = 2;
+
+	/**
+	 * The value written for nulls.
+	 */
+	private static final String NULL = "\\N";
+
+	/**
+	 * The header of the column marking the violating rows.
+	 */
+	static final String STATUS_COLUMN = "status";
+
+	static final String VIOLATING = "violating";
+
+	static final String KEPT = "kept";
+
+	private final String jdbcUrl;
+
+	private final String table;
+
+	/**
+	 * The column identifying the rows of <code>table</code>.
+	 */
+	private final String keyColumn;
+
+	/**
+	 * The columns exported.
+	 */
+	private final List<String> columns;
+
+	private int batchSize = BATCH_SIZE;
+
+	private int connectionCount = CONNECTIONS;
+
+	private RowKeys keys;
+
+	private Writer out;
+
+	private ExecutorService pool;
+
+	/**
+	 * The connections not used by a batch at the moment.
+	 */
+	private BlockingQueue<Connection> connections;
+
+	private List<Connection> opened;
+
+	private int rowsExported;
+
+	private int queries;
+
+	/**
+	 * @param jdbcUrl
+	 * @param table
+	 * @param keyColumn The column identifying the rows.
+	 * @param columns The columns exported.
+	 */
+	public ViolationExporter(String jdbcUrl, String table, String keyColumn, List<String> columns) {
+		this.jdbcUrl = jdbcUrl;
+		this.table = table;
+		this.keyColumn = keyColumn;
+		this.columns = new ArrayList<String>(columns);
+	}
+
+	/**
+	 * Opens the connections. The rows are written to <code>out</code> as UTF-8 text.
+	 *
+	 * @param out
+	 * @param keys The keys of the rows.
+	 * @throws SQLException
+	 */
+	public void open(OutputStream out, RowKeys keys) throws SQLException {
+		this.keys = keys;
+		this.out = new BufferedWriter(new OutputStreamWriter(out, ReportWriter.UTF8));
+		rowsExported = 0;
+		queries = 0;
+		connections = new ArrayBlockingQueue<Connection>(connectionCount);
+		opened = new ArrayList<Connection>();
+		try {
+			for (int i = 0; i < connectionCount; i++) {
+				Connection conn = DriverManager.getConnection(jdbcUrl);
+				opened.add(conn);
+				connections.add(conn);
+			}
+		} catch (SQLException ex) {
+			closeConnections();
+			throw ex;
+		}
+		pool = Executors.newFixedThreadPool(connectionCount);
+	}
+
+	/**
+	 * Writes the values of the rows breaking <code>dependency</code> together with the rows they
+	 * conflict with: every left side class containing a violating row is written as a whole, its
+	 * rows marked as violating or kept. The violating rows are read first for their left side
+	 * values, then the classes are read by these values (a null matches the nulls), one batch of
+	 * classes after the other. The batches are formed in the order of the first violating rows of
+	 * the classes; in a batch the classes are ordered by their values, their rows by the key.
+	 * If the left side is empty, the class would be the whole table, so only the violating rows
+	 * are written.
+	 *
+	 * @param dependency
+	 * @param rows The violating rows.
+	 * @throws IOException
+	 * @throws SQLException if a batch cannot be read
+	 */
+	public void writeDependency(String dependency, int[] rows) throws IOException, SQLException {
+		String[] parts = dependency.split("->");
+		final List<Integer> lhs = new ArrayList<Integer>();
+		if (!parts[0].isEmpty()) {
+			for (String attribute : parts[0].split(":")) {
+				lhs.add(columns.indexOf(attribute));
+			}
+		}
+
+		final int[] missing = new int[1];
+		if (lhs.isEmpty()) {
+			writeHeader(dependency, rows.length, -1);
+			read(keyBatches(rows), new BatchHandler() {
+
+				@Override
+				public void handle(String[][] batch) throws IOException {
+					for (String[] values : batch) {
+						if (values == null) {
+							++missing[0];
+							continue;
+						}
+						values[values.length - 1] = VIOLATING;
+						writeRow(values);
+						++rowsExported;
+					}
+				}
+			});
+		} else {
+			final Set<String> violating = new HashSet<String>();
+			final Set<List<String>> lhsValues = new LinkedHashSet<List<String>>();
+			read(keyBatches(rows), new BatchHandler() {
+
+				@Override
+				public void handle(String[][] batch) {
+					for (String[] values : batch) {
+						if (values == null) {
+							++missing[0];
+							continue;
+						}
+						violating.add(values[0]);
+						lhsValues.add(lhsValue(values, lhs));
+					}
+				}
+			});
+
+			writeHeader(dependency, rows.length, lhsValues.size());
+			List<List<String>> classes = new ArrayList<List<String>>(lhsValues);
+			for (int from = 0; from < classes.size(); from += batchSize) {
+				writeClasses(classes.subList(from, Math.min(from + batchSize, classes.size())), lhs, violating, from == 0);
+			}
+		}
+		out.write('\n');
+		if (missing[0] > 0) {
+			logger.warning(missing[0] + " rows breaking " + dependency + " are not in " + table + " any more");
+		}
+	}
+
+	/**
+	 * Receives the results of the batches in the order the batches were given.
+	 */
+	private interface BatchHandler {
+		void handle(String[][] batch) throws IOException;
+	}
+
+	/**
+	 * Reads <code>batches</code> by the connections and hands their results to
+	 * <code>handler</code> in order. At most two batches per connection are read ahead.
+	 *
+	 * @param batches
+	 * @param handler
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	private void read(List<Callable<String[][]>> batches, BatchHandler handler) throws IOException, SQLException {
+		ArrayDeque<Future<String[][]>> pending = new ArrayDeque<Future<String[][]>>();
+		for (int next = 0; next < batches.size() || !pending.isEmpty();) {
+			if (next < batches.size() && pending.size() < 2 * connectionCount) {
+				pending.add(pool.submit(batches.get(next++)));
+				continue;
+			}
+			handler.handle(await(pending.poll()));
+		}
+	}
+
+	/**
+	 * Splits <code>rows</code> into batches read by their keys.
+	 *
+	 * @param rows
+	 * @return
+	 */
+	private List<Callable<String[][]>> keyBatches(int[] rows) {
+		List<Callable<String[][]>> result = new ArrayList<Callable<String[][]>>();
+		for (int from = 0; from < rows.length; from += batchSize) {
+			final int[] batch = Arrays.copyOfRange(rows, from, Math.min(from + batchSize, rows.length));
+			result.add(new Callable<String[][]>() {
+
+				@Override
+				public String[][] call() throws SQLException {
+					return readBatch(batch);
+				}
+			});
+		}
+		return result;
+	}
+
+	private void writeHeader(String dependency, int violatingRows, int classes) throws IOException {
+		out.write("# " + dependency + ": " + violatingRows + " violating rows");
+		if (classes >= 0) {
+			out.write(" in " + classes + " left side classes");
+		}
+		out.write('\n');
+		out.write(keyColumn);
+		for (String column : columns) {
+			out.write('\t');
+			out.write(column);
+		}
+		out.write('\t');
+		out.write(STATUS_COLUMN);
+		out.write('\n');
+	}
+
+	private static String[][] await(Future<String[][]> future) throws SQLException, IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("the export was interrupted");
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof SQLException) {
+				throw (SQLException) ex.getCause();
+			}
+			throw new RuntimeException(ex.getCause());
+		}
+	}
+
+	/**
+	 * Reads the values of <code>batch</code> by a connection of the pool.
+	 *
+	 * @param batch
+	 * @return The key and the values of the rows in the order of <code>batch</code> (the last
+	 * element is left for the status), <code>null</code> for a row not found.
+	 * @throws SQLException
+	 */
+	private String[][] readBatch(int[] batch) throws SQLException {
+		Connection conn;
+		try {
+			conn = connections.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("the export was interrupted");
+		}
+		try {
+			StringBuilder query = select().append(" where ").append(keyColumn);
+
+			PreparedStatement st;
+			long[] range = range(batch);
+			if (range != null) {
+				st = conn.prepareStatement(query.append(" between ? and ?").toString());
+				st.setLong(1, range[0]);
+				st.setLong(2, range[1]);
+			} else {
+				query.append(" in (");
+				for (int i = 0; i < batch.length; i++) {
+					query.append(i == 0 ? "?" : ", ?");
+				}
+				st = conn.prepareStatement(query.append(")").toString());
+				for (int i = 0; i < batch.length; i++) {
+					if (keys.isNumeric()) {
+						st.setLong(i + 1, keys.getLong(batch[i]));
+					} else {
+						st.setString(i + 1, keys.getString(batch[i]));
+					}
+				}
+			}
+
+			Map<String, String[]> found = new HashMap<String, String[]>();
+			try {
+				ResultSet results = st.executeQuery();
+				while (results.next()) {
+					String[] values = readRow(results);
+					found.put(values[0], values);
+				}
+				results.close();
+			} finally {
+				st.close();
+			}
+
+			String[][] result = new String[batch.length][];
+			for (int i = 0; i < batch.length; i++) {
+				result[i] = found.get(keys.getString(batch[i]));
+			}
+			synchronized (this) {
+				++queries;
+			}
+			return result;
+		} finally {
+			connections.add(conn);
+		}
+	}
+
+	/**
+	 * Writes the rows of the left side classes of <code>batch</code>, separated by empty lines.
+	 * The rows are ordered by the binary values of the left side, so every class comes in one
+	 * piece even if the database compares the values by a case insensitive collation, and they are
+	 * written as they are read. The rows of other case variants are dropped.
+	 *
+	 * @param batch The left side values of the classes.
+	 * @param lhs The indexes of the left side columns.
+	 * @param violating The keys of the violating rows.
+	 * @param first <code>true</code> for the first batch of a dependency.
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	private void writeClasses(List<List<String>> batch, List<Integer> lhs, Set<String> violating, boolean first)
+		throws SQLException, IOException {
+		Connection conn;
+		try {
+			conn = connections.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("the export was interrupted");
+		}
+		try {
+			StringBuilder query = select().append(" where ");
+			for (int i = 0; i < batch.size(); i++) {
+				query.append(i == 0 ? "(" : " or (");
+				for (int j = 0; j < lhs.size(); j++) {
+					query.append(j == 0 ? "" : " and ").append(columns.get(lhs.get(j))).append(" <=> ?");
+				}
+				query.append(")");
+			}
+			query.append(" order by ");
+			for (int index : lhs) {
+				query.append("binary ").append(columns.get(index)).append(", ");
+			}
+			query.append(keyColumn);
+
+			Set<List<String>> classes = new HashSet<List<String>>(batch);
+			PreparedStatement st = conn.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				// Connector/J streams the rows instead of reading all of them only for this value
+				st.setFetchSize(Integer.MIN_VALUE);
+				int parameter = 0;
+				for (List<String> values : batch) {
+					for (String value : values) {
+						if (value == null) {
+							st.setNull(++parameter, Types.VARCHAR);
+						} else {
+							st.setString(++parameter, value);
+						}
+					}
+				}
+				ResultSet results = st.executeQuery();
+				List<String> previous = null;
+				while (results.next()) {
+					String[] values = readRow(results);
+					List<String> value = lhsValue(values, lhs);
+					if (!classes.contains(value)) {
+						continue;
+					}
+					if (!value.equals(previous) && (previous != null || !first)) {
+						out.write('\n');
+					}
+					values[values.length - 1] = violating.contains(values[0]) ? VIOLATING : KEPT;
+					writeRow(values);
+					previous = value;
+					++rowsExported;
+				}
+				results.close();
+			} finally {
+				st.close();
+			}
+			synchronized (this) {
+				++queries;
+			}
+		} finally {
+			connections.add(conn);
+		}
+	}
+
+	private StringBuilder select() {
+		StringBuilder query = new StringBuilder("select ").append(keyColumn);
+		for (String column : columns) {
+			query.append(", ").append(column);
+		}
+		return query.append(" from ").append(table);
+	}
+
+	/**
+	 * Reads the key and the values of the current row. The last element is left for the status.
+	 *
+	 * @param results
+	 * @return
+	 * @throws SQLException
+	 */
+	private String[] readRow(ResultSet results) throws SQLException {
+		String[] values = new String[columns.size() + 2];
+		for (int i = 0; i <= columns.size(); i++) {
+			values[i] = results.getString(i + 1);
+		}
+		return values;
+	}
+
+	private static List<String> lhsValue(String[] values, List<Integer> lhs) {
+		String[] result = new String[lhs.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = values[lhs.get(i) + 1];
+		}
+		return Arrays.asList(result);
+	}
+
+	/**
+	 * Returns the smallest and the largest key of <code>batch</code> if it's cheaper to read the
+	 * batch by a key range, <code>null</code> otherwise.
+	 *
+	 * @param batch
+	 * @return
+	 */
+	private long[] range(int[] batch) {
+		if (!keys.isNumeric()) {
+			return null;
+		}
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int row : batch) {
+			min = Math.min(min, keys.getLong(row));
+			max = Math.max(max, keys.getLong(row));
+		}
+		if (max - min >= 0 && max - min < (long) RANGE_DENSITY * batch.length) {
+			return new long[] { min, max };
+		}
+		return null;
+	}
+
+	private void writeRow(String[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				out.write('\t');
+			}
+			out.write(values[i] == null ? NULL : values[i].replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Flushes the output and closes the connections. The output stream is not closed.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			if (out != null) {
+				out.flush();
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+			closeConnections();
+			logger.info(rowsExported + " rows of " + table + " exported by " + queries + " queries");
+		}
+	}
+
+	private void closeConnections() {
+		for (Connection conn : opened) {
+			try {
+				conn.close();
+			} catch (SQLException ex) {
+				logger.warning("cannot close a connection: " + ex.getMessage());
+			}
+		}
+		opened.clear();
+	}
+
+	/**
+	 * Sets the number of rows read by one query.
+	 *
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of connections reading the rows at the same time.
+	 *
+	 * @param connectionCount
+	 */
+	public void setConnections(int connectionCount) {
+		this.connectionCount = connectionCount;
+	}
+
+	/**
+	 * @return The number of rows exported since the exporter was opened.
+	 */
+	public int getRowsExported() {
+		return rowsExported;
+	}
+}
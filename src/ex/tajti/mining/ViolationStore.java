@@ -0,0 +1,424 @@
+package ex.tajti.mining;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the rows breaking the dependencies. The row sets are kept as compressed
+ * <code>RowBitmap</code>s over the row ID space of the run, and dependencies having the same
+ * rows share a single bitmap.
+ * <br/>
+ * When the bitmaps in memory exceed the spill threshold they are written to a temporary file
+ * and read back on demand. The store also answers which dependencies a row breaks.
+ * <br/>
+ * The methods are synchronized, so the store can be read while the algorithm runs.
+ *
+ * @author Akos Tajti
+ */
+public class ViolationStore {
+	private static final Logger logger = Logger.getLogger(ViolationStore.class.getSimpleName());
+
+	/**
+	 * The dependencies in the order they were added. The index of a dependency is its ID.
+	 */
+	private List<String> dependencies = new ArrayList<String>();
+
+	/**
+	 * Maps dependencies to their IDs.
+	 */
+	private Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	/**
+	 * The bitmaps of the dependencies. An element is <code>null</code> if the bitmap was spilled.
+	 */
+	private List<RowBitmap> bitmaps = new ArrayList<RowBitmap>();
+
+	/**
+	 * The position of the spilled bitmaps in the spill file. -1 for bitmaps in memory.
+	 */
+	private List<Long> offsets = new ArrayList<Long>();
+
+	/**
+	 * Maps the hash codes of the bitmaps to the IDs of the dependencies having such bitmaps.
+	 * Used to find identical row sets.
+	 */
+	private Map<Integer, List<Integer>> byHash = new HashMap<Integer, List<Integer>>();
+
+	/**
+	 * The estimated size of the distinct bitmaps held in memory.
+	 */
+	private long memoryBytes;
+
+	/**
+	 * Bitmaps are spilled to disk when <code>memoryBytes</code> exceeds this value.
+	 */
+	private long spillThreshold = Long.MAX_VALUE;
+
+	private File spillFile;
+
+	private FileChannel spillChannel;
+
+	/**
+	 * The dependencies broken by the rows: the IDs of the dependencies broken by row <code>r</code> are
+	 * <code>rowDependencies[rowOffsets[r]] ... rowDependencies[rowOffsets[r + 1] - 1]</code>.
+	 * Built on the first lookup.
+	 */
+	private int[] rowOffsets;
+
+	private int[] rowDependencies;
+
+	/**
+	 * Stores the rows breaking <code>dependency</code>. If another dependency has the same rows the
+	 * bitmap is shared.
+	 *
+	 * @param dependency
+	 * @param rows
+	 * @return The stored bitmap.
+	 */
+	public synchronized RowBitmap put(String dependency, Collection<Integer> rows) {
+		RowBitmap bitmap = RowBitmap.of(rows);
+		Integer id = ids.get(dependency);
+		if (id == null) {
+			id = dependencies.size();
+			dependencies.add(dependency);
+			ids.put(dependency, id);
+			bitmaps.add(null);
+			offsets.add(-1L);
+		} else {
+			byHash.get(load(id).hashCode()).remove(id);
+		}
+		rowOffsets = null;
+
+		Integer shared = null;
+		List<Integer> sameHash = byHash.get(bitmap.hashCode());
+		if (sameHash != null) {
+			for (Integer other : sameHash) {
+				if (load(other).equals(bitmap)) {
+					shared = other;
+					break;
+				}
+			}
+		} else {
+			sameHash = new ArrayList<Integer>(1);
+			byHash.put(bitmap.hashCode(), sameHash);
+		}
+		sameHash.add(id);
+
+		if (shared != null) {
+			bitmaps.set(id, bitmaps.get(shared));
+			offsets.set(id, offsets.get(shared));
+			return load(id);
+		}
+
+		bitmaps.set(id, bitmap);
+		offsets.set(id, -1L);
+		memoryBytes += bitmap.sizeInBytes();
+		if (memoryBytes > spillThreshold) {
+			spill();
+		}
+
+		return bitmap;
+	}
+
+	/**
+	 * Returns the rows breaking <code>dependency</code> or <code>null</code> if the dependency
+	 * is not in the store.
+	 *
+	 * @param dependency
+	 * @return
+	 */
+	public synchronized RowBitmap get(String dependency) {
+		Integer id = ids.get(dependency);
+		return id == null ? null : load(id);
+	}
+
+	/**
+	 * Returns the stored dependencies in the order they were added.
+	 *
+	 * @return
+	 */
+	public synchronized List<String> getDependencies() {
+		return Collections.unmodifiableList(new ArrayList<String>(dependencies));
+	}
+
+	public synchronized int size() {
+		return dependencies.size();
+	}
+
+	/**
+	 * Returns the number of distinct row sets in the store.
+	 *
+	 * @return
+	 */
+	public synchronized int getDistinctSets() {
+		int distinct = 0;
+		for (List<Integer> sameHash : byHash.values()) {
+			List<RowBitmap> seen = new ArrayList<RowBitmap>();
+			for (Integer id : sameHash) {
+				RowBitmap bitmap = load(id);
+				boolean found = false;
+				for (RowBitmap s : seen) {
+					if (s.equals(bitmap)) {
+						found = true;
+						break;
+					}
+				}
+				if (!found) {
+					seen.add(bitmap);
+				}
+			}
+			distinct += seen.size();
+		}
+		return distinct;
+	}
+
+	/**
+	 * Returns the estimated size of the bitmaps held in memory.
+	 *
+	 * @return
+	 */
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * Sets the size above which bitmaps are spilled to disk.
+	 *
+	 * @param spillThreshold
+	 */
+	public synchronized void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+		if (memoryBytes > spillThreshold) {
+			spill();
+		}
+	}
+
+	/**
+	 * Returns the dependencies broken by <code>row</code>.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public synchronized List<String> dependenciesOf(int row) {
+		if (rowOffsets == null) {
+			buildRowIndex();
+		}
+		if (row < 0 || row + 1 >= rowOffsets.length) {
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<String>(rowOffsets[row + 1] - rowOffsets[row]);
+		for (int i = rowOffsets[row]; i < rowOffsets[row + 1]; i++) {
+			result.add(dependencies.get(rowDependencies[i]));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the number of dependencies broken by <code>row</code>.
+	 *
+	 * @param row
+	 * @return
+	 */
+	public synchronized int countDependenciesOf(int row) {
+		if (rowOffsets == null) {
+			buildRowIndex();
+		}
+		if (row < 0 || row + 1 >= rowOffsets.length) {
+			return 0;
+		}
+		return rowOffsets[row + 1] - rowOffsets[row];
+	}
+
+	/**
+	 * Returns the rows breaking both dependencies.
+	 *
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	public synchronized RowBitmap and(String first, String second) {
+		return rows(first).and(rows(second));
+	}
+
+	/**
+	 * Returns the rows breaking any of the dependencies.
+	 *
+	 * @param dependencies
+	 * @return
+	 */
+	public synchronized RowBitmap or(Collection<String> dependencies) {
+		RowBitmap result = RowBitmap.EMPTY;
+		for (String dependency : dependencies) {
+			result = result.or(rows(dependency));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the rows breaking <code>first</code> but not <code>second</code>.
+	 *
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	public synchronized RowBitmap andNot(String first, String second) {
+		return rows(first).andNot(rows(second));
+	}
+
+	/**
+	 * Removes every dependency from the store and deletes the spill file.
+	 */
+	public synchronized void clear() {
+		dependencies.clear();
+		ids.clear();
+		bitmaps.clear();
+		offsets.clear();
+		byHash.clear();
+		memoryBytes = 0;
+		rowOffsets = null;
+		rowDependencies = null;
+		closeSpillFile();
+	}
+
+	private RowBitmap rows(String dependency) {
+		RowBitmap bitmap = get(dependency);
+		if (bitmap == null) {
+			throw new IllegalArgumentException("unknown dependency: " + dependency);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Builds the row -> dependencies index.
+	 */
+	private void buildRowIndex() {
+		int rows = 0;
+		for (int id = 0; id < dependencies.size(); id++) {
+			rows = Math.max(rows, load(id).last() + 1);
+		}
+		int[] counts = new int[rows + 1];
+		for (int id = 0; id < dependencies.size(); id++) {
+			for (int row : load(id).toIntArray()) {
+				++counts[row + 1];
+			}
+		}
+		for (int row = 0; row < rows; row++) {
+			counts[row + 1] += counts[row];
+		}
+		int[] next = Arrays.copyOf(counts, rows);
+		int[] deps = new int[counts[rows]];
+		for (int id = 0; id < dependencies.size(); id++) {
+			for (int row : load(id).toIntArray()) {
+				deps[next[row]++] = id;
+			}
+		}
+		rowOffsets = counts;
+		rowDependencies = deps;
+	}
+
+	/**
+	 * Returns the bitmap of the dependency with ID <code>id</code>. Spilled bitmaps are read
+	 * from the spill file.
+	 *
+	 * @param id
+	 * @return
+	 */
+	private RowBitmap load(int id) {
+		RowBitmap bitmap = bitmaps.get(id);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		try {
+			long offset = offsets.get(id);
+			ByteBuffer length = ByteBuffer.allocate(4);
+			readFully(length, offset);
+			length.flip();
+			ByteBuffer data = ByteBuffer.allocate(length.getInt());
+			readFully(data, offset + 4);
+			return RowBitmap.read(new DataInputStream(new ByteArrayInputStream(data.array())));
+		} catch (IOException ex) {
+			throw new IllegalStateException("cannot read spilled violations", ex);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (spillChannel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of spill file");
+			}
+		}
+	}
+
+	/**
+	 * Writes every bitmap held in memory to the spill file. Shared bitmaps are written once.
+	 */
+	private void spill() {
+		try {
+			if (spillChannel == null) {
+				spillFile = File.createTempFile("violations", ".bin");
+				spillFile.deleteOnExit();
+				spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+			}
+			Map<RowBitmap, Long> written = new IdentityHashMap<RowBitmap, Long>();
+			long position = spillChannel.size();
+			for (int id = 0; id < bitmaps.size(); id++) {
+				RowBitmap bitmap = bitmaps.get(id);
+				if (bitmap == null) {
+					continue;
+				}
+				Long offset = written.get(bitmap);
+				if (offset == null) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream out = new DataOutputStream(bytes);
+					out.writeInt(0);
+					bitmap.write(out);
+					out.close();
+					ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+					buffer.putInt(0, buffer.capacity() - 4);
+					offset = position;
+					while (buffer.hasRemaining()) {
+						position += spillChannel.write(buffer, position);
+					}
+					written.put(bitmap, offset);
+				}
+				offsets.set(id, offset);
+				bitmaps.set(id, null);
+			}
+			logger.info("spilled " + written.size() + " violation sets to " + spillFile);
+			memoryBytes = 0;
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "cannot spill violations, keeping them in memory", ex);
+			spillThreshold = Long.MAX_VALUE;
+		}
+	}
+
+	private void closeSpillFile() {
+		if (spillChannel != null) {
+			try {
+				spillChannel.close();
+			} catch (IOException ex) {
+				logger.log(Level.WARNING, null, ex);
+			}
+			spillFile.delete();
+			spillChannel = null;
+			spillFile = null;
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package ex.tajti.mining;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the dependencies discovered by TANE and by the hybrid discovery with a brute-force
+ * enumeration of the minimal approximate dependencies, on small generated tables held in memory.
+ * The base partitions of a table are put into a <code>PartitionCache</code>, so the cleaner runs
+ * without a database.
+ * <br/>
+ * For every table and epsilon:
+ * <ul>
+ * <li>the dependencies found by TANE and by the hybrid discovery (and the number of rows breaking
+ * them) must be the minimal dependencies <code>X->A</code> with a non-empty <code>X</code> and a
+ * g3 error of at most epsilon. Some tables have an ID column and composite keys, so the
+ * dependencies of the keys emitted by the pruning are compared too;</li>
+ * <li><code>MultiRhsChecker</code> must give the same violations, rows to delete and class counts
+ * as <code>Partition.getRowsToDelete()</code> on the products, for every left side and right
+ * side.</li>
+ * </ul>
+ * The class count bounds of TANE must reject or accept some candidates on these tables, so their
+ * decisions are covered by the comparison.
+ * <br/>
+ * Run it with <code>ant check</code>. The exit status is 1 if a check fails.
+ *
+ * @author Akos Tajti
+ */
+public class DiscoveryCheck {
+	private static final double[] EPSILONS = {0, 0.02, 0.05, 0.1};
+
+	private static final String JDBC_URL = "jdbc:check:memory";
+
+	private int failures;
+
+	private int checks;
+
+	private int boundRejections;
+
+	private int exactByClassCount;
+
+	public static void main(String[] args) {
+		Logger.getLogger("").setLevel(Level.WARNING);
+		DiscoveryCheck check = new DiscoveryCheck();
+		for (int seed = 1; seed <= 6; seed++) {
+			check.checkTable(Table.generate(seed, 40 + 20 * seed, seed % 2 == 0));
+		}
+		check.finish();
+	}
+
+	private void checkTable(Table table) {
+		Map<String, Partition> base = table.basePartitions();
+		checkMultiRhs(table, base);
+		for (double epsilon : EPSILONS) {
+			Map<String, Integer> expected = table.minimalDependencies(epsilon);
+			compare(table.name + " TANE e=" + epsilon, expected, discover(table, base, epsilon, false));
+			compare(table.name + " hybrid e=" + epsilon, expected, discover(table, base, epsilon, true));
+		}
+	}
+
+	/**
+	 * Runs the cleaner on the cached partitions of <code>table</code>.
+	 *
+	 * @param table
+	 * @param base
+	 * @param epsilon
+	 * @param hybrid
+	 * @return The dependencies found (with their left sides sorted) and the number of rows breaking
+	 * them.
+	 */
+	private Map<String, Integer> discover(Table table, Map<String, Partition> base, double epsilon, boolean hybrid) {
+		PartitionCache cache = new PartitionCache(Long.MAX_VALUE, 0);
+		cache.put(JDBC_URL, table.name, table.rows.length, base, null, null, new ArrayList<String>(), new ArrayList<String>());
+
+		Cleaner cleaner = new Cleaner();
+		cleaner.setJdbcUrl(JDBC_URL);
+		cleaner.setTable(table.name);
+		for (String attribute : table.attributes) {
+			cleaner.addAttribute(attribute);
+		}
+		cleaner.setEpsilon(epsilon);
+		cleaner.setHybrid(hybrid);
+		cleaner.setPartitionCache(cache);
+		try {
+			cleaner.proceed();
+		} catch (Exception ex) {
+			throw new IllegalStateException("the run on " + table.name + " failed", ex);
+		}
+
+		if (!hybrid) {
+			String[] decided = String.valueOf(cleaner.getStatistics(0).get("Decided by class counts")).split("[^0-9]+");
+			boundRejections += Integer.parseInt(decided[0]);
+			exactByClassCount += Integer.parseInt(decided[1]);
+		}
+		Map<String, Integer> result = new TreeMap<String, Integer>();
+		if (cleaner.getDependencies() != null) {
+			for (String dep : cleaner.getDependencies()) {
+				result.put(normalize(dep), cleaner.getViolations().get(dep).size());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compares the results of <code>MultiRhsChecker</code> with the products of the partitions for
+	 * every left side (as many attributes as the table has, less one) and every right side.
+	 *
+	 * @param table
+	 * @param base
+	 */
+	private void checkMultiRhs(Table table, Map<String, Partition> base) {
+		PackedGrouping grouping = new PackedGrouping(base);
+		int k = table.attributes.length;
+		Map<Integer, Partition> lhsPartitions = new HashMap<Integer, Partition>();
+		for (int lhs = 1; lhs < (1 << k) - 1; lhs++) {
+			int last = 31 - Integer.numberOfLeadingZeros(lhs);
+			int rest = lhs & ~(1 << last);
+			Partition partition = base.get(table.attributes[last]);
+			if (rest != 0) {
+				partition = lhsPartitions.get(rest).multiply(partition);
+			}
+			lhsPartitions.put(lhs, partition);
+
+			List<Integer> rightSides = new ArrayList<Integer>();
+			for (int a = 0; a < k; a++) {
+				if ((lhs & (1 << a)) == 0) {
+					rightSides.add(a);
+				}
+			}
+			int[][] codes = new int[rightSides.size()][];
+			int[] numberOfCodes = new int[rightSides.size()];
+			for (int i = 0; i < rightSides.size(); i++) {
+				codes[i] = grouping.getCodes(table.attributes[rightSides.get(i)]);
+				numberOfCodes[i] = grouping.getNumberOfCodes(table.attributes[rightSides.get(i)]);
+			}
+			MultiRhsChecker checker = new MultiRhsChecker(partition, codes, numberOfCodes);
+			for (int i = 0; i < rightSides.size(); i++) {
+				int a = rightSides.get(i);
+				String dep = table.toString(lhs, a);
+				Partition extended = partition.multiply(base.get(table.attributes[a]));
+				Collection<Integer> expected = partition.getRowsToDelete(extended);
+				List<Integer> rows = checker.getRowsToDelete(i);
+
+				check(dep + ": violations", table.error(lhs, a), checker.getViolations(i));
+				check(dep + ": rows to delete", new HashSet<Integer>(expected), new HashSet<Integer>(rows));
+				check(dep + ": number of rows to delete", expected.size(), rows.size());
+				check(dep + ": classes", table.numberOfClasses(lhs | (1 << a)), checker.getNumberOfClasses(i));
+				check(dep + ": classes of the product", extended.getNumberOfClasses() + extended.getStrippedRows(),
+					checker.getNumberOfClasses(i));
+			}
+		}
+	}
+
+	private void compare(String run, Map<String, Integer> expected, Map<String, Integer> found) {
+		++checks;
+		if (expected.equals(found)) {
+			System.out.println("OK   " + run + " (" + expected.size() + " dependencies)");
+			return;
+		}
+		++failures;
+		System.out.println("FAIL " + run);
+		for (String dep : expected.keySet()) {
+			if (!found.containsKey(dep)) {
+				System.out.println("  missing " + dep + " " + expected.get(dep));
+			} else if (!expected.get(dep).equals(found.get(dep))) {
+				System.out.println("  " + dep + " breaks " + found.get(dep) + " rows instead of " + expected.get(dep));
+			}
+		}
+		for (String dep : found.keySet()) {
+			if (!expected.containsKey(dep)) {
+				System.out.println("  extra " + dep + " " + found.get(dep));
+			}
+		}
+	}
+
+	private void check(String what, Object expected, Object found) {
+		++checks;
+		if (!expected.equals(found)) {
+			++failures;
+			System.out.println("FAIL " + what + ": " + found + " instead of " + expected);
+		}
+	}
+
+	private void finish() {
+		System.out.println("decided by class counts: " + boundRejections + " rejected, " + exactByClassCount + " exact");
+		if (boundRejections == 0 || exactByClassCount == 0) {
+			++failures;
+			System.out.println("FAIL the tables don't exercise the class count bounds");
+		}
+		System.out.println(checks + " checks, " + failures + " failed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Sorts the attributes of the left side of <code>dep</code>.
+	 *
+	 * @param dep
+	 * @return
+	 */
+	private static String normalize(String dep) {
+		int arrow = dep.indexOf("->");
+		String[] lhs = dep.substring(0, arrow).split(":");
+		Arrays.sort(lhs);
+		StringBuilder builder = new StringBuilder();
+		for (String attribute : lhs) {
+			builder.append(builder.length() == 0 ? "" : ":").append(attribute);
+		}
+		return builder.append(dep.substring(arrow)).toString();
+	}
+
+	/**
+	 * A table in memory. The attribute sets are bitmasks of the attribute indexes.
+	 */
+	private static class Table {
+		private final String name;
+
+		private final String[] attributes;
+
+		private final int[][] rows;
+
+		Table(String name, String[] attributes, int[][] rows) {
+			this.name = name;
+			this.attributes = attributes;
+			this.rows = rows;
+		}
+
+		/**
+		 * Generates a table with small domains, so it has exact, approximate and composite key
+		 * dependencies: <code>c</code> depends on <code>a, b</code> and <code>d</code> on
+		 * <code>a</code>, both with a few exceptions.
+		 *
+		 * @param seed
+		 * @param numberOfRows
+		 * @param withId If <code>true</code> the first column is a key.
+		 * @return
+		 */
+		static Table generate(int seed, int numberOfRows, boolean withId) {
+			Random random = new Random(seed);
+			String[] attributes = withId ? new String[]{"id", "a", "b", "c", "d", "e"} : new String[]{"a", "b", "c", "d", "e", "f"};
+			int offset = withId ? 1 : 0;
+			int[][] rows = new int[numberOfRows][attributes.length];
+			for (int i = 0; i < numberOfRows; i++) {
+				int[] row = rows[i];
+				int a = random.nextInt(3);
+				int b = random.nextInt(4);
+				row[offset] = a;
+				row[offset + 1] = b;
+				row[offset + 2] = random.nextInt(25) == 0 ? random.nextInt(5) : (a * 4 + b) % 5;
+				row[offset + 3] = random.nextInt(30) == 0 ? random.nextInt(3) : a;
+				row[offset + 4] = random.nextInt(2 + seed);
+				if (withId) {
+					row[0] = i;
+				} else {
+					row[5] = random.nextInt(numberOfRows / 2);
+				}
+			}
+			return new Table("t" + seed, attributes, rows);
+		}
+
+		/**
+		 * Builds the base partitions like <code>Partitioner</code>: every class is kept, even
+		 * those having one row.
+		 *
+		 * @return
+		 */
+		Map<String, Partition> basePartitions() {
+			Map<String, Partition> result = new HashMap<String, Partition>();
+			for (int j = 0; j < attributes.length; j++) {
+				Partition partition = new Partition(attributes[j]);
+				for (int i = 0; i < rows.length; i++) {
+					partition.addRow(i, rows[i][j]);
+				}
+				result.put(attributes[j], partition);
+			}
+			return result;
+		}
+
+		private List<Integer> key(int[] row, int attributeSet) {
+			List<Integer> result = new ArrayList<Integer>();
+			for (int j = 0; j < attributes.length; j++) {
+				if ((attributeSet & (1 << j)) != 0) {
+					result.add(row[j]);
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the number of rows to delete so that <code>X->A</code> holds: the rows outside the
+		 * most frequent value of <code>A</code> in every group of <code>X</code>.
+		 *
+		 * @param lhs
+		 * @param a
+		 * @return
+		 */
+		int error(int lhs, int a) {
+			Map<List<Integer>, Map<Integer, Integer>> groups = new HashMap<List<Integer>, Map<Integer, Integer>>();
+			for (int[] row : rows) {
+				List<Integer> key = key(row, lhs);
+				Map<Integer, Integer> counts = groups.get(key);
+				if (counts == null) {
+					counts = new HashMap<Integer, Integer>();
+					groups.put(key, counts);
+				}
+				Integer count = counts.get(row[a]);
+				counts.put(row[a], count == null ? 1 : count + 1);
+			}
+			int kept = 0;
+			for (Map<Integer, Integer> counts : groups.values()) {
+				int max = 0;
+				for (Integer count : counts.values()) {
+					max = Math.max(max, count);
+				}
+				kept += max;
+			}
+			return rows.length - kept;
+		}
+
+		int numberOfClasses(int attributeSet) {
+			Collection<List<Integer>> keys = new HashSet<List<Integer>>();
+			for (int[] row : rows) {
+				keys.add(key(row, attributeSet));
+			}
+			return keys.size();
+		}
+
+		/**
+		 * Enumerates every non-empty left side of every attribute and keeps the dependencies whose
+		 * error is at most <code>epsilon</code> and which have no such dependency on a proper subset
+		 * of their left side.
+		 *
+		 * @param epsilon
+		 * @return The dependencies (with their left sides sorted) and their errors.
+		 */
+		Map<String, Integer> minimalDependencies(double epsilon) {
+			Map<String, Integer> result = new TreeMap<String, Integer>();
+			int k = attributes.length;
+			for (int a = 0; a < k; a++) {
+				// implied[X]: X->A or a dependency on a subset of X holds
+				boolean[] implied = new boolean[1 << k];
+				for (int lhs = 1; lhs < 1 << k; lhs++) {
+					if ((lhs & (1 << a)) != 0) {
+						continue;
+					}
+					boolean minimal = true;
+					for (int j = 0; j < k; j++) {
+						if ((lhs & (1 << j)) != 0 && implied[lhs & ~(1 << j)]) {
+							minimal = false;
+						}
+					}
+					if (!minimal) {
+						implied[lhs] = true;
+						continue;
+					}
+					int error = error(lhs, a);
+					if ((double) error / rows.length <= epsilon) {
+						implied[lhs] = true;
+						result.put(toString(lhs, a), error);
+					}
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * Returns <code>X->A</code> with the attributes of <code>X</code> sorted.
+		 *
+		 * @param lhs
+		 * @param a
+		 * @return
+		 */
+		String toString(int lhs, int a) {
+			List<String> names = new ArrayList<String>();
+			for (int j = 0; j < attributes.length; j++) {
+				if ((lhs & (1 << j)) != 0) {
+					names.add(attributes[j]);
+				}
+			}
+			return normalize(join(names) + "->" + attributes[a]);
+		}
+
+		private static String join(List<String> names) {
+			StringBuilder builder = new StringBuilder();
+			for (String name : names) {
+				builder.append(builder.length() == 0 ? "" : ":").append(name);
+			}
+			return builder.toString();
+		}
+	}
+}